@@ -57,6 +57,25 @@ public interface IConfiguration {
    */
   public int getBackupRetentionDays();
 
+  /**
+   * @return Days for which a file uploaded by an earlier backup is copied
+   * within the backup location by later snapshots instead of being uploaded
+   * again. 0 disables dedup. Capped below the backup retention so the object
+   * to copy has not expired yet.
+   */
+  public int getBackupDedupMaxAgeDays();
+
+  /**
+   * @return Seconds between listings of the backup location that bring the
+   * local backup inventory up to date
+   */
+  public int getBackupInventorySyncSeconds();
+
+  /**
+   * @return Local dir where Priam keeps its own state, e.g. backup indexes
+   */
+  public String getLocalStateLocation();
+
   /**
    * @return Get list of racs to backup. Backup all racs if empty
    */
@@ -213,17 +232,92 @@ public interface IConfiguration {
    */
   public int getMaxBackupUploadThreads();
 
+  /**
+   * @return Number of threads compressing files for upload, shared by all
+   * uploads. 1 compresses each file on the thread uploading it.
+   */
+  public int getBackupCompressionThreads();
+
+  /**
+   * @return Files up to this many bytes are uploaded with a single PUT rather
+   * than a multipart upload. 0 disables single PUTs.
+   */
+  public long getSinglePutThreshold();
+
+  /**
+   * @return Number of files uploaded at once during a backup
+   */
+  public int getBackupFileConcurrency();
+
+  /**
+   * @return Maximum bytes of local files being uploaded at any one time
+   */
+  public long getBackupBytesInFlight();
+
+  /**
+   * @param fileType name of the backup file type, such as SNAP, SST or CL
+   * @return Name of the compression codec for backup files of the given
+   * type: snappy, lz4 or gzip
+   */
+  public String getCompressionCodec(String fileType);
+
   /**
    * @return Number of download threads
    */
   public int getMaxBackupDownloadThreads();
 
+  /**
+   * @return Number of threads decompressing files on restore, shared by all
+   * downloads. 1 decompresses each file on the thread downloading it.
+   */
+  public int getRestoreDecompressionThreads();
+
+  /**
+   * @return Bytes per second to throttle restore downloads to, 0 for unlimited
+   */
+  public int getRestoreDownloadThrottle();
+
+  /**
+   * @return Bytes per second to throttle writing restored files to disk, 0 for unlimited
+   */
+  public int getRestoreWriteThrottle();
+
+  /**
+   * @return Tasks pending in Cassandra's thread pools above which restores
+   * download fewer files at once, 0 to never back off
+   */
+  public int getRestoreMaxPendingTasks();
+
+  /**
+   * @return What a restore does with a file that cannot be downloaded: fail
+   * to stop the restore at once, skip to leave the file out, or retry to try
+   * it again once the other files are done
+   */
+  public String getRestoreFailurePolicy();
+
+  /**
+   * @return Number of ranged GETs issued at once for a single file on
+   * download. 1 downloads each file as one sequential stream.
+   */
+  public int getDownloadRangeParallelism();
+
+  /**
+   * @return Size in bytes of each ranged GET on download
+   */
+  public long getDownloadRangeSize();
+
   /**
    * @return true if restore should search for nearest token if current token
    * is not found
    */
   public boolean isRestoreClosestToken();
 
+  /**
+   * @return true to restore keyspaces of a running node through a staging
+   * dir, loading each column family as soon as its SSTables are in place
+   */
+  public boolean isRestoreStaged();
+
   /**
    * Amazon specific setting to query Ring Membership
    */
@@ -239,6 +333,18 @@ public interface IConfiguration {
    */
   boolean isIncrBackup();
 
+  /**
+   * @return true if incremental backups react to files appearing in the
+   * backups dirs instead of rescanning them every 10 seconds
+   */
+  boolean isIncrBackupWatch();
+
+  /**
+   * @return Seconds between full scans of the backups dirs when incremental
+   * backups are event driven
+   */
+  int getIncrBackupReconcileSeconds();
+
   /**
    * @return Get host IP
    */
@@ -249,6 +355,28 @@ public interface IConfiguration {
    */
   public int getUploadThrottle();
 
+  /**
+   * @return Upload rates by hour of day, as comma separated
+   * <code>start-end:bytesPerSecond</code> entries. Hours not covered use
+   * {@link #getUploadThrottle()}.
+   */
+  public String getUploadThrottleSchedule();
+
+  /**
+   * @return true to back off uploads while Cassandra is under pressure
+   */
+  public boolean isUploadThrottleAdaptive();
+
+  /**
+   * @return Pending compactions above which uploads back off
+   */
+  public int getUploadThrottleMaxPendingCompactions();
+
+  /**
+   * @return Recent read latency in milliseconds above which uploads back off
+   */
+  public int getUploadThrottleMaxReadLatencyMs();
+
   /**
    * @return true if Priam should local config file for tokens and seeds
    */
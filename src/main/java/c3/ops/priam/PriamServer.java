@@ -17,10 +17,12 @@ package c3.ops.priam;
 
 import c3.ops.priam.aws.UpdateCleanupPolicy;
 import c3.ops.priam.aws.UpdateSecuritySettings;
+import c3.ops.priam.backup.BackupInventory;
 import c3.ops.priam.backup.CommitLogBackupTask;
 import c3.ops.priam.backup.IncrementalBackup;
 import c3.ops.priam.backup.Restore;
 import c3.ops.priam.backup.SnapshotBackup;
+import c3.ops.priam.backup.UploadThrottleTask;
 import c3.ops.priam.identity.InstanceIdentity;
 import c3.ops.priam.scheduler.PriamScheduler;
 import c3.ops.priam.utils.CassandraMonitor;
@@ -98,13 +100,19 @@ public class PriamServer {
 
       // Start the Incremental backup schedule if enabled
       if (config.isIncrBackup())
-        scheduler.addTask(IncrementalBackup.JOBNAME, IncrementalBackup.class, IncrementalBackup.getTimer());
+        scheduler.addTask(IncrementalBackup.JOBNAME, IncrementalBackup.class, IncrementalBackup.getTimer(config));
+
+      // Keep the local inventory of the backups up to date
+      scheduler.addTask(BackupInventory.JOBNAME, BackupInventory.class, BackupInventory.getTimer(config));
     }
 
     if (config.isBackingUpCommitLogs()) {
       scheduler.addTask(CommitLogBackupTask.JOBNAME, CommitLogBackupTask.class, CommitLogBackupTask.getTimer(config));
     }
 
+    // Keep the upload rate in step with the schedule and the load on the node
+    scheduler.addTask(UploadThrottleTask.JOBNAME, UploadThrottleTask.class, UploadThrottleTask.getTimer());
+
     //Set cleanup
     scheduler.addTask(UpdateCleanupPolicy.JOBNAME, UpdateCleanupPolicy.class, UpdateCleanupPolicy.getTimer());
   }
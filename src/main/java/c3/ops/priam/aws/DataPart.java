@@ -15,8 +15,14 @@
  */
 package c3.ops.priam.aws;
 
+import c3.ops.priam.utils.BufferPool;
+import c3.ops.priam.utils.ByteBufferInputStream;
 import c3.ops.priam.utils.SystemUtils;
 
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
 /**
  * Class for holding part data of a backup file,
  * which will be used for multi-part uploading
@@ -25,8 +31,10 @@ public class DataPart {
   private final String bucketName;
   private final String uploadID;
   private final String s3key;
+  private final AtomicReference<ByteBuffer> partData = new AtomicReference<ByteBuffer>();
   private int partNo;
-  private byte[] partData;
+  private int partSize;
+  private BufferPool pool;
   private byte[] md5;
 
   public DataPart(String bucket, String s3key, String mUploadId) {
@@ -36,9 +44,19 @@ public class DataPart {
   }
 
   public DataPart(int partNumber, byte[] data, String bucket, String s3key, String mUploadId) {
+    this(partNumber, ByteBuffer.wrap(data), null, bucket, s3key, mUploadId);
+  }
+
+  /**
+   * Part backed by a buffer from the given pool (may be null), which gets the
+   * buffer back on {@link #release()}.
+   */
+  public DataPart(int partNumber, ByteBuffer data, BufferPool pool, String bucket, String s3key, String mUploadId) {
     this(bucket, s3key, mUploadId);
     this.partNo = partNumber;
-    this.partData = data;
+    this.partData.set(data);
+    this.partSize = data.remaining();
+    this.pool = pool;
     this.md5 = SystemUtils.md5(data);
   }
 
@@ -58,8 +76,27 @@ public class DataPart {
     return partNo;
   }
 
-  public byte[] getPartData() {
-    return partData;
+  public int getPartSize() {
+    return partSize;
+  }
+
+  /**
+   * @return a fresh stream over the part data, for each upload attempt
+   */
+  public InputStream getPartStream() {
+    ByteBuffer data = partData.get();
+    if (data == null)
+      throw new IllegalStateException("Part " + partNo + " has already been released");
+    return new ByteBufferInputStream(data);
+  }
+
+  /**
+   * Drop the part data, handing a pooled buffer back. Safe to call more than once.
+   */
+  public void release() {
+    ByteBuffer data = partData.getAndSet(null);
+    if (data != null && pool != null)
+      pool.release(data);
   }
 
   public byte[] getMd5() {
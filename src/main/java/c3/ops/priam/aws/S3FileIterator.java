@@ -20,71 +20,196 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
-import com.google.common.collect.Lists;
 import com.google.inject.Provider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Iterator representing list of backup files available on S3
+ * <p>
+ * All keys listed belong to one token, so they sort by the date in the key.
+ * The listing starts at the first key of the start date, and stops at the
+ * first key dated after the end, without listing the rest of the prefix.
+ * Keys are parsed one at a time as the iterator advances, and only when their
+ * date is in range. Given an executor, the next page is listed while the
+ * current one is consumed.
  */
 public class S3FileIterator implements Iterator<AbstractBackupPath> {
   private static final Logger logger = LoggerFactory.getLogger(S3FileIterator.class);
+  // Position of the date in a key: BASE/REGION/CLUSTER/TOKEN/DATE/...
+  private static final int DATE_ELEMENT = 4;
   private final Provider<AbstractBackupPath> pathProvider;
   private final AmazonS3 s3Client;
+  private final ExecutorService prefetcher;
   private final Date start;
   private final Date till;
-  private Iterator<AbstractBackupPath> iterator;
+  private final String startDate;
+  private final String tillDate;
   private ObjectListing objectListing;
+  private Iterator<S3ObjectSummary> summaries;
+  private Future<ObjectListing> nextListing;
+  private AbstractBackupPath next;
+  private boolean done;
 
   public S3FileIterator(Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, String path, Date start, Date till) {
+    this(pathProvider, s3Client, path, start, till, null);
+  }
+
+  /**
+   * @param prefetcher lists the next page in the background, or null to list
+   *                   each page when the previous one is used up
+   */
+  public S3FileIterator(Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, String path, Date start, Date till,
+                        ExecutorService prefetcher) {
+    this(pathProvider, s3Client, bucket(path), tokenPrefix(pathProvider.get(), path, start, till),
+        pathProvider.get().match(start, till), start, till, prefetcher);
+  }
+
+  /**
+   * List the keys under one date prefix of a token.
+   *
+   * @param tokenPrefix key prefix up to and including the token
+   * @param datePrefix  prefix of the dates to list under the token
+   */
+  public S3FileIterator(Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, String bucket, String tokenPrefix,
+                        String datePrefix, Date start, Date till, ExecutorService prefetcher) {
     this.start = start;
     this.till = till;
+    this.startDate = AbstractBackupPath.formatDate(start);
+    this.tillDate = AbstractBackupPath.formatDate(till);
     this.pathProvider = pathProvider;
+    this.prefetcher = prefetcher;
     ListObjectsRequest listReq = new ListObjectsRequest();
-    String[] paths = path.split(String.valueOf(S3BackupPath.PATH_SEP));
-    listReq.setBucketName(paths[0]);
-    listReq.setPrefix(pathProvider.get().remotePrefix(start, till, path));
+    listReq.setBucketName(bucket);
+    listReq.setPrefix(tokenPrefix + datePrefix);
+    // Skip the keys of the prefix dated before the start
+    listReq.setMarker(tokenPrefix + startDate);
     this.s3Client = s3Client;
     objectListing = s3Client.listObjects(listReq);
-    iterator = createIterator();
+    summaries = objectListing.getObjectSummaries().iterator();
+    prefetch();
+  }
+
+  static String bucket(String path) {
+    return path.split(String.valueOf(S3BackupPath.PATH_SEP))[0];
+  }
+
+  /**
+   * @return the prefix of the keys of this node's token under the location
+   */
+  static String tokenPrefix(AbstractBackupPath prefixPath, String path, Date start, Date till) {
+    String prefix = prefixPath.remotePrefix(start, till, path);
+    return prefix.substring(0, prefix.length() - prefixPath.match(start, till).length());
   }
 
   @Override
   public boolean hasNext() {
-    if (iterator.hasNext()) {
-      return true;
-    } else {
-      while (objectListing.isTruncated() && !iterator.hasNext()) {
-        objectListing = s3Client.listNextBatchOfObjects(objectListing);
-        iterator = createIterator();
+    while (next == null && !done) {
+      if (summaries.hasNext()) {
+        next = accept(summaries.next());
+      } else if (objectListing.isTruncated()) {
+        objectListing = nextListing();
+        summaries = objectListing.getObjectSummaries().iterator();
+        prefetch();
+      } else {
+        done = true;
       }
+    }
+    return next != null;
+  }
 
+  @Override
+  public AbstractBackupPath next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    AbstractBackupPath path = next;
+    next = null;
+    return path;
+  }
+
+  /**
+   * @return the parsed key if its date is in range, otherwise null
+   */
+  private AbstractBackupPath accept(S3ObjectSummary summary) {
+    String date = dateOf(summary.getKey());
+    if (date != null) {
+      if (date.compareTo(tillDate) > 0) {
+        finish();
+        return null;
+      }
+      if (date.compareTo(startDate) < 0)
+        return null;
+    }
+    AbstractBackupPath path = pathProvider.get();
+    path.parseRemote(summary.getKey());
+    path.setSize(summary.getSize());
+    if ((path.getTime().after(start) && path.getTime().before(till)) || path.getTime().equals(start)) {
+      logger.debug("Added key {}", summary.getKey());
+      return path;
     }
-    return iterator.hasNext();
+    return null;
   }
 
-  private Iterator<AbstractBackupPath> createIterator() {
-    List<AbstractBackupPath> temp = Lists.newArrayList();
-    for (S3ObjectSummary summary : objectListing.getObjectSummaries()) {
-      AbstractBackupPath path = pathProvider.get();
-      path.parseRemote(summary.getKey());
-      logger.debug("New key " + summary.getKey() + " path = " + path.getRemotePath() + " " + start + " end: " + till + " my " + path.getTime());
-      if ((path.getTime().after(start) && path.getTime().before(till)) || path.getTime().equals(start)) {
-        temp.add(path);
-        logger.debug("Added key " + summary.getKey());
+  /**
+   * @return the date element of the key, or null if the key has none
+   */
+  private static String dateOf(String key) {
+    int from = 0;
+    int element = 0;
+    for (int i = 0; i <= key.length(); i++) {
+      if (i == key.length() || key.charAt(i) == S3BackupPath.PATH_SEP) {
+        // empty elements are not counted, as in parseRemote
+        if (i > from && element++ == DATE_ELEMENT)
+          return key.substring(from, i);
+        from = i + 1;
       }
     }
-    return temp.iterator();
+    return null;
   }
 
-  @Override
-  public AbstractBackupPath next() {
-    return iterator.next();
+  private void prefetch() {
+    if (prefetcher == null || !objectListing.isTruncated())
+      return;
+    final ObjectListing current = objectListing;
+    nextListing = prefetcher.submit(new Callable<ObjectListing>() {
+      @Override
+      public ObjectListing call() throws Exception {
+        return s3Client.listNextBatchOfObjects(current);
+      }
+    });
+  }
+
+  private ObjectListing nextListing() {
+    if (nextListing == null)
+      return s3Client.listNextBatchOfObjects(objectListing);
+    try {
+      return nextListing.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      nextListing = null;
+    }
+  }
+
+  private void finish() {
+    done = true;
+    if (nextListing != null) {
+      nextListing.cancel(true);
+      nextListing = null;
+    }
   }
 
   @Override
@@ -20,19 +20,39 @@ import c3.ops.priam.ICredential;
 import c3.ops.priam.backup.AbstractBackupPath;
 import c3.ops.priam.backup.BackupRestoreException;
 import c3.ops.priam.backup.IBackupFileSystem;
+import c3.ops.priam.backup.ParallelRangeReadInputStream;
 import c3.ops.priam.backup.RangeReadInputStream;
+import c3.ops.priam.backup.RestoreFileSink;
+import c3.ops.priam.backup.RestoreThrottle;
+import c3.ops.priam.backup.UploadThrottle;
+import c3.ops.priam.compress.CompressionRegistry;
 import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.ParallelChunkedStream;
+import c3.ops.priam.compress.ParallelFramedDecoder;
 import c3.ops.priam.scheduler.BlockingSubmitThreadPoolExecutor;
+import c3.ops.priam.scheduler.NamedThreadPoolExecutor;
+import c3.ops.priam.scheduler.TaskGroup;
+import c3.ops.priam.utils.BufferPool;
+import c3.ops.priam.utils.SystemUtils;
+import c3.ops.priam.utils.ThrottledInputStream;
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.S3ResponseMetadata;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration;
 import com.amazonaws.services.s3.model.BucketLifecycleConfiguration.Rule;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
-import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Longs;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -44,12 +64,19 @@ import org.slf4j.LoggerFactory;
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -63,29 +90,95 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
   private static final int MAX_CHUNKS = 10000;
   private static final long UPLOAD_TIMEOUT = (2 * 60 * 60 * 1000L);
   private static final long MAX_BUFFERED_IN_STREAM_SIZE = 5 * 1024 * 1024;
+  private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+  private static final int LIST_PREFETCH_THREADS = 4;
+  private static final int TOKEN_PROBE_THREADS = 16;
+  // largest object a single copy request can copy
+  private static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024;
+  private static final long COPY_PART_SIZE = 512L * 1024 * 1024;
+  /**
+   * Object metadata holding the size of the file before compression, used to
+   * preallocate it on restore
+   */
+  static final String RAW_LENGTH_KEY = "raw-length";
 
 
   private final Provider<AbstractBackupPath> pathProvider;
-  private final ICompression compress;
+  private final CompressionRegistry codecs;
   private final IConfiguration config;
   private final AmazonS3Client s3Client;
+  private final S3UploadSessions sessions;
+  private final UploadThrottle throttle;
+  private final RestoreThrottle restoreThrottle;
   private BlockingSubmitThreadPoolExecutor executor;
-  private RateLimiter rateLimiter;
+  private BufferPool partBuffers;
+  private NamedThreadPoolExecutor compressExecutor;
+  private int compressThreads;
+  private BlockingQueue<ParallelChunkedStream.Buffers> compressBuffers;
+  private NamedThreadPoolExecutor decodeExecutor;
+  private ParallelFramedDecoder decoder;
+  private NamedThreadPoolExecutor rangeExecutor;
+  private NamedThreadPoolExecutor listExecutor;
+  private NamedThreadPoolExecutor probeExecutor;
+  private final TokenDates tokenDates = new TokenDates();
+  private BufferPool rangeBuffers;
   private AtomicLong bytesDownloaded = new AtomicLong();
+  private AtomicLong bytesDownloadBuffered = new AtomicLong();
+  private AtomicInteger rangeDownloadCount = new AtomicInteger();
+  private AtomicInteger parallelDecodeCount = new AtomicInteger();
   private AtomicLong bytesUploaded = new AtomicLong();
   private AtomicInteger uploadCount = new AtomicInteger();
+  private AtomicInteger singlePutCount = new AtomicInteger();
+  private AtomicInteger copyCount = new AtomicInteger();
   private AtomicInteger downloadCount = new AtomicInteger();
 
   @Inject
-  public S3FileSystem(Provider<AbstractBackupPath> pathProvider, ICompression compress, final IConfiguration config, ICredential cred) {
+  public S3FileSystem(Provider<AbstractBackupPath> pathProvider, CompressionRegistry codecs, final IConfiguration config, ICredential cred,
+                      S3UploadSessions sessions, UploadThrottle throttle, RestoreThrottle restoreThrottle) {
     this.pathProvider = pathProvider;
-    this.compress = compress;
+    this.throttle = throttle;
+    this.restoreThrottle = restoreThrottle;
+    this.sessions = sessions;
+    this.codecs = codecs;
     this.config = config;
     int threads = config.getMaxBackupUploadThreads();
     LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(threads);
     this.executor = new BlockingSubmitThreadPoolExecutor(threads, queue, UPLOAD_TIMEOUT);
-    double throttleLimit = config.getUploadThrottle();
-    rateLimiter = RateLimiter.create(throttleLimit < 1 ? Double.MAX_VALUE : throttleLimit);
+    // One buffer per upload thread plus the one being filled by the compressor. Heap
+    // buffers, so the compressor writes each part in place.
+    int partBufferSize = (int) (config.getBackupChunkSize() + ICompression.MAX_CHUNK_OVERHEAD);
+    this.compressThreads = config.getBackupCompressionThreads();
+    if (compressThreads > 1) {
+      // Compression for all concurrent uploads shares one pool
+      this.compressExecutor = new NamedThreadPoolExecutor(compressThreads, "BackupCompressor");
+      partBufferSize = (int) (config.getBackupChunkSize() + ParallelChunkedStream.MAX_OVERHEAD);
+      // Block buffers for each file uploaded at once, reused from file to file
+      int files = Math.max(1, config.getBackupFileConcurrency());
+      this.compressBuffers = new ArrayBlockingQueue<ParallelChunkedStream.Buffers>(files);
+      for (int i = 0; i < files; i++)
+        compressBuffers.add(new ParallelChunkedStream.Buffers(compressThreads));
+    }
+    this.partBuffers = new BufferPool(threads + 1, partBufferSize, false);
+    int decodeThreads = config.getRestoreDecompressionThreads();
+    if (decodeThreads > 1) {
+      // Decompression for all concurrent downloads shares one pool
+      this.decodeExecutor = new NamedThreadPoolExecutor(decodeThreads, "RestoreDecompressor");
+      this.decoder = new ParallelFramedDecoder(decodeExecutor, decodeThreads);
+    }
+    // Lists the date prefixes of file listings, and the next page of each
+    // prefix while the current one is read
+    this.listExecutor = new NamedThreadPoolExecutor(LIST_PREFETCH_THREADS, "S3ListPrefetch");
+    listExecutor.allowCoreThreadTimeOut(true);
+    // Checks which tokens have backups for a date when choosing one to restore
+    this.probeExecutor = new NamedThreadPoolExecutor(TOKEN_PROBE_THREADS, "S3TokenProbe");
+    probeExecutor.allowCoreThreadTimeOut(true);
+    int rangeParallelism = config.getDownloadRangeParallelism();
+    if (rangeParallelism > 1) {
+      // Ranges for all concurrent downloads share one pool and one set of buffers
+      int rangeThreads = config.getMaxBackupDownloadThreads() * rangeParallelism;
+      this.rangeExecutor = new NamedThreadPoolExecutor(rangeThreads, "S3RangeDownloader");
+      this.rangeBuffers = new BufferPool(rangeThreads, (int) config.getDownloadRangeSize(), true);
+    }
 
     MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
     String mbeanName = MBEAN_NAME;
@@ -122,61 +215,269 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
       logger.info("Downloading " + path.getRemotePath());
       downloadCount.incrementAndGet();
       final AmazonS3 client = getS3Client();
-      long contentLen = client.getObjectMetadata(getPrefix(), path.getRemotePath()).getContentLength();
+      ObjectMetadata metadata = client.getObjectMetadata(getPrefix(), path.getRemotePath());
+      long contentLen = metadata.getContentLength();
       path.setSize(contentLen);
-      RangeReadInputStream rris = new RangeReadInputStream(client, getPrefix(), path);
-      final long bufSize = MAX_BUFFERED_IN_STREAM_SIZE > contentLen ? contentLen : MAX_BUFFERED_IN_STREAM_SIZE;
-      compress.decompressAndClose(new BufferedInputStream(rris, (int) bufSize), os);
+      ICompression compress = codecs.forObject(metadata.getUserMetadata().get(CompressionRegistry.METADATA_KEY));
+      Long rawLength = Longs.tryParse(Strings.nullToEmpty(metadata.getUserMetadata().get(RAW_LENGTH_KEY)));
+      if (rawLength != null && os instanceof RestoreFileSink)
+        ((RestoreFileSink) os).preallocate(rawLength);
+      if (rangeExecutor != null && contentLen > config.getDownloadRangeSize()) {
+        rangeDownloadCount.incrementAndGet();
+        InputStream pris = new ParallelRangeReadInputStream(client, getPrefix(), path, rangeExecutor, rangeBuffers,
+            (int) config.getDownloadRangeSize(), config.getDownloadRangeParallelism(), bytesDownloadBuffered);
+        decompress(compress, new BufferedInputStream(throttled(pris), DECODE_BUFFER_SIZE), os);
+      } else {
+        RangeReadInputStream rris = new RangeReadInputStream(client, getPrefix(), path);
+        final long bufSize = MAX_BUFFERED_IN_STREAM_SIZE > contentLen ? contentLen : MAX_BUFFERED_IN_STREAM_SIZE;
+        decompress(compress, new BufferedInputStream(throttled(rris), (int) bufSize), os);
+      }
       bytesDownloaded.addAndGet(contentLen);
     } catch (Exception e) {
       throw new BackupRestoreException(e.getMessage(), e);
     }
   }
 
+  private InputStream throttled(InputStream in) {
+    return new ThrottledInputStream(in, restoreThrottle.getDownloadLimiter());
+  }
+
+  /**
+   * Decompress on the shared pool when the object is in the snappy framing
+   * format and the destination takes positional writes, otherwise as one
+   * stream on this thread. Closes both streams.
+   */
+  private void decompress(ICompression compress, BufferedInputStream in, OutputStream os) throws IOException {
+    if (decoder == null || !(os instanceof ParallelFramedDecoder.Sink) || !ParallelFramedDecoder.isFramed(in)) {
+      compress.decompressAndClose(in, os);
+      return;
+    }
+    try {
+      decoder.decompress(in, (ParallelFramedDecoder.Sink) os);
+      os.close();
+      parallelDecodeCount.incrementAndGet();
+    } finally {
+      IOUtils.closeQuietly(os);
+    }
+  }
+
   @Override
   public void upload(AbstractBackupPath path, InputStream in) throws BackupRestoreException {
     uploadCount.incrementAndGet();
+    String codec = config.getCompressionCodec(path.getType().name());
+    ICompression compress;
+    try {
+      compress = codecs.get(codec);
+    } catch (IllegalArgumentException e) {
+      IOUtils.closeQuietly(in);
+      throw new BackupRestoreException(e.getMessage(), e);
+    }
+    if (path.getSize() > 0 && path.getSize() <= config.getSinglePutThreshold()) {
+      uploadSingle(path, in, codec, compress);
+      return;
+    }
     AmazonS3 s3Client = getS3Client();
-    InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(config.getBackupPrefix(), path.getRemotePath());
-    InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
-    DataPart part = new DataPart(config.getBackupPrefix(), path.getRemotePath(), initResponse.getUploadId());
-    List<PartETag> partETags = Lists.newArrayList();
+    String bucket = config.getBackupPrefix();
+    String key = path.getRemotePath();
+    // Only files of known size can be matched with an earlier attempt
+    boolean resumable = path.getSize() > 0;
+    S3UploadSessions.Session session = resumable ? sessions.resume(s3Client, bucket, key, path.getSize(), codec) : null;
+    if (session == null) {
+      InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(bucket, key, codecMetadata(codec, path.getSize()));
+      InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
+      session = sessions.start(bucket, key, initResponse.getUploadId(), resumable ? path.getSize() : -1, codec);
+      if (logger.isDebugEnabled()) {
+        final S3ResponseMetadata responseMetadata = s3Client.getCachedResponseMetadata(initRequest);
+        final String requestId = responseMetadata.getRequestId(); // "x-amz-request-id" header
+        final String hostId = responseMetadata.getHostId(); // "x-amz-id-2" header
+        logger.debug("S3 AWS x-amz-request-id[" + requestId + "], and x-amz-id-2[" + hostId + "]");
+      }
+    }
+    DataPart part = new DataPart(bucket, key, session.getUploadId());
+    List<PartETag> partETags = Collections.synchronizedList(Lists.newArrayList(session.getPartETags()));
     long chunkSize = config.getBackupChunkSize();
     if (path.getSize() > 0)
       chunkSize = (path.getSize() / chunkSize >= MAX_CHUNKS) ? (path.getSize() / (MAX_CHUNKS - 1)) : chunkSize;
-    logger.info(String.format("Uploading to %s/%s with chunk size %d", config.getBackupPrefix(), path.getRemotePath(), chunkSize));
+    logger.info(String.format("Uploading to %s/%s with chunk size %d", bucket, key, chunkSize));
+    ParallelChunkedStream.Buffers blocks = null;
     try {
-      Iterator<byte[]> chunks = compress.compress(in, chunkSize);
-      // Upload parts.
-      int partNum = 0;
+      long offset = session.getSourceOffset();
+      int partNum = partETags.size();
+      if (offset > 0) {
+        logger.info(String.format("Skipping %d bytes already uploaded in %d parts of %s/%s", offset, partNum, bucket, key));
+        skipFully(in, offset);
+      }
+      // Each chunk covers exactly the source bytes read to produce it
+      CountingInputStream source = new CountingInputStream(in);
+      ParallelChunkedStream parallel = null;
+      Iterator<ByteBuffer> chunks;
+      // Uploads beyond the file concurrency, such as commit logs during a
+      // snapshot, compress on this thread
+      blocks = compressBuffers != null ? compressBuffers.poll() : null;
+      if (blocks != null)
+        chunks = parallel = new ParallelChunkedStream(compress, source, chunkSize, partBuffers, compressExecutor, blocks);
+      else
+        chunks = compress.compress(source, chunkSize, partBuffers);
+      // Upload parts. Each part's buffer is released by its uploader.
+      TaskGroup parts = new TaskGroup();
       while (chunks.hasNext()) {
-        byte[] chunk = chunks.next();
-        rateLimiter.acquire(chunk.length);
-        DataPart dp = new DataPart(++partNum, chunk, config.getBackupPrefix(), path.getRemotePath(), initResponse.getUploadId());
-        S3PartUploader partUploader = new S3PartUploader(s3Client, dp, partETags);
-        executor.submit(partUploader);
-        bytesUploaded.addAndGet(chunk.length);
+        ByteBuffer chunk = chunks.next();
+        int chunkLength = chunk.remaining();
+        // The parallel compressor reads ahead of the chunks it has handed out
+        long chunkEnd = session.getSourceOffset() + (parallel != null ? parallel.getBytesConsumed() : source.getCount());
+        DataPart dp = new DataPart(++partNum, chunk, partBuffers, bucket, key, session.getUploadId());
+        try {
+          throttle.acquire(chunkLength);
+          executor.submit(parts, new RecordingPartUploader(s3Client, dp, partETags, session, offset, chunkEnd - offset));
+        } catch (RuntimeException e) {
+          dp.release();
+          throw e;
+        }
+        offset = chunkEnd;
+        bytesUploaded.addAndGet(chunkLength);
       }
-      executor.sleepTillEmpty();
+      parts.await(UPLOAD_TIMEOUT);
       if (partNum != partETags.size())
         throw new BackupRestoreException("Number of parts(" + partNum + ")  does not match the uploaded parts(" + partETags.size() + ")");
       new S3PartUploader(s3Client, part, partETags).completeUpload();
-
-      if (logger.isDebugEnabled()) {
-        final S3ResponseMetadata responseMetadata = s3Client.getCachedResponseMetadata(initRequest);
-        final String requestId = responseMetadata.getRequestId(); // "x-amz-request-id" header
-        final String hostId = responseMetadata.getHostId(); // "x-amz-id-2" header
-        logger.debug("S3 AWS x-amz-request-id[" + requestId + "], and x-amz-id-2[" + hostId + "]");
+      sessions.finish(session);
+    } catch (Exception e) {
+      // A resumable upload is kept so the next attempt continues where this one stopped
+      if (!resumable) {
+        new S3PartUploader(s3Client, part, partETags).abortUpload();
+        sessions.finish(session);
       }
+      throw new BackupRestoreException("Error uploading file " + path.getFileName(), e);
+    } finally {
+      IOUtils.closeQuietly(in);
+      // A failed upload may leave buffers with the workers; its set is replaced
+      if (blocks != null)
+        compressBuffers.add(blocks.isIdle() ? blocks : new ParallelChunkedStream.Buffers(compressThreads));
+    }
+  }
+
+  private static void skipFully(InputStream in, long count) throws IOException {
+    while (count > 0) {
+      long skipped = in.skip(count);
+      if (skipped <= 0)
+        throw new IOException("Source ended " + count + " bytes before the resume offset");
+      count -= skipped;
+    }
+  }
+
+  /**
+   * Part uploader that records the part in the upload session once S3 has it.
+   */
+  private static class RecordingPartUploader extends S3PartUploader {
+    private final S3UploadSessions.Session session;
+    private final int partNo;
+    private final String etag;
+    private final long sourceOffset;
+    private final long sourceLength;
 
+    RecordingPartUploader(AmazonS3 client, DataPart dp, List<PartETag> partETags, S3UploadSessions.Session session,
+                          long sourceOffset, long sourceLength) {
+      super(client, dp, partETags);
+      this.session = session;
+      this.partNo = dp.getPartNo();
+      this.etag = SystemUtils.toHex(dp.getMd5());
+      this.sourceOffset = sourceOffset;
+      this.sourceLength = sourceLength;
+    }
+
+    @Override
+    public Void call() throws Exception {
+      super.call();
+      session.partDone(partNo, etag, sourceOffset, sourceLength);
+      return null;
+    }
+  }
+
+  /**
+   * Compress a small file in memory and upload it with one PUT, saving the
+   * initiate and complete round trips of a multipart upload.
+   */
+  private void uploadSingle(AbstractBackupPath path, InputStream in, String codec, ICompression compress) throws BackupRestoreException {
+    try {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) path.getSize());
+      Iterator<ByteBuffer> chunks = compress.compress(in, config.getBackupChunkSize(), partBuffers);
+      while (chunks.hasNext()) {
+        ByteBuffer chunk = chunks.next();
+        try {
+          Channels.newChannel(compressed).write(chunk);
+        } finally {
+          partBuffers.release(chunk);
+        }
+      }
+      byte[] data = compressed.toByteArray();
+      logger.info(String.format("Uploading to %s/%s with a single PUT of %d bytes", config.getBackupPrefix(), path.getRemotePath(), data.length));
+      throttle.acquire(data.length);
+      new S3SingleUploader(getS3Client(), config.getBackupPrefix(), path.getRemotePath(), data, codecMetadata(codec, path.getSize())).call();
+      singlePutCount.incrementAndGet();
+      bytesUploaded.addAndGet(data.length);
     } catch (Exception e) {
-      new S3PartUploader(s3Client, part, partETags).abortUpload();
       throw new BackupRestoreException("Error uploading file " + path.getFileName(), e);
     } finally {
       IOUtils.closeQuietly(in);
     }
   }
 
+  /**
+   * Metadata recording the codec an object is compressed with, so it is read
+   * back with the same one, and its size before compression when known.
+   */
+  private static ObjectMetadata codecMetadata(String codec, long rawLength) {
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.addUserMetadata(CompressionRegistry.METADATA_KEY, codec);
+    if (rawLength > 0)
+      metadata.addUserMetadata(RAW_LENGTH_KEY, Long.toString(rawLength));
+    return metadata;
+  }
+
+  /**
+   * Copy within the bucket without transferring the data. Objects too large
+   * for one copy request are copied in parts.
+   */
+  @Override
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException {
+    String bucket = config.getBackupPrefix();
+    try {
+      AmazonS3 s3Client = getS3Client();
+      ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, from.getRemotePath());
+      if (metadata.getContentLength() <= MAX_SINGLE_COPY_SIZE)
+        s3Client.copyObject(new CopyObjectRequest(bucket, from.getRemotePath(), bucket, to.getRemotePath()));
+      else
+        copyParts(s3Client, bucket, from.getRemotePath(), to.getRemotePath(), metadata);
+      copyCount.incrementAndGet();
+      logger.info("Copied {} to {}", from.getRemotePath(), to.getRemotePath());
+    } catch (AmazonClientException e) {
+      throw new BackupRestoreException("Error copying " + from.getRemotePath() + " to " + to.getRemotePath(), e);
+    }
+  }
+
+  private void copyParts(AmazonS3 s3Client, String bucket, String source, String target, ObjectMetadata sourceMetadata) {
+    // a multipart upload does not carry over the source's metadata by itself
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setUserMetadata(sourceMetadata.getUserMetadata());
+    String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, target, metadata)).getUploadId();
+    try {
+      List<PartETag> partETags = Lists.newArrayList();
+      long size = sourceMetadata.getContentLength();
+      for (long firstByte = 0; firstByte < size; firstByte += COPY_PART_SIZE) {
+        CopyPartRequest part = new CopyPartRequest()
+            .withSourceBucketName(bucket).withSourceKey(source)
+            .withDestinationBucketName(bucket).withDestinationKey(target)
+            .withUploadId(uploadId).withPartNumber(partETags.size() + 1)
+            .withFirstByte(firstByte).withLastByte(Math.min(firstByte + COPY_PART_SIZE, size) - 1);
+        partETags.add(s3Client.copyPart(part).getPartETag());
+      }
+      s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, target, uploadId, partETags));
+    } catch (AmazonClientException e) {
+      s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, target, uploadId));
+      throw e;
+    }
+  }
+
   @Override
   public int getActivecount() {
     return executor.getActiveCount();
@@ -184,12 +485,12 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
 
   @Override
   public Iterator<AbstractBackupPath> list(String path, Date start, Date till) {
-    return new S3FileIterator(pathProvider, getS3Client(), path, start, till);
+    return new S3ShardedFileIterator(pathProvider, getS3Client(), path, start, till, listExecutor, LIST_PREFETCH_THREADS);
   }
 
   @Override
   public Iterator<AbstractBackupPath> listPrefixes(Date date) {
-    return new S3PrefixIterator(config, pathProvider, getS3Client(), date);
+    return new S3PrefixIterator(config, pathProvider, getS3Client(), date, probeExecutor, tokenDates);
   }
 
   /**
@@ -199,6 +500,7 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
   @Override
   public void cleanup() {
     AmazonS3 s3Client = getS3Client();
+    sessions.abortStale(s3Client);
     String clusterPath = pathProvider.get().clusterPrefix("");
     BucketLifecycleConfiguration lifeConfig = s3Client.getBucketLifecycleConfiguration(config.getBackupPrefix());
     if (lifeConfig == null) {
@@ -268,6 +570,14 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
   public void shutdown() {
     if (executor != null)
       executor.shutdown();
+    if (compressExecutor != null)
+      compressExecutor.shutdown();
+    if (decodeExecutor != null)
+      decodeExecutor.shutdown();
+    if (rangeExecutor != null)
+      rangeExecutor.shutdown();
+    listExecutor.shutdown();
+    probeExecutor.shutdown();
   }
 
   @Override
@@ -280,6 +590,16 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
     return uploadCount.get();
   }
 
+  @Override
+  public int singlePutCount() {
+    return singlePutCount.get();
+  }
+
+  @Override
+  public int copyCount() {
+    return copyCount.get();
+  }
+
   @Override
   public long bytesUploaded() {
     return bytesUploaded.get();
@@ -290,6 +610,51 @@ public class S3FileSystem implements IBackupFileSystem, S3FileSystemMBean {
     return bytesDownloaded.get();
   }
 
+  @Override
+  public int rangeDownloadCount() {
+    return rangeDownloadCount.get();
+  }
+
+  @Override
+  public long getUploadRate() {
+    return throttle.getRate();
+  }
+
+  @Override
+  public void setUploadThrottle(long bytesPerSecond) {
+    throttle.setOverride(bytesPerSecond);
+  }
+
+  @Override
+  public long getDownloadRate() {
+    return restoreThrottle.getDownloadRate();
+  }
+
+  @Override
+  public void setDownloadThrottle(long bytesPerSecond) {
+    restoreThrottle.setDownloadRate(bytesPerSecond);
+  }
+
+  @Override
+  public long getRestoreWriteRate() {
+    return restoreThrottle.getWriteRate();
+  }
+
+  @Override
+  public void setRestoreWriteThrottle(long bytesPerSecond) {
+    restoreThrottle.setWriteRate(bytesPerSecond);
+  }
+
+  @Override
+  public int parallelDecodeCount() {
+    return parallelDecodeCount.get();
+  }
+
+  @Override
+  public long bytesDownloadBuffered() {
+    return bytesDownloadBuffered.get();
+  }
+
   /**
    * This method does exactly as other download method.(Supposed to be overridden)
    * filePath parameter provides the diskPath of the downloaded file.
@@ -22,9 +22,59 @@ public interface S3FileSystemMBean {
 
   public int uploadCount();
 
+  /**
+   * Number of files uploaded with a single PUT instead of a multipart upload
+   */
+  public int singlePutCount();
+
+  /**
+   * Number of files stored by copying an identical object within the bucket
+   */
+  public int copyCount();
+
   public int getActivecount();
 
   public long bytesUploaded();
 
   public long bytesDownloaded();
+
+  /**
+   * Rate backup uploads are currently held to, in bytes per second, 0 if unlimited
+   */
+  public long getUploadRate();
+
+  /**
+   * Pin the upload rate ceiling in bytes per second, 0 for unlimited, or go
+   * back to the configured schedule with a negative rate
+   */
+  public void setUploadThrottle(long bytesPerSecond);
+
+  /**
+   * Rate restore downloads are held to, in bytes per second, 0 if unlimited
+   */
+  public long getDownloadRate();
+
+  public void setDownloadThrottle(long bytesPerSecond);
+
+  /**
+   * Rate restored files are written to disk at, in bytes per second, 0 if unlimited
+   */
+  public long getRestoreWriteRate();
+
+  public void setRestoreWriteThrottle(long bytesPerSecond);
+
+  /**
+   * Number of files downloaded with parallel ranged GETs
+   */
+  public int rangeDownloadCount();
+
+  /**
+   * Number of files decompressed in parallel straight into the restored file
+   */
+  public int parallelDecodeCount();
+
+  /**
+   * Bytes fetched by ranged GETs and waiting in reorder buffers to be decompressed
+   */
+  public long bytesDownloadBuffered();
 }
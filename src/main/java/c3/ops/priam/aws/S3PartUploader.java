@@ -24,7 +24,6 @@ import com.amazonaws.services.s3.model.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayInputStream;
 import java.util.List;
 
 public class S3PartUploader extends RetryableCallable<Void> {
@@ -47,9 +46,9 @@ public class S3PartUploader extends RetryableCallable<Void> {
     req.setKey(dataPart.getS3key());
     req.setUploadId(dataPart.getUploadID());
     req.setPartNumber(dataPart.getPartNo());
-    req.setPartSize(dataPart.getPartData().length);
+    req.setPartSize(dataPart.getPartSize());
     req.setMd5Digest(SystemUtils.toBase64(dataPart.getMd5()));
-    req.setInputStream(new ByteArrayInputStream(dataPart.getPartData()));
+    req.setInputStream(dataPart.getPartStream());
     UploadPartResult res = client.uploadPart(req);
     PartETag partETag = res.getPartETag();
     if (!partETag.getETag().equals(SystemUtils.toHex(dataPart.getMd5())))
@@ -71,7 +70,18 @@ public class S3PartUploader extends RetryableCallable<Void> {
 
   @Override
   public Void retriableCall() throws AmazonClientException, BackupRestoreException {
-    logger.debug("Picked up part " + dataPart.getPartNo() + " size " + dataPart.getPartData().length);
+    logger.debug("Picked up part " + dataPart.getPartNo() + " size " + dataPart.getPartSize());
     return uploadPart();
   }
+
+  @Override
+  public Void call() throws Exception {
+    try {
+      return super.call();
+    } finally {
+      // The part buffer goes back to the pool once all attempts are over.
+      if (dataPart != null)
+        dataPart.release();
+    }
+  }
 }
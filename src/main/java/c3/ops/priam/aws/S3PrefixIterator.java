@@ -21,6 +21,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import org.apache.commons.lang3.StringUtils;
@@ -31,11 +32,18 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class to iterate over prefixes (S3 Common prefixes) upto
  * the token element in the path. The abstract path generated by this class
  * is partial (does not have all data).
+ * <p>
+ * Each token is checked for backups on the date by listing at most one key.
+ * Given an executor, the tokens of a listing page are checked concurrently,
+ * and tokens already known for the date are not checked again.
  */
 public class S3PrefixIterator implements Iterator<AbstractBackupPath> {
   private static final Logger logger = LoggerFactory.getLogger(S3PrefixIterator.class);
@@ -48,10 +56,23 @@ public class S3PrefixIterator implements Iterator<AbstractBackupPath> {
   private String clusterPath = "";
   private SimpleDateFormat datefmt = new SimpleDateFormat("yyyyMMdd");
   private ObjectListing objectListing;
+  private final ExecutorService prober;
+  private final TokenDates tokenDates;
 
   @Inject
   public S3PrefixIterator(IConfiguration config, Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, Date date) {
+    this(config, pathProvider, s3Client, date, null, new TokenDates());
+  }
+
+  /**
+   * @param prober     checks the tokens concurrently, or null to check them one by one
+   * @param tokenDates dates already known for each token, updated with the checks made
+   */
+  public S3PrefixIterator(IConfiguration config, Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, Date date,
+                          ExecutorService prober, TokenDates tokenDates) {
     this.config = config;
+    this.prober = prober;
+    this.tokenDates = tokenDates;
     this.pathProvider = pathProvider;
     this.s3Client = s3Client;
     this.date = date;
@@ -82,11 +103,29 @@ public class S3PrefixIterator implements Iterator<AbstractBackupPath> {
   private Iterator<AbstractBackupPath> createIterator() {
     if (objectListing == null)
       initListing();
+    final String datestr = datefmt.format(date);
+    List<String> prefixes = objectListing.getCommonPrefixes();
+    List<Future<Boolean>> probes = Lists.newArrayListWithCapacity(prefixes.size());
+    for (final String prefix : prefixes) {
+      Boolean known = tokenDates.exists(bucket + S3BackupPath.PATH_SEP + prefix, datestr);
+      if (known != null) {
+        probes.add(Futures.immediateFuture(known));
+      } else if (prober == null) {
+        probes.add(Futures.immediateFuture(pathExistsForDate(prefix, datestr)));
+      } else {
+        probes.add(prober.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            return pathExistsForDate(prefix, datestr);
+          }
+        }));
+      }
+    }
     List<AbstractBackupPath> temp = Lists.newArrayList();
-    for (String summary : objectListing.getCommonPrefixes()) {
-      if (pathExistsForDate(summary, datefmt.format(date))) {
+    for (int i = 0; i < prefixes.size(); i++) {
+      if (Futures.getUnchecked(probes.get(i))) {
         AbstractBackupPath path = pathProvider.get();
-        path.parsePartialPrefix(summary);
+        path.parsePartialPrefix(prefixes.get(i));
         temp.add(path);
       }
     }
@@ -142,11 +181,13 @@ public class S3PrefixIterator implements Iterator<AbstractBackupPath> {
     // Get list of tokens
     listReq.setBucketName(bucket);
     listReq.setPrefix(tprefix + datestr);
+    // One key is enough to know there are backups
+    listReq.setMaxKeys(1);
     ObjectListing listing;
     listing = s3Client.listObjects(listReq);
-    if (listing.getObjectSummaries().size() > 0)
-      return true;
-    return false;
+    boolean exists = listing.getObjectSummaries().size() > 0;
+    tokenDates.record(bucket + S3BackupPath.PATH_SEP + tprefix, datestr, exists);
+    return exists;
   }
 
 }
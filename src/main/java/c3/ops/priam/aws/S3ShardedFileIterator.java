@@ -0,0 +1,145 @@
+package c3.ops.priam.aws;
+
+import c3.ops.priam.backup.AbstractBackupPath;
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import org.joda.time.DateTime;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lists the backup files of a date range as a set of date prefixes listed
+ * concurrently.
+ * <p>
+ * The common prefix of the start and end dates can be far wider than the
+ * range: 201512311200 to 201601011200 share only "201". The range is instead
+ * covered by the fewest month, day and hour prefixes, in date order. Up to
+ * {@code window} prefixes are listed at once, each by an
+ * {@link S3FileIterator}, and their files are returned prefix by prefix, so
+ * the result stays in key order.
+ */
+public class S3ShardedFileIterator implements Iterator<AbstractBackupPath> {
+  // Past this many prefixes a single listing of the common prefix is cheaper
+  static final int MAX_SHARDS = 512;
+  private static final String MONTH = "yyyyMM";
+  private static final String DAY = "yyyyMMdd";
+  private static final String HOUR = "yyyyMMddHH";
+  private final Provider<AbstractBackupPath> pathProvider;
+  private final AmazonS3 s3Client;
+  private final ExecutorService executor;
+  private final int window;
+  private final String bucket;
+  private final String tokenPrefix;
+  private final Date start;
+  private final Date till;
+  private final Deque<String> pending;
+  private final Deque<Future<S3FileIterator>> inFlight = new ArrayDeque<Future<S3FileIterator>>();
+  private Iterator<AbstractBackupPath> current = Collections.<AbstractBackupPath>emptyIterator();
+
+  public S3ShardedFileIterator(Provider<AbstractBackupPath> pathProvider, AmazonS3 s3Client, String path, Date start, Date till,
+                               ExecutorService executor, int window) {
+    this.pathProvider = pathProvider;
+    this.s3Client = s3Client;
+    this.executor = executor;
+    this.window = Math.max(1, window);
+    this.start = start;
+    this.till = till;
+    AbstractBackupPath prefixPath = pathProvider.get();
+    this.bucket = S3FileIterator.bucket(path);
+    this.tokenPrefix = S3FileIterator.tokenPrefix(prefixPath, path, start, till);
+    List<String> prefixes = datePrefixes(start, till);
+    if (prefixes.isEmpty() || prefixes.size() > MAX_SHARDS)
+      prefixes = Lists.newArrayList(prefixPath.match(start, till));
+    this.pending = new ArrayDeque<String>(prefixes);
+    submit();
+  }
+
+  /**
+   * @return the month, day and hour prefixes covering the dates from start
+   * up to till, in order, or an empty list if till is not after start
+   */
+  public static List<String> datePrefixes(Date start, Date till) {
+    List<String> prefixes = Lists.newArrayList();
+    DateTime cursor = new DateTime(start).withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
+    DateTime end = new DateTime(till);
+    DateTime tillHour = end.withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
+    // The hour holding till is listed unless till starts it
+    end = tillHour.equals(end) ? tillHour : tillHour.plusHours(1);
+    while (cursor.isBefore(end)) {
+      String prefix;
+      if (cursor.getHourOfDay() == 0 && cursor.getDayOfMonth() == 1 && !cursor.plusMonths(1).isAfter(end)) {
+        prefix = cursor.toString(MONTH);
+        cursor = cursor.plusMonths(1);
+      } else if (cursor.getHourOfDay() == 0 && !cursor.plusDays(1).isAfter(end)) {
+        prefix = cursor.toString(DAY);
+        cursor = cursor.plusDays(1);
+      } else {
+        prefix = cursor.toString(HOUR);
+        cursor = cursor.plusHours(1);
+      }
+      // An hour repeated by a daylight saving change is listed once
+      if (prefixes.isEmpty() || !prefixes.get(prefixes.size() - 1).equals(prefix))
+        prefixes.add(prefix);
+    }
+    return prefixes;
+  }
+
+  private void submit() {
+    while (inFlight.size() < window && !pending.isEmpty()) {
+      final String datePrefix = pending.removeFirst();
+      inFlight.addLast(executor.submit(new Callable<S3FileIterator>() {
+        @Override
+        public S3FileIterator call() throws Exception {
+          return new S3FileIterator(pathProvider, s3Client, bucket, tokenPrefix, datePrefix, start, till, executor);
+        }
+      }));
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!current.hasNext()) {
+      if (inFlight.isEmpty())
+        return false;
+      current = next(inFlight.removeFirst());
+      submit();
+    }
+    return true;
+  }
+
+  private S3FileIterator next(Future<S3FileIterator> shard) {
+    try {
+      return shard.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  @Override
+  public AbstractBackupPath next() {
+    if (!hasNext())
+      throw new NoSuchElementException();
+    return current.next();
+  }
+
+  @Override
+  public void remove() {
+    throw new IllegalStateException();
+  }
+}
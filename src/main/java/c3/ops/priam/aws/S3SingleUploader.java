@@ -0,0 +1,60 @@
+package c3.ops.priam.aws;
+
+import c3.ops.priam.backup.BackupRestoreException;
+import c3.ops.priam.utils.RetryableCallable;
+import c3.ops.priam.utils.SystemUtils;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Uploads a small, fully compressed object with a single PUT instead of a
+ * multipart upload. S3 checks the data against the Content-MD5 sent with it.
+ */
+public class S3SingleUploader extends RetryableCallable<Void> {
+  private static final Logger logger = LoggerFactory.getLogger(S3SingleUploader.class);
+  private static final int MAX_RETRIES = 5;
+  private final AmazonS3 client;
+  private final String bucketName;
+  private final String key;
+  private final byte[] data;
+  private final byte[] md5;
+  private final ObjectMetadata baseMetadata;
+
+  public S3SingleUploader(AmazonS3 client, String bucketName, String key, byte[] data) {
+    this(client, bucketName, key, data, new ObjectMetadata());
+  }
+
+  /**
+   * @param metadata user metadata to store with the object
+   */
+  public S3SingleUploader(AmazonS3 client, String bucketName, String key, byte[] data, ObjectMetadata metadata) {
+    super(MAX_RETRIES, RetryableCallable.DEFAULT_WAIT_TIME);
+    this.client = client;
+    this.bucketName = bucketName;
+    this.key = key;
+    this.data = data;
+    this.md5 = SystemUtils.md5(data);
+    this.baseMetadata = metadata;
+  }
+
+  @Override
+  public Void retriableCall() throws AmazonClientException, BackupRestoreException {
+    logger.debug("Putting {} with size {}", key, data.length);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setUserMetadata(baseMetadata.getUserMetadata());
+    metadata.setContentLength(data.length);
+    metadata.setContentMD5(SystemUtils.toBase64(md5));
+    PutObjectRequest req = new PutObjectRequest(bucketName, key, new ByteArrayInputStream(data), metadata);
+    PutObjectResult res = client.putObject(req);
+    if (!SystemUtils.toHex(md5).equals(res.getETag()))
+      throw new BackupRestoreException("Unable to match MD5 for " + key);
+    return null;
+  }
+}
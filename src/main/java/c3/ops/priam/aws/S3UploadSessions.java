@@ -0,0 +1,267 @@
+package c3.ops.priam.aws;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.compress.CompressionRegistry;
+import c3.ops.priam.utils.SystemUtils;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart uploads in progress, kept on local disk so an upload interrupted
+ * by a failure or a restart continues from its first missing part instead of
+ * starting over.
+ * <p>
+ * Each session is a small file under the local state dir: a header line with
+ * the upload ID, source size, key and codec, then one line per completed part with
+ * its number, ETag and the range of the source file it was compressed from.
+ * On resume the parts S3 reports through ListParts are matched against the
+ * local records, and the upload continues after the last contiguous part both
+ * agree on. Sessions left untouched for a day are aborted.
+ */
+@Singleton
+public class S3UploadSessions {
+  private static final Logger logger = LoggerFactory.getLogger(S3UploadSessions.class);
+  private static final String SESSION_DIR = "upload_sessions";
+  private static final long STALE_AFTER = TimeUnit.DAYS.toMillis(1);
+  private final File dir;
+
+  @Inject
+  public S3UploadSessions(IConfiguration config) {
+    this(new File(config.getLocalStateLocation(), SESSION_DIR));
+  }
+
+  public S3UploadSessions(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Start recording a new multipart upload.
+   */
+  public Session start(String bucket, String key, String uploadId, long sourceSize, String codec) {
+    Session session = new Session(sessionFile(key), bucket, key, uploadId, sourceSize, codec);
+    try {
+      Files.createParentDirs(session.file);
+      Files.write(StringUtils.join(new Object[]{uploadId, sourceSize, bucket, key, codec}, '\t') + "\n", session.file, Charsets.UTF_8);
+    } catch (IOException e) {
+      logger.warn("Unable to persist upload session for " + key + ", it cannot be resumed", e);
+    }
+    return session;
+  }
+
+  /**
+   * Pick up an earlier upload of the same source file with the same codec.
+   *
+   * @return the session with the parts that can be kept, or null if there is
+   * nothing to resume
+   */
+  public Session resume(AmazonS3 client, String bucket, String key, long sourceSize, String codec) {
+    File file = sessionFile(key);
+    if (!file.exists())
+      return null;
+    Session session = load(file);
+    if (session == null || !session.bucket.equals(bucket) || !session.key.equals(key) || session.sourceSize != sourceSize
+        || !session.codec.equals(codec)) {
+      logger.info("Discarding upload session of {}, the source or codec has changed", key);
+      discard(client, session, file);
+      return null;
+    }
+    Map<Integer, String> uploaded;
+    try {
+      uploaded = listParts(client, session);
+    } catch (AmazonServiceException e) {
+      logger.info("Upload {} of {} can no longer be resumed: {}", session.uploadId, key, e.getMessage());
+      FileUtils.deleteQuietly(file);
+      return null;
+    }
+    // Keep parts 1..n that S3 has with the ETag we recorded
+    int part = 1;
+    long offset = 0;
+    while (session.records.containsKey(part) && session.records.get(part).etag.equals(uploaded.get(part))) {
+      PartRecord record = session.records.get(part);
+      if (record.offset != offset)
+        break;
+      session.partETags.add(new PartETag(part, record.etag));
+      offset = record.offset + record.length;
+      part++;
+    }
+    session.records.tailMap(part).clear();
+    session.sourceOffset = offset;
+    logger.info("Resuming upload of {} after part {} at source offset {}", key, part - 1, offset);
+    return session;
+  }
+
+  /**
+   * The upload has completed or was aborted; forget it.
+   */
+  public void finish(Session session) {
+    FileUtils.deleteQuietly(session.file);
+  }
+
+  /**
+   * Abort uploads whose sessions have not progressed for a day, typically for
+   * files that no longer exist.
+   */
+  public void abortStale(AmazonS3 client) {
+    File[] files = dir.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      if (System.currentTimeMillis() - file.lastModified() < STALE_AFTER)
+        continue;
+      logger.info("Aborting stale upload session {}", file);
+      discard(client, load(file), file);
+    }
+  }
+
+  private void discard(AmazonS3 client, Session session, File file) {
+    if (session != null) {
+      try {
+        client.abortMultipartUpload(new AbortMultipartUploadRequest(session.bucket, session.key, session.uploadId));
+      } catch (Exception e) {
+        logger.info("Unable to abort upload {} of {}: {}", session.uploadId, session.key, e.getMessage());
+      }
+    }
+    FileUtils.deleteQuietly(file);
+  }
+
+  private Map<Integer, String> listParts(AmazonS3 client, Session session) {
+    Map<Integer, String> parts = Maps.newHashMap();
+    ListPartsRequest req = new ListPartsRequest(session.bucket, session.key, session.uploadId);
+    PartListing listing;
+    do {
+      listing = client.listParts(req);
+      for (PartSummary summary : listing.getParts())
+        parts.put(summary.getPartNumber(), StringUtils.strip(summary.getETag(), "\""));
+      req.setPartNumberMarker(listing.getNextPartNumberMarker());
+    } while (listing.isTruncated());
+    return parts;
+  }
+
+  private Session load(File file) {
+    try {
+      List<String> lines = Files.readLines(file, Charsets.UTF_8);
+      if (lines.isEmpty())
+        return null;
+      String[] header = StringUtils.split(lines.get(0), '\t');
+      if (header.length < 4 || header.length > 5)
+        return null;
+      // Sessions started before the codec was recorded are snappy
+      String codec = header.length == 5 ? header[4] : CompressionRegistry.SNAPPY;
+      Session session = new Session(file, header[2], header[3], header[0], Long.parseLong(header[1]), codec);
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = StringUtils.split(line, '\t');
+        if (fields.length != 4)
+          continue; // torn write of the last record
+        PartRecord record = new PartRecord(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        session.records.put(Integer.parseInt(fields[0]), record);
+      }
+      return session;
+    } catch (Exception e) {
+      logger.warn("Unable to read upload session " + file, e);
+      return null;
+    }
+  }
+
+  private File sessionFile(String key) {
+    return new File(dir, SystemUtils.toHex(SystemUtils.md5(key.getBytes(Charsets.UTF_8))) + ".session");
+  }
+
+  private static class PartRecord {
+    private final String etag;
+    private final long offset;
+    private final long length;
+
+    PartRecord(String etag, long offset, long length) {
+      this.etag = etag;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**
+   * One multipart upload of a source file.
+   */
+  public static class Session {
+    private final File file;
+    private final String bucket;
+    private final String key;
+    private final String uploadId;
+    private final long sourceSize;
+    private final String codec;
+    private final SortedMap<Integer, PartRecord> records = Maps.newTreeMap();
+    private final List<PartETag> partETags = Lists.newArrayList();
+    private long sourceOffset;
+
+    Session(File file, String bucket, String key, String uploadId, long sourceSize, String codec) {
+      this.file = file;
+      this.bucket = bucket;
+      this.key = key;
+      this.uploadId = uploadId;
+      this.sourceSize = sourceSize;
+      this.codec = codec;
+    }
+
+    public String getUploadId() {
+      return uploadId;
+    }
+
+    /**
+     * @return parts kept from an earlier attempt
+     */
+    public List<PartETag> getPartETags() {
+      return partETags;
+    }
+
+    /**
+     * @return offset in the source file the upload continues from
+     */
+    public long getSourceOffset() {
+      return sourceOffset;
+    }
+
+    /**
+     * Record a part that S3 has accepted, compressed from the given range of
+     * the source file.
+     */
+    public synchronized void partDone(int partNo, String etag, long offset, long length) {
+      records.put(partNo, new PartRecord(etag, offset, length));
+      if (!file.exists())
+        return;
+      try {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), Charsets.UTF_8);
+        try {
+          writer.write(StringUtils.join(new Object[]{partNo, etag, offset, length}, '\t') + "\n");
+        } finally {
+          writer.close();
+        }
+      } catch (IOException e) {
+        logger.warn("Unable to record part " + partNo + " of " + key, e);
+      }
+    }
+  }
+}
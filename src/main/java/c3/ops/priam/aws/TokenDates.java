@@ -0,0 +1,66 @@
+package c3.ops.priam.aws;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dates each token prefix is known to have backups for, as found by probing
+ * S3. Both answers are only trusted for a while: a date found empty is probed
+ * again since backups for it may still be written, and a date with backups
+ * is probed again since they may have been expired or cleaned up since.
+ */
+public class TokenDates {
+  private static final long MISSING_TTL = TimeUnit.MINUTES.toMillis(10);
+  private static final long AVAILABLE_TTL = TimeUnit.HOURS.toMillis(1);
+  private final ConcurrentMap<String, ConcurrentMap<String, Long>> available = new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+  private final ConcurrentMap<String, Long> missing = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * @return true or false if known whether the token prefix has backups for
+   * the date, null if it has to be probed
+   */
+  public Boolean exists(String tokenPrefix, String date) {
+    long now = currentTimeMillis();
+    ConcurrentMap<String, Long> dates = available.get(tokenPrefix);
+    if (dates != null) {
+      Long found = dates.get(date);
+      if (found != null) {
+        if (now - found < AVAILABLE_TTL)
+          return true;
+        dates.remove(date, found);
+      }
+    }
+    Long checked = missing.get(tokenPrefix + date);
+    if (checked != null) {
+      if (now - checked < MISSING_TTL)
+        return false;
+      missing.remove(tokenPrefix + date, checked);
+    }
+    return null;
+  }
+
+  public void record(String tokenPrefix, String date, boolean exists) {
+    long now = currentTimeMillis();
+    if (exists) {
+      ConcurrentMap<String, Long> dates = available.get(tokenPrefix);
+      if (dates == null) {
+        ConcurrentMap<String, Long> created = new ConcurrentHashMap<String, Long>();
+        dates = available.putIfAbsent(tokenPrefix, created);
+        if (dates == null)
+          dates = created;
+      }
+      dates.put(date, now);
+      missing.remove(tokenPrefix + date);
+    } else {
+      ConcurrentMap<String, Long> dates = available.get(tokenPrefix);
+      if (dates != null)
+        dates.remove(date);
+      missing.put(tokenPrefix + date, now);
+    }
+  }
+
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
@@ -18,9 +18,12 @@ package c3.ops.priam.backup;
 import c3.ops.priam.IConfiguration;
 import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
 import c3.ops.priam.scheduler.Task;
+import c3.ops.priam.utils.Md5InputStream;
 import c3.ops.priam.utils.RetryableCallable;
+import c3.ops.priam.utils.SystemUtils;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import org.slf4j.Logger;
@@ -28,8 +31,11 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Abstract Backup class for uploading files to backup location
@@ -40,12 +46,17 @@ public abstract class AbstractBackup extends Task {
   protected final Map<String, List<String>> FILTER_COLUMN_FAMILY = ImmutableMap.of("system", Arrays.asList("local", "peers", "LocationInfo"));
   protected final Provider<AbstractBackupPath> pathFactory;
   protected final IBackupFileSystem fs;
+  protected final BackupUploadScheduler scheduler;
+  protected final UploadLedger ledger;
 
   @Inject
-  public AbstractBackup(IConfiguration config, IBackupFileSystem fs, Provider<AbstractBackupPath> pathFactory) {
+  public AbstractBackup(IConfiguration config, IBackupFileSystem fs, Provider<AbstractBackupPath> pathFactory,
+                        BackupUploadScheduler scheduler, UploadLedger ledger) {
     super(config);
     this.pathFactory = pathFactory;
     this.fs = fs;
+    this.scheduler = scheduler;
+    this.ledger = ledger;
   }
 
   /**
@@ -58,42 +69,99 @@ public abstract class AbstractBackup extends Task {
    * @throws Exception
    */
   protected List<AbstractBackupPath> upload(File parent, final BackupFileType type) throws Exception {
-    final List<AbstractBackupPath> bps = Lists.newArrayList();
-    for (final File file : parent.listFiles()) {
+    return upload(Collections.singletonList(parent), type).get(parent);
+  }
 
-      try {
+  /**
+   * Upload the files of several dirs at once. Files of all dirs are handed to
+   * the shared upload scheduler up front, so they upload concurrently. Does
+   * not delete the file in case of error
+   *
+   * @param dirs Parent dirs
+   * @param type Type of file (META, SST, SNAP etc)
+   * @return uploaded files of each dir, in the order of dirs
+   */
+  protected Map<File, List<AbstractBackupPath>> upload(List<File> dirs, final BackupFileType type) throws Exception {
+    Map<File, Map<File, Future<AbstractBackupPath>>> pending = Maps.newLinkedHashMap();
+    for (final File parent : dirs) {
+      Map<File, Future<AbstractBackupPath>> futures = Maps.newLinkedHashMap();
+      pending.put(parent, futures);
+      for (final File file : parent.listFiles()) {
         logger.info(String.format("Uploading file %s within CF %s for backup", file.getCanonicalFile(), parent.getAbsolutePath()));
-        AbstractBackupPath abp = new RetryableCallable<AbstractBackupPath>(3, RetryableCallable.DEFAULT_WAIT_TIME) {
+        futures.put(file, scheduler.submit(file, new RetryableCallable<AbstractBackupPath>(3, RetryableCallable.DEFAULT_WAIT_TIME) {
           public AbstractBackupPath retriableCall() throws Exception {
             final AbstractBackupPath bp = pathFactory.get();
             bp.parseLocal(file, type);
-            upload(bp);
+            if (ledger.contains(bp)) {
+              logger.info(String.format("File %s within CF %s was already uploaded", file.getCanonicalFile(), parent.getAbsolutePath()));
+              file.delete();
+              return bp;
+            }
+            String md5 = copyStored(bp, file);
+            if (md5 != null) {
+              logger.info(String.format("File %s within CF %s was copied from an identical stored file", file.getCanonicalFile(), parent.getAbsolutePath()));
+            } else {
+              md5 = upload(bp);
+            }
+            ledger.record(bp, md5);
+            uploaded(bp, file, md5);
             file.delete();
+            logger.info(String.format("Uploaded file %s within CF %s for backup", file.getCanonicalFile(), parent.getAbsolutePath()));
             return bp;
           }
-        }.call();
-
-        if (abp != null)
-          bps.add(abp);
+        }));
+      }
+    }
 
-        logger.info(String.format("Uploaded file %s within CF %s for backup", file.getCanonicalFile(), parent.getAbsolutePath()));
-        addToRemotePath(abp.getRemotePath());
-      } catch (Exception e) {
-        logger.error(String.format("Failed to upload local file %s within CF %s. Ignoring to continue with rest of backup.", file.getCanonicalFile(), parent.getAbsolutePath()), e);
+    Map<File, List<AbstractBackupPath>> uploaded = Maps.newLinkedHashMap();
+    for (Map.Entry<File, Map<File, Future<AbstractBackupPath>>> entry : pending.entrySet()) {
+      List<AbstractBackupPath> bps = Lists.newArrayList();
+      for (Map.Entry<File, Future<AbstractBackupPath>> future : entry.getValue().entrySet()) {
+        try {
+          AbstractBackupPath abp = future.getValue().get();
+          if (abp != null) {
+            bps.add(abp);
+            addToRemotePath(abp.getRemotePath());
+          }
+        } catch (ExecutionException e) {
+          logger.error(String.format("Failed to upload local file %s within CF %s. Ignoring to continue with rest of backup.", future.getKey().getCanonicalFile(), entry.getKey().getAbsolutePath()), e.getCause());
+        }
       }
+      uploaded.put(entry.getKey(), bps);
     }
-    return bps;
+    return uploaded;
+  }
+
+  /**
+   * Store the file by copying an identical one already in the backup
+   * location, instead of uploading it.
+   *
+   * @return MD5 of the file if it was copied, or null to upload it
+   */
+  protected String copyStored(AbstractBackupPath bp, File file) throws Exception {
+    return null;
+  }
+
+  /**
+   * Called once a file has been uploaded or copied, before the local file is
+   * deleted
+   */
+  protected void uploaded(AbstractBackupPath bp, File file, String md5) throws Exception {
   }
 
   /**
    * Upload specified file (RandomAccessFile) with retries
+   *
+   * @return MD5 of the file, computed as it is read for the upload
    */
-  protected void upload(final AbstractBackupPath bp) throws Exception {
-    new RetryableCallable<Void>() {
+  protected String upload(final AbstractBackupPath bp) throws Exception {
+    return new RetryableCallable<String>() {
       @Override
-      public Void retriableCall() throws Exception {
-        fs.upload(bp, bp.localReader());
-        return null;
+      public String retriableCall() throws Exception {
+        Md5InputStream in = new Md5InputStream(bp.localReader());
+        fs.upload(bp, in);
+        // a file system that did not read the whole file leaves it to be hashed
+        return in.getMd5() != null ? in.getMd5() : SystemUtils.md5(bp.getBackupFile());
       }
     }.call();
   }
@@ -271,6 +271,14 @@ public abstract class AbstractBackupPath implements Comparable<AbstractBackupPat
       return raf.read(bytes, off, len);
     }
 
+    @Override
+    public synchronized long skip(long n) throws IOException {
+      long target = Math.min(raf.getFilePointer() + Math.max(n, 0), raf.length());
+      long skipped = target - raf.getFilePointer();
+      raf.seek(target);
+      return skipped;
+    }
+
     @Override
     public void close() {
       FileUtils.closeQuietly(raf);
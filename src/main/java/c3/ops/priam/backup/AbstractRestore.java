@@ -19,49 +19,62 @@ import c3.ops.priam.IConfiguration;
 import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
 import c3.ops.priam.scheduler.NamedThreadPoolExecutor;
 import c3.ops.priam.scheduler.Task;
-import c3.ops.priam.utils.FifoQueue;
 import c3.ops.priam.utils.RetryableCallable;
 import c3.ops.priam.utils.Sleeper;
+import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractRestore extends Task {
-  // keeps track of the last few download which was executed.
-  // TODO fix the magic number of 1000 => the idea of 80% of 1000 files limit per s3 query
-  protected static final FifoQueue<AbstractBackupPath> tracker = new FifoQueue<AbstractBackupPath>(800);
   private static final Logger logger = LoggerFactory.getLogger(AbstractRestore.class);
   private static final String SYSTEM_KEYSPACE = "system";
+  private static final String RESTORE_JOURNAL = "restored_files.idx";
+  // How often, in seconds of waiting, the restore concurrency is checked against Cassandra's load
+  private static final int LOAD_CHECK_INTERVAL = 5;
+  // How many more times the retry policy downloads the files that failed
+  private static final int RETRY_ROUNDS = 2;
   public static BigInteger restoreToken;
   protected final IBackupFileSystem fs;
 
   protected final IConfiguration config;
   protected final ThreadPoolExecutor executor;
   protected final Sleeper sleeper;
-  private AtomicInteger count = new AtomicInteger();
+  protected final RestoreThrottle throttle;
+  // Files downloaded by the current restore
+  protected final RestoredFileIndex restored;
+  // Downloads in flight, by the future the completion service hands back
+  private final Map<Future<Void>, Download> pending = new ConcurrentHashMap<Future<Void>, Download>();
+  private final ExecutorCompletionService<Void> completions;
 
-  public AbstractRestore(IConfiguration config, IBackupFileSystem fs, String name, Sleeper sleeper) {
+  public AbstractRestore(IConfiguration config, IBackupFileSystem fs, String name, Sleeper sleeper, RestoreThrottle throttle) {
     super(config);
     this.config = config;
     this.fs = fs;
     this.sleeper = sleeper;
+    this.throttle = throttle;
+    this.restored = new RestoredFileIndex(new File(config.getLocalStateLocation(), RESTORE_JOURNAL));
     executor = new NamedThreadPoolExecutor(config.getMaxBackupDownloadThreads(), name);
     executor.allowCoreThreadTimeOut(true);
+    completions = new ExecutorCompletionService<Void>(executor);
   }
 
   protected void download(Iterator<AbstractBackupPath> fsIterator, BackupFileType filter) throws Exception {
     while (fsIterator.hasNext()) {
       AbstractBackupPath temp = fsIterator.next();
-      if (temp.type == BackupFileType.SST && tracker.contains(temp))
-        continue;
-
       if (temp.getType() == filter) {
         File localFileHandler = temp.newRestoreFile();
         logger.debug("Created local file name: %s", localFileHandler.getAbsolutePath() + File.pathSeparator + localFileHandler.getName());
@@ -78,9 +91,6 @@ public abstract class AbstractRestore extends Task {
     BoundedList bl = new BoundedList(lastN);
     while (fsIterator.hasNext()) {
       AbstractBackupPath temp = fsIterator.next();
-      if (temp.type == BackupFileType.SST && tracker.contains(temp))
-        continue;
-
       if (temp.getType() == filter) {
         bl.add(temp);
       }
@@ -89,42 +99,187 @@ public abstract class AbstractRestore extends Task {
     download(bl.iterator(), filter);
   }
 
+  /**
+   * Download the files, and wait for them all. The pool takes them in the
+   * order given.
+   */
+  protected void download(List<AbstractBackupPath> files) throws Exception {
+    for (AbstractBackupPath path : files)
+      download(path, path.newRestoreFile());
+    waitToComplete();
+  }
+
+  /**
+   * @return false if the file belongs to a keyspace that is not being restored
+   */
+  static boolean isRestored(IConfiguration config, AbstractBackupPath path) {
+    return config.getRestoreKeySpaces().size() == 0 || (config.getRestoreKeySpaces().contains(path.keyspace) && !path.keyspace.equals(SYSTEM_KEYSPACE));
+  }
+
   /**
    * Download to specific location
    */
   public void download(final AbstractBackupPath path, final File restoreLocation) throws Exception {
-    if (config.getRestoreKeySpaces().size() != 0 && (!config.getRestoreKeySpaces().contains(path.keyspace) || path.keyspace.equals(SYSTEM_KEYSPACE)))
+    if (!isRestored(config, path))
+      return;
+    long hash = RestoredFileIndex.hash(path);
+    if (restored.contains(hash) && restoreLocation.exists())
       return;
-    count.incrementAndGet();
-    executor.submit(new RetryableCallable<Integer>() {
+    submit(new Download(path, restoreLocation, hash));
+  }
+
+  private void submit(final Download download) {
+    Future<Void> future = completions.submit(new RetryableCallable<Void>() {
       @Override
-      public Integer retriableCall() throws Exception {
-        logger.info("Downloading file: " + path + " to: " + restoreLocation);
-        fs.download(path, new FileOutputStream(restoreLocation), restoreLocation.getAbsolutePath());
-        tracker.adjustAndAdd(path);
-        // TODO: fix me -> if there is exception the why hang?
-        return count.decrementAndGet();
+      public Void retriableCall() throws Exception {
+        logger.info("Downloading file: " + download.path + " to: " + download.location);
+        fs.download(download.path, new RestoreFileSink(download.location, 0, throttle.getWriteLimiter()),
+            download.location.getAbsolutePath());
+        if (isRestoredOnDownload(download.path))
+          restored.add(download.path, download.hash);
+        return null;
       }
     });
+    pending.put(future, download);
+  }
+
+  /**
+   * Wait for the downloads submitted so far. A download that fails after all
+   * its retries is handled according to the failure policy.
+   *
+   * @throws BackupRestoreException naming the files that could not be
+   *                                downloaded
+   */
+  protected void waitToComplete() throws BackupRestoreException {
+    FailurePolicy policy = FailurePolicy.of(config.getRestoreFailurePolicy());
+    List<Download> failed = Lists.newArrayList();
+    for (int round = 0; ; round++) {
+      drain(policy, failed);
+      if (failed.isEmpty())
+        return;
+      if (policy == FailurePolicy.SKIP) {
+        logger.error("Restore leaves out {} files that could not be downloaded: {}", failed.size(), remotePaths(failed));
+        return;
+      }
+      if (round == RETRY_ROUNDS)
+        throw new BackupRestoreException("Unable to download " + remotePaths(failed));
+      logger.warn("Downloading {} failed files again: {}", failed.size(), remotePaths(failed));
+      for (Download download : failed)
+        submit(download);
+      failed.clear();
+    }
   }
 
-  protected void waitToComplete() {
-    while (count.get() != 0) {
+  /**
+   * Take downloads as they finish until none is left, collecting the failed
+   * ones.
+   */
+  private void drain(FailurePolicy policy, List<Download> failed) throws BackupRestoreException {
+    long loadChecked = System.currentTimeMillis();
+    while (!pending.isEmpty()) {
+      Future<Void> done;
       try {
-        sleeper.sleep(1000);
+        done = completions.poll(LOAD_CHECK_INTERVAL, TimeUnit.SECONDS);
       } catch (InterruptedException e) {
-        logger.error("Interrupted: ", e);
+        Thread.currentThread().interrupt();
+        cancelPending();
+        throw new BackupRestoreException("Interrupted while restoring", e);
+      }
+      if (System.currentTimeMillis() - loadChecked >= TimeUnit.SECONDS.toMillis(LOAD_CHECK_INTERVAL)) {
+        resize(throttle.concurrency(executor.getMaximumPoolSize()));
+        loadChecked = System.currentTimeMillis();
+      }
+      // Downloads cancelled by an earlier failure still turn up here
+      Download download = done == null ? null : pending.remove(done);
+      if (download == null)
+        continue;
+      try {
+        done.get();
+        downloaded(download.path, download.location);
+      } catch (IOException e) {
+        cancelPending();
+        throw new BackupRestoreException("Unable to put " + download.path.getRemotePath() + " in place", e);
+      } catch (ExecutionException e) {
+        logger.error("Unable to download " + download.path.getRemotePath(), e.getCause());
+        if (policy == FailurePolicy.FAIL) {
+          cancelPending();
+          throw new BackupRestoreException("Unable to download " + download.path.getRemotePath(), e);
+        }
+        failed.add(download);
+      } catch (InterruptedException e) {
+        // done already, get() does not block
         Thread.currentThread().interrupt();
       }
     }
   }
 
-  protected AtomicInteger getFileCount() {
-    return count;
+  /**
+   * @return false if the file only counts as restored once
+   * {@link #downloaded} has put it in place
+   */
+  protected boolean isRestoredOnDownload(AbstractBackupPath path) {
+    return true;
+  }
+
+  /**
+   * Called on the thread waiting for the downloads as each one completes.
+   */
+  protected void downloaded(AbstractBackupPath path, File location) throws IOException {
+  }
+
+  private void cancelPending() {
+    for (Future<Void> future : pending.keySet())
+      future.cancel(true);
+    pending.clear();
   }
 
-  protected void setFileCount(int cnt) {
-    count.set(cnt);
+  private static List<String> remotePaths(List<Download> downloads) {
+    List<String> paths = Lists.newArrayList();
+    for (Download download : downloads)
+      paths.add(download.path.getRemotePath());
+    return paths;
+  }
+
+  /**
+   * Change the number of download threads. Threads over the new size exit
+   * once their current file is done.
+   */
+  private void resize(int threads) {
+    if (threads < executor.getMaximumPoolSize()) {
+      executor.setCorePoolSize(threads);
+      executor.setMaximumPoolSize(threads);
+    } else if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    }
+  }
+
+  /**
+   * What to do with a file that cannot be downloaded.
+   */
+  public enum FailurePolicy {
+    FAIL, SKIP, RETRY;
+
+    static FailurePolicy of(String name) {
+      try {
+        return valueOf(name.trim().toUpperCase());
+      } catch (RuntimeException e) {
+        logger.warn("Unknown restore failure policy {}, failing the restore", name);
+        return FAIL;
+      }
+    }
+  }
+
+  private static class Download {
+    private final AbstractBackupPath path;
+    private final File location;
+    private final long hash;
+
+    Download(AbstractBackupPath path, File location, long hash) {
+      this.path = path;
+      this.location = location;
+      this.hash = hash;
+    }
   }
 
   private class BoundedList<E> extends LinkedList<E> {
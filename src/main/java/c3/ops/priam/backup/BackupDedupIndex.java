@@ -0,0 +1,195 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.utils.SystemUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local index of SSTable files already stored in the backup location, so
+ * snapshots can copy them within the backup location instead of uploading
+ * the same immutable file every day.
+ * <p>
+ * Files are keyed by keyspace, column family, file name and size, and matched
+ * on their MD5. Snapshot files are hard links and keep the modification time
+ * of the original, so a file whose mtime matches the index entry is not hashed
+ * again. Each copy replaces the entry, so it names the newest stored object.
+ * Entries older than the dedup age are dropped and those files are uploaded
+ * afresh; the age is capped below the retention so the object to copy has not
+ * expired yet. The index is kept in one tab separated file under the local
+ * state dir.
+ */
+@Singleton
+public class BackupDedupIndex {
+  private static final Logger logger = LoggerFactory.getLogger(BackupDedupIndex.class);
+  private static final String INDEX_FILE = "backup_dedup.idx";
+  private final File indexFile;
+  private final long maxAgeMs;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+  private volatile boolean loaded;
+  private volatile boolean dirty;
+
+  @Inject
+  public BackupDedupIndex(IConfiguration config) {
+    this(new File(config.getLocalStateLocation(), INDEX_FILE), maxAgeDays(config));
+  }
+
+  BackupDedupIndex(File indexFile, int maxAgeDays) {
+    this.indexFile = indexFile;
+    this.maxAgeMs = TimeUnit.DAYS.toMillis(Math.max(maxAgeDays, 0));
+  }
+
+  private static int maxAgeDays(IConfiguration config) {
+    int days = config.getBackupDedupMaxAgeDays();
+    if (config.getBackupRetentionDays() > 0)
+      days = Math.min(days, config.getBackupRetentionDays() - 1);
+    return days;
+  }
+
+  public boolean isEnabled() {
+    return maxAgeMs > 0;
+  }
+
+  /**
+   * @return an identical file already in the backup location, or null if the
+   * file has to be uploaded
+   */
+  public Entry find(AbstractBackupPath bp, File file) throws IOException {
+    if (!isEnabled())
+      return null;
+    load();
+    Entry entry = entries.get(key(bp, file.length()));
+    if (entry == null || isExpired(entry))
+      return null;
+    if (entry.modified != file.lastModified() && !entry.md5.equals(SystemUtils.md5(file)))
+      return null;
+    return entry;
+  }
+
+  /**
+   * Record a file that was just uploaded or copied to the given remote path.
+   */
+  public void add(AbstractBackupPath bp, File file, String md5) throws IOException {
+    if (!isEnabled())
+      return;
+    load();
+    Entry entry = new Entry(key(bp, file.length()), file.lastModified(), md5, currentTimeMillis(), bp.getRemotePath());
+    entries.put(entry.key, entry);
+    dirty = true;
+  }
+
+  /**
+   * Drop expired entries and write the index out if it has changed.
+   */
+  public synchronized void save() throws IOException {
+    if (!isEnabled() || !loaded)
+      return;
+    for (Entry entry : entries.values())
+      if (isExpired(entry)) {
+        entries.remove(entry.key);
+        dirty = true;
+      }
+    if (!dirty)
+      return;
+    dirty = false;
+    Files.createParentDirs(indexFile);
+    File tmp = new File(indexFile.getPath() + ".tmp");
+    BufferedWriter writer = Files.newWriter(tmp, Charsets.UTF_8);
+    try {
+      for (Entry entry : entries.values()) {
+        writer.write(entry.toLine());
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+    java.nio.file.Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logger.info("Saved {} entries to backup dedup index {}", entries.size(), indexFile);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  private synchronized void load() throws IOException {
+    if (loaded)
+      return;
+    if (indexFile.exists()) {
+      List<String> lines = Files.readLines(indexFile, Charsets.UTF_8);
+      for (String line : lines) {
+        Entry entry = Entry.parse(line);
+        if (entry != null)
+          entries.put(entry.key, entry);
+        else
+          logger.warn("Ignoring malformed line in {}: {}", indexFile, line);
+      }
+      logger.info("Loaded {} entries from backup dedup index {}", entries.size(), indexFile);
+    }
+    loaded = true;
+  }
+
+  private boolean isExpired(Entry entry) {
+    return currentTimeMillis() - entry.uploaded > maxAgeMs;
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  private static String key(AbstractBackupPath bp, long size) {
+    return bp.getKeyspace() + "/" + bp.getColumnFamily() + "/" + bp.getFileName() + "/" + size;
+  }
+
+  public static class Entry {
+    private final String key;
+    private final long modified;
+    private final String md5;
+    private final long uploaded;
+    private final String remotePath;
+
+    Entry(String key, long modified, String md5, long uploaded, String remotePath) {
+      this.key = key;
+      this.modified = modified;
+      this.md5 = md5;
+      this.uploaded = uploaded;
+      this.remotePath = remotePath;
+    }
+
+    public String getRemotePath() {
+      return remotePath;
+    }
+
+    public String getMd5() {
+      return md5;
+    }
+
+    String toLine() {
+      return StringUtils.join(new Object[]{key, modified, md5, uploaded, remotePath}, '\t');
+    }
+
+    static Entry parse(String line) {
+      String[] fields = StringUtils.split(line, '\t');
+      if (fields.length != 5)
+        return null;
+      try {
+        return new Entry(fields[0], Long.parseLong(fields[1]), fields[2], Long.parseLong(fields[3]), fields[4]);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package c3.ops.priam.backup;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the backups dirs under the data dir and reports the ones that have
+ * new files, as Cassandra hard-links flushed and compacted SSTables into them.
+ * <p>
+ * The data dir, keyspace dirs and column family dirs are watched too, so
+ * keyspaces and column families created later are picked up. Events arriving
+ * close together are delivered as one batch. If the event queue overflows, a
+ * full rescan is requested instead.
+ */
+public class BackupDirWatcher implements Runnable {
+  private static final Logger logger = LoggerFactory.getLogger(BackupDirWatcher.class);
+  private static final String BACKUPS = "backups";
+  private static final int COLUMN_FAMILY = 2;
+  private static final int BACKUP_DIR = 3;
+  // Cassandra links all components of an SSTable at once; gather them in one batch
+  private static final long BATCH_WINDOW_MS = 200;
+
+  private final File dataDir;
+  private final Listener listener;
+  private final Map<WatchKey, Watched> keys = new ConcurrentHashMap<WatchKey, Watched>();
+  private WatchService watchService;
+  private Thread thread;
+
+  public BackupDirWatcher(File dataDir, Listener listener) {
+    this.dataDir = dataDir;
+    this.listener = listener;
+  }
+
+  public synchronized boolean isRunning() {
+    return thread != null && thread.isAlive();
+  }
+
+  public synchronized void start() throws IOException {
+    if (isRunning())
+      return;
+    watchService = FileSystems.getDefault().newWatchService();
+    keys.clear();
+    register(dataDir, 0, new LinkedHashSet<File>());
+    thread = new Thread(this, "IncrementalBackupWatcher");
+    thread.setDaemon(true);
+    thread.start();
+    logger.info("Watching {} backups dirs under {}", count(BACKUP_DIR), dataDir);
+  }
+
+  public synchronized void stop() {
+    if (watchService == null)
+      return;
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      logger.warn("Unable to close watch service", e);
+    }
+    watchService = null;
+  }
+
+  @Override
+  public void run() {
+    WatchService ws = watchService;
+    try {
+      while (true) {
+        WatchKey key = ws.take();
+        Set<File> changed = new LinkedHashSet<File>();
+        boolean overflow = false;
+        // Drain whatever else arrives within the batch window
+        while (key != null) {
+          overflow |= process(key, changed);
+          key = ws.poll(BATCH_WINDOW_MS, TimeUnit.MILLISECONDS);
+        }
+        try {
+          if (overflow)
+            listener.rescan();
+          else if (!changed.isEmpty())
+            listener.changed(changed);
+        } catch (Exception e) {
+          logger.error("Failed to back up new files in " + changed, e);
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      logger.info("Stopped watching {}", dataDir);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return true if events were lost
+   */
+  private boolean process(WatchKey key, Set<File> changed) {
+    Watched watched = keys.get(key);
+    boolean overflow = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        overflow = true;
+        continue;
+      }
+      if (watched == null)
+        continue;
+      File child = watched.dir.resolve((Path) event.context()).toFile();
+      if (watched.level == BACKUP_DIR)
+        changed.add(watched.dir.toFile());
+      else if (watched.level < COLUMN_FAMILY && child.isDirectory())
+        register(child, watched.level + 1, changed);
+      else if (watched.level == COLUMN_FAMILY && child.getName().equals(BACKUPS) && child.isDirectory())
+        register(child, BACKUP_DIR, changed);
+    }
+    if (!key.reset())
+      keys.remove(key);
+    return overflow;
+  }
+
+  /**
+   * Watch a dir and, below the column family level, the dirs in it. A
+   * backups dir that already has files is reported right away, as they may
+   * have been linked before the watch was in place.
+   */
+  private void register(File dir, int level, Set<File> changed) {
+    try {
+      WatchKey key = dir.toPath().register(watchService, ENTRY_CREATE);
+      keys.put(key, new Watched(dir.toPath(), level));
+    } catch (IOException e) {
+      logger.warn("Unable to watch " + dir + ": " + e.getMessage());
+      return;
+    }
+    if (level == BACKUP_DIR) {
+      String[] files = dir.list();
+      if (files != null && files.length > 0)
+        changed.add(dir);
+      return;
+    }
+    File[] children = dir.listFiles();
+    if (children == null)
+      return;
+    for (File child : children) {
+      if (level < COLUMN_FAMILY && child.isDirectory())
+        register(child, level + 1, changed);
+      else if (level == COLUMN_FAMILY && child.getName().equals(BACKUPS) && child.isDirectory())
+        register(child, BACKUP_DIR, changed);
+    }
+  }
+
+  private int count(int level) {
+    int count = 0;
+    for (Watched watched : keys.values())
+      if (watched.level == level)
+        count++;
+    return count;
+  }
+
+  /**
+   * Receives batches of backups dirs with new files.
+   */
+  public interface Listener {
+    void changed(Set<File> backupDirs) throws Exception;
+
+    /**
+     * Events were lost; every backups dir has to be scanned.
+     */
+    void rescan() throws Exception;
+  }
+
+  private static class Watched {
+    private final Path dir;
+    private final int level;
+
+    Watched(Path dir, int level) {
+      this.dir = dir;
+      this.level = level;
+    }
+  }
+}
@@ -13,6 +13,9 @@ public abstract class BackupFileSystemAdapter implements IBackupFileSystem {
   public void upload(AbstractBackupPath path, InputStream in) throws BackupRestoreException {
   }
 
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException {
+  }
+
   public Iterator<AbstractBackupPath> list(String path, Date start, Date till) {
     return null;
   }
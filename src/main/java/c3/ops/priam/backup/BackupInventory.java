@@ -0,0 +1,378 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
+import c3.ops.priam.scheduler.SimpleTimer;
+import c3.ops.priam.scheduler.Task;
+import c3.ops.priam.scheduler.TaskTimer;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of the inventory of this node's backups in the backup location,
+ * so listings and totals don't have to go to S3.
+ * <p>
+ * The first run lists the whole retention period. Later runs list only from
+ * shortly before the previous run, since a file's backup time can be well
+ * before its upload completes. Files uploaded in between are added as the
+ * backups report them, with their size filled in by the next listing. The
+ * number of files and total size of each snapshot are worked out from its
+ * meta file once and kept. The inventory is saved under the local state
+ * location after every run and loaded again on start.
+ * <p>
+ * Reads take no lock. Changes take the inventory's lock only for the
+ * in-memory update, never while S3 is listed, so the backups reporting
+ * their files are not held up by a long listing.
+ */
+@Singleton
+public class BackupInventory extends Task implements IMessageObserver {
+  public static final String JOBNAME = "BACKUP_INVENTORY";
+  private static final Logger logger = LoggerFactory.getLogger(BackupInventory.class);
+  private static final String INVENTORY_FILE = "backup_inventory.log";
+  private static final long DELTA_OVERLAP = TimeUnit.HOURS.toMillis(6);
+  private static final String SYNC_LINE = "S";
+  private static final String FILE_LINE = "F";
+  private static final String META_LINE = "M";
+  private final IBackupFileSystem fs;
+  private final MetaData metaData;
+  private final Provider<AbstractBackupPath> pathFactory;
+  private final File inventoryFile;
+  // Ordered by backup time, then remote path
+  private final ConcurrentSkipListMap<String, Item> items = new ConcurrentSkipListMap<String, Item>();
+  private final ConcurrentMap<String, Item> byPath = new ConcurrentHashMap<String, Item>();
+  private final ConcurrentMap<String, Totals> metaTotals = new ConcurrentHashMap<String, Totals>();
+  private volatile long syncedFrom = Long.MAX_VALUE;
+  private volatile long syncedUntil;
+  private final Object loadLock = new Object();
+  private final Object syncLock = new Object();
+  private volatile boolean loaded;
+
+  @Inject
+  public BackupInventory(IConfiguration config, @Named("backup_status") IBackupFileSystem fs, MetaData metaData,
+                         Provider<AbstractBackupPath> pathFactory) {
+    this(config, fs, metaData, pathFactory, new File(config.getLocalStateLocation(), INVENTORY_FILE));
+  }
+
+  BackupInventory(IConfiguration config, IBackupFileSystem fs, MetaData metaData, Provider<AbstractBackupPath> pathFactory,
+                  File inventoryFile) {
+    super(config);
+    this.fs = fs;
+    this.metaData = metaData;
+    this.pathFactory = pathFactory;
+    this.inventoryFile = inventoryFile;
+    SnapshotBackup.addObserver(this);
+    IncrementalBackup.addObserver(this);
+    CommitLogBackupTask.addObserver(this);
+    MetaData.addObserver(this);
+  }
+
+  public static TaskTimer getTimer(IConfiguration config) {
+    return new SimpleTimer(JOBNAME, config.getBackupInventorySyncSeconds() * 1000L);
+  }
+
+  @Override
+  public void execute() throws Exception {
+    sync();
+  }
+
+  /**
+   * List the backup location from where the last run left off and save the
+   * result.
+   */
+  public void sync() throws IOException {
+    synchronized (syncLock) {
+      load();
+      long now = System.currentTimeMillis();
+      long retentionStart = now - TimeUnit.DAYS.toMillis(Math.max(1, config.getBackupRetentionDays()));
+      long from = syncedUntil == 0 ? retentionStart : Math.max(retentionStart, syncedUntil - DELTA_OVERLAP);
+      List<AbstractBackupPath> listed = Lists.newArrayList(fs.list(config.getBackupPrefix(), new Date(from), new Date(now)));
+      int changed = 0;
+      int expired;
+      synchronized (this) {
+        for (AbstractBackupPath path : listed) {
+          if (add(path, path.getSize(), path.getUploadedTs() == null ? 0 : path.getUploadedTs().getTime()))
+            changed++;
+        }
+        expired = expire(retentionStart);
+        syncedFrom = retentionStart;
+        syncedUntil = now;
+      }
+      save();
+      logger.info("Backup inventory has {} files: {} added or updated, {} expired", items.size(), changed, expired);
+    }
+  }
+
+  /**
+   * @return true if every backup from the given time on is in the inventory
+   */
+  public boolean covers(Date start) {
+    load();
+    return syncedUntil != 0 && start.getTime() >= syncedFrom;
+  }
+
+  /**
+   * Files whose backup time is within the range, in the same order and with
+   * the same bounds as {@link IBackupFileSystem#list(String, Date, Date)}.
+   * Null type, keyspace or column family match any.
+   */
+  public List<AbstractBackupPath> list(Date start, Date till, BackupFileType type, String keyspace, String columnFamily) {
+    List<AbstractBackupPath> paths = Lists.newArrayList();
+    for (Item item : select(start, till, type, keyspace, columnFamily)) {
+      AbstractBackupPath path = pathFactory.get();
+      path.parseRemote(item.remotePath);
+      path.setSize(Math.max(0, item.size));
+      if (item.uploaded > 0)
+        path.setUploadedTs(new Date(item.uploaded));
+      paths.add(path);
+    }
+    return paths;
+  }
+
+  /**
+   * Number and total size of the files matching, as for
+   * {@link #list(Date, Date, BackupFileType, String, String)}. Files whose
+   * size is not known yet count as empty.
+   */
+  public Totals totals(Date start, Date till, BackupFileType type, String keyspace, String columnFamily) {
+    int files = 0;
+    long bytes = 0;
+    for (Item item : select(start, till, type, keyspace, columnFamily)) {
+      files++;
+      bytes += Math.max(0, item.size);
+    }
+    return new Totals(files, bytes);
+  }
+
+  /**
+   * Number and total size of the files of a snapshot. The meta file is only
+   * read the first time.
+   */
+  public Totals metaTotals(AbstractBackupPath meta) {
+    load();
+    Totals totals = metaTotals.get(meta.getRemotePath());
+    if (totals != null)
+      return totals;
+    List<AbstractBackupPath> files = metaData.get(meta);
+    long bytes = 0;
+    for (AbstractBackupPath file : files) {
+      Item item = byPath.get(file.getRemotePath());
+      bytes += item != null && item.size > 0 ? item.size : file.getSize();
+    }
+    totals = new Totals(files.size(), bytes);
+    // An empty list may only mean the meta file could not be read
+    if (!files.isEmpty())
+      metaTotals.put(meta.getRemotePath(), totals);
+    return totals;
+  }
+
+  public int size() {
+    load();
+    return items.size();
+  }
+
+  @Override
+  public void update(BACKUP_MESSAGE_TYPE bkpMsgType, List<String> remotePathNames) {
+    load();
+    long now = System.currentTimeMillis();
+    for (String remotePath : remotePathNames) {
+      if (byPath.containsKey(remotePath))
+        continue;
+      try {
+        AbstractBackupPath path = pathFactory.get();
+        path.parseRemote(remotePath);
+        synchronized (this) {
+          add(path, -1, now);
+        }
+      } catch (RuntimeException e) {
+        logger.warn("Unable to add {} to the backup inventory: {}", remotePath, e.getMessage());
+      }
+    }
+  }
+
+  @Override
+  public void update(RESTORE_MESSAGE_TYPE rstMsgType, List<String> remotePathNames, RESTORE_MESSAGE_STATUS rstMsgStatus) {
+  }
+
+  @Override
+  public void update(RESTORE_MESSAGE_TYPE rstMsgType, String remotePath, String fileDiskPath, RESTORE_MESSAGE_STATUS rstMsgStatus) {
+  }
+
+  @Override
+  public String getName() {
+    return JOBNAME;
+  }
+
+  private Iterable<Item> select(Date start, Date till, BackupFileType type, String keyspace, String columnFamily) {
+    load();
+    List<Item> selected = Lists.newArrayList();
+    String from = AbstractBackupPath.formatDate(start);
+    String to = AbstractBackupPath.formatDate(till) + Character.MAX_VALUE;
+    for (Item item : items.subMap(from, true, to, true).values()) {
+      if ((item.time > start.getTime() && item.time < till.getTime()) || item.time == start.getTime()) {
+        if (type != null && item.type != type)
+          continue;
+        if (keyspace != null && !keyspace.equals(item.keyspace))
+          continue;
+        if (columnFamily != null && !columnFamily.equals(item.columnFamily))
+          continue;
+        selected.add(item);
+      }
+    }
+    return selected;
+  }
+
+  /**
+   * Called with the inventory's lock held, or while loading.
+   *
+   * @return true if the file is new or its size changed
+   */
+  private boolean add(AbstractBackupPath path, long size, long uploaded) {
+    String remotePath = path.getRemotePath();
+    Item existing = byPath.get(remotePath);
+    if (existing != null && (existing.size == size || size < 0))
+      return false;
+    Item item = new Item(remotePath, path.getType(), path.getKeyspace(), path.getColumnFamily(), path.getTime().getTime(),
+        size, existing != null && existing.uploaded > 0 ? existing.uploaded : uploaded);
+    byPath.put(remotePath, item);
+    items.put(item.key(), item);
+    return true;
+  }
+
+  private int expire(long before) {
+    int expired = 0;
+    Iterator<Item> it = items.headMap(AbstractBackupPath.formatDate(new Date(before))).values().iterator();
+    while (it.hasNext()) {
+      Item item = it.next();
+      if (item.time >= before)
+        continue;
+      it.remove();
+      byPath.remove(item.remotePath);
+      metaTotals.remove(item.remotePath);
+      expired++;
+    }
+    return expired;
+  }
+
+  private void load() {
+    if (loaded)
+      return;
+    synchronized (loadLock) {
+      if (loaded)
+        return;
+      read();
+      loaded = true;
+    }
+  }
+
+  private synchronized void read() {
+    if (!inventoryFile.exists())
+      return;
+    try {
+      for (String line : Files.readLines(inventoryFile, Charsets.UTF_8)) {
+        String[] fields = StringUtils.split(line, '\t');
+        try {
+          if (fields[0].equals(SYNC_LINE)) {
+            syncedFrom = Long.parseLong(fields[1]);
+            syncedUntil = Long.parseLong(fields[2]);
+          } else if (fields[0].equals(FILE_LINE)) {
+            AbstractBackupPath path = pathFactory.get();
+            path.parseRemote(fields[3]);
+            add(path, Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+          } else if (fields[0].equals(META_LINE)) {
+            metaTotals.put(fields[3], new Totals(Integer.parseInt(fields[1]), Long.parseLong(fields[2])));
+          }
+        } catch (RuntimeException e) {
+          logger.warn("Ignoring malformed line in {}: {}", inventoryFile, line);
+        }
+      }
+      logger.info("Loaded {} files from {}", items.size(), inventoryFile);
+    } catch (IOException e) {
+      logger.warn("Unable to load backup inventory " + inventoryFile + ", listing it again", e);
+      items.clear();
+      byPath.clear();
+      metaTotals.clear();
+      syncedFrom = Long.MAX_VALUE;
+      syncedUntil = 0;
+    }
+  }
+
+  private void save() throws IOException {
+    Files.createParentDirs(inventoryFile);
+    File tmp = new File(inventoryFile.getPath() + ".tmp");
+    BufferedWriter writer = Files.newWriter(tmp, Charsets.UTF_8);
+    try {
+      writer.write(StringUtils.join(new Object[]{SYNC_LINE, syncedFrom, syncedUntil}, '\t'));
+      writer.newLine();
+      for (Item item : items.values()) {
+        writer.write(StringUtils.join(new Object[]{FILE_LINE, item.size, item.uploaded, item.remotePath}, '\t'));
+        writer.newLine();
+      }
+      for (Map.Entry<String, Totals> meta : metaTotals.entrySet()) {
+        writer.write(StringUtils.join(new Object[]{META_LINE, meta.getValue().files, meta.getValue().bytes, meta.getKey()}, '\t'));
+        writer.newLine();
+      }
+    } finally {
+      writer.close();
+    }
+    java.nio.file.Files.move(tmp.toPath(), inventoryFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Number and total size in bytes of a set of backup files.
+   */
+  public static class Totals {
+    public final int files;
+    public final long bytes;
+
+    Totals(int files, long bytes) {
+      this.files = files;
+      this.bytes = bytes;
+    }
+  }
+
+  private static class Item {
+    private final String remotePath;
+    private final BackupFileType type;
+    private final String keyspace;
+    private final String columnFamily;
+    private final long time;
+    // Size of the stored object, -1 until listed
+    private final long size;
+    private final long uploaded;
+
+    Item(String remotePath, BackupFileType type, String keyspace, String columnFamily, long time, long size, long uploaded) {
+      this.remotePath = remotePath;
+      this.type = type;
+      this.keyspace = keyspace;
+      this.columnFamily = columnFamily;
+      this.time = time;
+      this.size = size;
+      this.uploaded = uploaded;
+    }
+
+    String key() {
+      return AbstractBackupPath.formatDate(new Date(time)) + ' ' + remotePath;
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.scheduler.NamedThreadPoolExecutor;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs file uploads of all backup tasks on one shared pool.
+ * <p>
+ * Several files are uploaded at once, across keyspaces and column families,
+ * while the total size of the files being uploaded stays within a byte
+ * budget. Small files fit in a single part and mostly cost round trips, so
+ * many of them run side by side; a large file is split into parts by the
+ * file system and takes a correspondingly large share of the budget. A file
+ * bigger than the whole budget is only started once nothing else is in
+ * flight.
+ */
+@Singleton
+public class BackupUploadScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(BackupUploadScheduler.class);
+  private final ExecutorService executor;
+  private final long budget;
+  private long inFlight;
+
+  @Inject
+  public BackupUploadScheduler(IConfiguration config) {
+    this(config.getBackupFileConcurrency(), config.getBackupBytesInFlight());
+  }
+
+  BackupUploadScheduler(int concurrency, long budget) {
+    this.executor = new NamedThreadPoolExecutor(concurrency, "BackupFileUploader");
+    this.budget = budget;
+  }
+
+  /**
+   * Queue the upload of a file. Blocks while the byte budget is used up.
+   */
+  public <T> Future<T> submit(File file, final Callable<T> upload) throws InterruptedException {
+    final long weight = Math.min(file.length(), budget);
+    reserve(weight);
+    try {
+      return executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          try {
+            return upload.call();
+          } finally {
+            release(weight);
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      release(weight);
+      throw e;
+    }
+  }
+
+  private synchronized void reserve(long weight) throws InterruptedException {
+    while (inFlight > 0 && inFlight + weight > budget) {
+      logger.debug("Waiting for {} bytes of upload budget, {} bytes in flight", weight, inFlight);
+      wait();
+    }
+    inFlight += weight;
+  }
+
+  private synchronized void release(long weight) {
+    inFlight -= weight;
+    notifyAll();
+  }
+
+  /**
+   * @return bytes of files being uploaded right now
+   */
+  public synchronized long getBytesInFlight() {
+    return inFlight;
+  }
+
+  public void shutdown() {
+    executor.shutdown();
+  }
+}
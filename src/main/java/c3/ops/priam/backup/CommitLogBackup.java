@@ -1,7 +1,9 @@
 package c3.ops.priam.backup;
 
 import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
+import c3.ops.priam.utils.Md5InputStream;
 import c3.ops.priam.utils.RetryableCallable;
+import c3.ops.priam.utils.SystemUtils;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -24,11 +26,13 @@ public class CommitLogBackup {
   private final Provider<AbstractBackupPath> pathFactory;
   private final List<String> clRemotePaths = new ArrayList();
   private final IBackupFileSystem fs;
+  private final UploadLedger ledger;
 
   @Inject
-  public CommitLogBackup(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs) {
+  public CommitLogBackup(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs, UploadLedger ledger) {
     this.pathFactory = pathFactory;
     this.fs = fs;
+    this.ledger = ledger;
   }
 
   public static void addObserver(IMessageObserver observer) {
@@ -66,7 +70,8 @@ public class CommitLogBackup {
             bp.parseLocal(file, BackupFileType.CL);
             if (snapshotName != null)
               bp.time = bp.parseDate(snapshotName);
-            upload(bp);
+            if (!ledger.contains(bp))
+              ledger.record(bp, upload(bp));
             file.delete(); //TODO: should we put delete call here? We don't want to delete if the upload operaion fails
             return bp;
           }
@@ -84,13 +89,17 @@ public class CommitLogBackup {
     return bps;
   }
 
-  private void upload(final AbstractBackupPath bp)
+  /**
+   * @return MD5 of the file, computed as it is read for the upload
+   */
+  private String upload(final AbstractBackupPath bp)
       throws Exception {
-    new RetryableCallable() {
-      public Void retriableCall()
+    return new RetryableCallable<String>() {
+      public String retriableCall()
           throws Exception {
-        fs.upload(bp, bp.localReader());
-        return null;
+        Md5InputStream in = new Md5InputStream(bp.localReader());
+        fs.upload(bp, in);
+        return in.getMd5() != null ? in.getMd5() : SystemUtils.md5(bp.getBackupFile());
       }
     }
         .call();
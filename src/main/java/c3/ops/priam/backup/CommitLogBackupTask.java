@@ -28,8 +28,8 @@ public class CommitLogBackupTask extends AbstractBackup {
 
   @Inject
   public CommitLogBackupTask(IConfiguration config, @Named("backup") IBackupFileSystem fs, Provider<AbstractBackupPath> pathFactory,
-                             CommitLogBackup clBackup) {
-    super(config, fs, pathFactory);
+                             CommitLogBackup clBackup, BackupUploadScheduler scheduler, UploadLedger ledger) {
+    super(config, fs, pathFactory, scheduler, ledger);
     this.clBackup = clBackup;
   }
 
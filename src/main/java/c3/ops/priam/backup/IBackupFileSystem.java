@@ -42,6 +42,12 @@ public interface IBackupFileSystem {
    */
   public void upload(AbstractBackupPath path, InputStream in) throws BackupRestoreException;
 
+  /**
+   * Store a copy of an object already in the backup location under another
+   * path, without transferring its contents.
+   */
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException;
+
   /**
    * List all files in the backup location for the specified time range.
    */
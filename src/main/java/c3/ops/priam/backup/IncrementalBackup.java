@@ -28,8 +28,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /*
  * Incremental/SSTable backup
@@ -41,11 +44,14 @@ public class IncrementalBackup extends AbstractBackup {
   static List<IMessageObserver> observers = new ArrayList<IMessageObserver>();
   private final List<String> incrementalRemotePaths = new ArrayList<String>();
   private IncrementalMetaData metaData;
+  private final BackupDedupIndex dedupIndex;
+  private BackupDirWatcher watcher;
 
   @Inject
   public IncrementalBackup(IConfiguration config, @Named("backup") IBackupFileSystem fs, Provider<AbstractBackupPath> pathFactory
-      , IncrementalMetaData metaData) {
-    super(config, fs, pathFactory);
+      , IncrementalMetaData metaData, BackupUploadScheduler scheduler, UploadLedger ledger, BackupDedupIndex dedupIndex) {
+    super(config, fs, pathFactory, scheduler, ledger);
+    this.dedupIndex = dedupIndex;
     this.metaData = metaData; //a means to upload audit trail (via meta_cf_yyyymmddhhmm.json) of files successfully uploaded
   }
 
@@ -56,6 +62,16 @@ public class IncrementalBackup extends AbstractBackup {
     return new SimpleTimer(JOBNAME, 10L * 1000);
   }
 
+  /**
+   * When new files are picked up as they appear, the scheduled run is only a
+   * reconcile scan for anything the watcher missed.
+   */
+  public static TaskTimer getTimer(IConfiguration config) {
+    if (config.isIncrBackupWatch())
+      return new SimpleTimer(JOBNAME, config.getIncrBackupReconcileSeconds() * 1000L);
+    return getTimer();
+  }
+
   public static void addObserver(IMessageObserver observer) {
     observers.add(observer);
   }
@@ -66,14 +82,19 @@ public class IncrementalBackup extends AbstractBackup {
 
   @Override
   public void execute() throws Exception {
-    //Clearing remotePath List
-    incrementalRemotePaths.clear();
     File dataDir = new File(config.getDataFileLocation());
     if (!dataDir.exists()) {
       throw new IllegalArgumentException("The configured 'data file location' does not exist: "
           + config.getDataFileLocation());
     }
+    if (config.isIncrBackupWatch())
+      startWatcher(dataDir);
     logger.debug("Scanning for backup in: {}", dataDir.getAbsolutePath());
+    backup(scan(dataDir));
+  }
+
+  private List<File> scan(File dataDir) {
+    List<File> backupDirs = new ArrayList<File>();
     for (File keyspaceDir : dataDir.listFiles()) {
       if (keyspaceDir.isFile())
         continue;
@@ -81,22 +102,62 @@ public class IncrementalBackup extends AbstractBackup {
         File backupDir = new File(columnFamilyDir, "backups");
         if (!isValidBackupDir(keyspaceDir, columnFamilyDir, backupDir))
           continue;
-        List<AbstractBackupPath> uploadedFiles = upload(backupDir, BackupFileType.SST);
-
-        //TODO:  create FP to upload meta data file -- upload audit info of files successfully upload for CF
+        backupDirs.add(backupDir);
+      }
+    }
+    return backupDirs;
+  }
 
-        if (!uploadedFiles.isEmpty()) {
-          String incrementalUploadTime = AbstractBackupPath.formatDate(uploadedFiles.get(0).getTime()); //format of yyyymmddhhmm (e.g. 201505060901)
-          String metaFileName = "meta_" + columnFamilyDir.getName() + "_" + incrementalUploadTime;
-          logger.info("Uploading meta file for incremental backup: " + metaFileName);
-          this.metaData.setMetaFileName(metaFileName);
-          this.metaData.set(uploadedFiles, incrementalUploadTime);
-          logger.info("Uploaded meta file for incremental backup: " + metaFileName);
+  private synchronized void startWatcher(final File dataDir) throws IOException {
+    if (watcher != null && watcher.isRunning())
+      return;
+    watcher = new BackupDirWatcher(dataDir, new BackupDirWatcher.Listener() {
+      @Override
+      public void changed(Set<File> dirs) throws Exception {
+        List<File> backupDirs = new ArrayList<File>();
+        for (File backupDir : dirs) {
+          File columnFamilyDir = backupDir.getParentFile();
+          if (isValidBackupDir(columnFamilyDir.getParentFile(), columnFamilyDir, backupDir))
+            backupDirs.add(backupDir);
         }
+        backup(backupDirs);
+      }
 
+      @Override
+      public void rescan() throws Exception {
+        backup(scan(dataDir));
+      }
+    });
+    watcher.start();
+  }
+
+  /**
+   * Upload the files in the given backups dirs. Runs from the scheduled scan
+   * and from the watcher, one at a time.
+   */
+  private synchronized void backup(List<File> backupDirs) throws Exception {
+    //Clearing remotePath List
+    incrementalRemotePaths.clear();
+
+    // Upload the files of all column families together, then write a meta file per column family
+    for (Map.Entry<File, List<AbstractBackupPath>> entry : upload(backupDirs, BackupFileType.SST).entrySet()) {
+      List<AbstractBackupPath> uploadedFiles = entry.getValue();
+      File columnFamilyDir = entry.getKey().getParentFile();
+
+      //TODO:  create FP to upload meta data file -- upload audit info of files successfully upload for CF
+
+      if (!uploadedFiles.isEmpty()) {
+        String incrementalUploadTime = AbstractBackupPath.formatDate(uploadedFiles.get(0).getTime()); //format of yyyymmddhhmm (e.g. 201505060901)
+        String metaFileName = "meta_" + columnFamilyDir.getName() + "_" + incrementalUploadTime;
+        logger.info("Uploading meta file for incremental backup: " + metaFileName);
+        this.metaData.setMetaFileName(metaFileName);
+        this.metaData.set(uploadedFiles, incrementalUploadTime);
+        logger.info("Uploaded meta file for incremental backup: " + metaFileName);
       }
     }
 
+    dedupIndex.save();
+
     if (incrementalRemotePaths.size() > 0) {
       notifyObservers();
     }
@@ -118,6 +179,15 @@ public class IncrementalBackup extends AbstractBackup {
     }
   }
 
+  /**
+   * Incremental SSTables become part of later snapshots, which can reference
+   * them instead of uploading them again.
+   */
+  @Override
+  protected void uploaded(AbstractBackupPath bp, File file, String md5) throws Exception {
+    dedupIndex.add(bp, file, md5);
+  }
+
   @Override
   protected void addToRemotePath(String remotePath) {
     incrementalRemotePaths.add(remotePath);
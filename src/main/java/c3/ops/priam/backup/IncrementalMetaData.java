@@ -13,8 +13,8 @@ public class IncrementalMetaData extends MetaData {
   private String metaFileName = null; //format meta_cf_time (e.g.
 
   @Inject
-  public IncrementalMetaData(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs) {
-    super(pathFactory, fs);
+  public IncrementalMetaData(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs, UploadLedger ledger) {
+    super(pathFactory, fs, ledger);
   }
 
   public void setMetaFileName(String name) {
@@ -17,7 +17,9 @@ package c3.ops.priam.backup;
 
 import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
 import c3.ops.priam.backup.IMessageObserver.BACKUP_MESSAGE_TYPE;
+import c3.ops.priam.utils.Md5InputStream;
 import c3.ops.priam.utils.RetryableCallable;
+import c3.ops.priam.utils.SystemUtils;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -43,13 +45,15 @@ public class MetaData {
   private final Provider<AbstractBackupPath> pathFactory;
   private final List<String> metaRemotePaths = new ArrayList<String>();
   private final IBackupFileSystem fs;
+  private final UploadLedger ledger;
 
   @Inject
-  public MetaData(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs)
+  public MetaData(Provider<AbstractBackupPath> pathFactory, @Named("backup") IBackupFileSystem fs, UploadLedger ledger)
 
   {
     this.pathFactory = pathFactory;
     this.fs = fs;
+    this.ledger = ledger;
   }
 
   public static void addObserver(IMessageObserver observer) {
@@ -76,7 +80,7 @@ public class MetaData {
     backupfile.parseLocal(metafile, BackupFileType.META);
     backupfile.time = backupfile.parseDate(snapshotName);
     try {
-      upload(backupfile);
+      ledger.record(backupfile, upload(backupfile));
 
       addToRemotePath(backupfile.getRemotePath());
       if (metaRemotePaths.size() > 0) {
@@ -111,12 +115,16 @@ public class MetaData {
     return files;
   }
 
-  private void upload(final AbstractBackupPath bp) throws Exception {
-    new RetryableCallable<Void>() {
+  /**
+   * @return MD5 of the file, computed as it is read for the upload
+   */
+  private String upload(final AbstractBackupPath bp) throws Exception {
+    return new RetryableCallable<String>() {
       @Override
-      public Void retriableCall() throws Exception {
-        fs.upload(bp, bp.localReader());
-        return null;
+      public String retriableCall() throws Exception {
+        Md5InputStream in = new Md5InputStream(bp.localReader());
+        fs.upload(bp, in);
+        return in.getMd5() != null ? in.getMd5() : SystemUtils.md5(bp.getBackupFile());
       }
     }.call();
   }
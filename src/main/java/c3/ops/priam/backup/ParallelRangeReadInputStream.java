@@ -0,0 +1,275 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.utils.BufferPool;
+import c3.ops.priam.utils.RetryableCallable;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reads an S3 object by keeping several ranged GETs in flight at once and
+ * handing their bytes out in order.
+ * <p>
+ * Up to {@code parallelism} ranges are fetched ahead into buffers from a
+ * shared {@link BufferPool}; the queue of pending ranges is the reorder
+ * buffer. Apart from the range being read, extra ranges are only requested
+ * when the pool has a free buffer, so streams sharing a pool cannot deadlock
+ * each other.
+ * <p>
+ * A range that is dropped unread hands its buffer back exactly once: by the
+ * stream when its fetch has not started or has finished, otherwise by the
+ * fetcher when it completes.
+ */
+public class ParallelRangeReadInputStream extends InputStream {
+  private static final Logger logger = LoggerFactory.getLogger(ParallelRangeReadInputStream.class);
+
+  private final AmazonS3 s3Client;
+  private final String bucketName;
+  private final AbstractBackupPath path;
+  private final ExecutorService executor;
+  private final BufferPool pool;
+  private final int rangeSize;
+  private final int parallelism;
+  private final AtomicLong bytesBuffered;
+  private final Deque<Range> pending = new ArrayDeque<Range>();
+  private long nextOffset;
+  private ByteBuffer current;
+  private boolean closed;
+
+  public ParallelRangeReadInputStream(AmazonS3 s3Client, String bucketName, AbstractBackupPath path, ExecutorService executor,
+                                      BufferPool pool, int rangeSize, int parallelism, AtomicLong bytesBuffered) {
+    this.s3Client = s3Client;
+    this.bucketName = bucketName;
+    this.path = path;
+    this.executor = executor;
+    this.pool = pool;
+    this.rangeSize = rangeSize;
+    this.parallelism = parallelism;
+    this.bytesBuffered = bytesBuffered;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!ensureCurrent())
+      return -1;
+    int count = Math.min(len, current.remaining());
+    current.get(b, off, count);
+    bytesBuffered.addAndGet(-count);
+    return count;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureCurrent())
+      return -1;
+    bytesBuffered.decrementAndGet();
+    return current.get() & 0xFF;
+  }
+
+  @Override
+  public int available() {
+    return current == null ? 0 : current.remaining();
+  }
+
+  private boolean ensureCurrent() throws IOException {
+    if (closed)
+      throw new IOException("Stream closed for " + path.getRemotePath());
+    while (current == null || !current.hasRemaining()) {
+      if (current != null) {
+        pool.release(current);
+        current = null;
+      }
+      fill();
+      if (pending.isEmpty())
+        return false;
+      current = await(pending.poll());
+    }
+    return true;
+  }
+
+  /**
+   * Top up the ranges in flight. Blocks for a buffer only when nothing at all
+   * is pending.
+   */
+  private void fill() throws IOException {
+    final long fileSize = path.getSize();
+    while (pending.size() < parallelism && nextOffset < fileSize) {
+      ByteBuffer buf;
+      if (pending.isEmpty()) {
+        try {
+          buf = pool.acquire(rangeSize);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted waiting for a download buffer", e);
+        }
+      } else {
+        buf = pool.tryAcquire(rangeSize);
+        if (buf == null)
+          return;
+      }
+      long firstByte = nextOffset;
+      long lastByte = Math.min(firstByte + rangeSize, fileSize) - 1;
+      nextOffset = lastByte + 1;
+      Range range = new Range(buf);
+      range.future = executor.submit(new RangeFetcher(firstByte, lastByte, range));
+      pending.add(range);
+    }
+  }
+
+  private ByteBuffer await(Range range) throws IOException {
+    try {
+      return range.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      discard(range);
+      throw new IOException("Interrupted downloading " + path.getRemotePath(), e);
+    } catch (ExecutionException e) {
+      // the fetcher has already released its buffer
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    if (closed)
+      return;
+    closed = true;
+    if (current != null) {
+      bytesBuffered.addAndGet(-current.remaining());
+      pool.release(current);
+      current = null;
+    }
+    while (!pending.isEmpty())
+      discard(pending.poll());
+  }
+
+  /**
+   * Drop a range nobody is going to read. Never waits: a fetch in progress is
+   * marked abandoned and releases the buffer itself when it completes.
+   */
+  private void discard(Range range) {
+    while (true) {
+      switch (range.state.get()) {
+        case Range.NEW:
+          if (range.state.compareAndSet(Range.NEW, Range.ABANDONED)) {
+            range.future.cancel(false);
+            pool.release(range.buf);
+            return;
+          }
+          break;
+        case Range.RUNNING:
+          if (range.state.compareAndSet(Range.RUNNING, Range.ABANDONED))
+            return;
+          break;
+        case Range.DONE:
+          bytesBuffered.addAndGet(-range.buf.remaining());
+          pool.release(range.buf);
+          return;
+        default:
+          // failed fetches release their own buffer
+          return;
+      }
+    }
+  }
+
+  /**
+   * One range in flight. The state decides who releases the buffer.
+   */
+  private static class Range {
+    static final int NEW = 0;
+    static final int RUNNING = 1;
+    static final int DONE = 2;
+    static final int FAILED = 3;
+    static final int ABANDONED = 4;
+
+    private final ByteBuffer buf;
+    private final AtomicInteger state = new AtomicInteger(NEW);
+    private Future<ByteBuffer> future;
+
+    Range(ByteBuffer buf) {
+      this.buf = buf;
+    }
+  }
+
+  /**
+   * Fetches one byte range into its buffer, with retries.
+   */
+  private class RangeFetcher extends RetryableCallable<ByteBuffer> {
+    private final long firstByte;
+    private final long lastByte;
+    private final Range range;
+    private final ByteBuffer buf;
+
+    RangeFetcher(long firstByte, long lastByte, Range range) {
+      this.firstByte = firstByte;
+      this.lastByte = lastByte;
+      this.range = range;
+      this.buf = range.buf;
+    }
+
+    @Override
+    public ByteBuffer retriableCall() throws Exception {
+      GetObjectRequest req = new GetObjectRequest(bucketName, path.getRemotePath());
+      req.setRange(firstByte, lastByte);
+      int expected = (int) (lastByte - firstByte + 1);
+      S3ObjectInputStream is = null;
+      try {
+        buf.clear();
+        is = s3Client.getObject(req).getObjectContent();
+        ReadableByteChannel channel = Channels.newChannel(is);
+        while (buf.position() < expected && channel.read(buf) >= 0) {
+          // keep reading till the range is complete
+        }
+        if (buf.position() != expected)
+          throw new IOException(String.format("Short read of range %d-%d of %s: got %d bytes",
+              firstByte, lastByte, path.getRemotePath(), buf.position()));
+        buf.flip();
+        return buf;
+      } finally {
+        IOUtils.closeQuietly(is);
+      }
+    }
+
+    @Override
+    public ByteBuffer call() throws Exception {
+      // dropped before it started, the stream has released the buffer
+      if (!range.state.compareAndSet(Range.NEW, Range.RUNNING))
+        return null;
+      ByteBuffer result;
+      try {
+        result = super.call();
+      } catch (Exception e) {
+        if (range.state.getAndSet(Range.FAILED) != Range.ABANDONED)
+          logger.error(String.format("failed to read offset range %d-%d of file %s whose size is %d",
+              firstByte, lastByte, path.getRemotePath(), path.getSize()));
+        pool.release(buf);
+        throw e;
+      }
+      bytesBuffered.addAndGet(result.remaining());
+      if (!range.state.compareAndSet(Range.RUNNING, Range.DONE)) {
+        // dropped while it was being read
+        bytesBuffered.addAndGet(-result.remaining());
+        pool.release(buf);
+      }
+      return result;
+    }
+  }
+}
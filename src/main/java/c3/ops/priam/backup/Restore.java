@@ -17,14 +17,13 @@ package c3.ops.priam.backup;
 
 import c3.ops.priam.ICassandraProcess;
 import c3.ops.priam.IConfiguration;
-import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
 import c3.ops.priam.identity.InstanceIdentity;
 import c3.ops.priam.scheduler.SimpleTimer;
 import c3.ops.priam.scheduler.TaskTimer;
+import c3.ops.priam.utils.JMXNodeTool;
 import c3.ops.priam.utils.RetryableCallable;
 import c3.ops.priam.utils.Sleeper;
 import c3.ops.priam.utils.SystemUtils;
-import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
@@ -35,10 +34,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.Collections;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -53,15 +52,18 @@ public class Restore extends AbstractRestore {
   private Provider<AbstractBackupPath> pathProvider;
   @Inject
   private RestoreTokenSelector tokenSelector;
-  @Inject
-  private MetaData metaData;
+  private final RestorePlanner planner;
   @Inject
   private InstanceIdentity id;
+  // Set while a staged restore is downloading
+  private StagedRestore staged;
 
   @Inject
-  public Restore(IConfiguration config, @Named("backup") IBackupFileSystem fs, Sleeper sleeper, ICassandraProcess cassProcess) {
-    super(config, fs, JOBNAME, sleeper);
+  public Restore(IConfiguration config, @Named("backup") IBackupFileSystem fs, Sleeper sleeper, ICassandraProcess cassProcess,
+                 RestoreThrottle throttle, RestorePlanner planner) {
+    super(config, fs, JOBNAME, sleeper, throttle);
     this.cassProcess = cassProcess;
+    this.planner = planner;
   }
 
   public static TaskTimer getTimer() {
@@ -113,62 +115,90 @@ public class Restore extends AbstractRestore {
     if (config.getRestoreKeySpaces().size() == 0)
       cassProcess.stop();
 
-    // Cleanup local data
-    SystemUtils.cleanupDir(config.getDataFileLocation(), config.getRestoreKeySpaces());
-
-    // Try and read the Meta file.
-    List<AbstractBackupPath> metas = Lists.newArrayList();
-    String prefix = "";
-    if (StringUtils.isNotBlank(config.getRestorePrefix()))
-      prefix = config.getRestorePrefix();
-    else
-      prefix = config.getBackupPrefix();
-    logger.info("Looking for meta file here:  " + prefix);
-    Iterator<AbstractBackupPath> backupfiles = fs.list(prefix, startTime, endTime);
-    while (backupfiles.hasNext()) {
-      AbstractBackupPath path = backupfiles.next();
-      if (path.type == BackupFileType.META) {
-        //Since there are now meta file for incrementals as well as snapshot, we need to find the correct one (i.e. the snapshot meta file (meta.json))
-        if (path.getFileName().equalsIgnoreCase("meta.json")) {
-          metas.add(path);
-        }
-
-      }
-
-    }
-
-    if (metas.size() == 0) {
+    // Work out the files to download before downloading any
+    RestorePlanner.Plan plan = planner.plan(startTime, endTime);
+    if (plan == null) {
       logger.info("[cass_backup] No snapshot meta file found, Restore Failed.");
       assert false : "[cass_backup] No snapshots found, Restore Failed.";
       return;
     }
+    logger.info("Snapshot Meta file for restore " + plan.getMeta().getRemotePath());
+
+    // An interrupted restore of the same snapshot keeps what it already downloaded
+    String restoreId = planner.getPrefix() + " " + plan.getMeta().getRemotePath() + " " + AbstractBackupPath.formatDate(endTime)
+        + " " + config.getRestoreKeySpaces();
+    boolean resuming = restored.open(restoreId);
+    // A staged restore goes to a running node, whose files are still in use
+    boolean stagedRestore = config.isRestoreStaged() && config.getRestoreKeySpaces().size() != 0;
+    boolean complete = false;
+    try {
+      // Cleanup local data
+      if (!resuming && !stagedRestore)
+        SystemUtils.cleanupDir(config.getDataFileLocation(), config.getRestoreKeySpaces());
+
+      //Downloading CommitLogs
+      List<AbstractBackupPath> files = Lists.newArrayList();
+      if (config.isBackingUpCommitLogs())  //TODO: will change to isRestoringCommitLogs()
+      {
+        if (!resuming && !stagedRestore) {
+          logger.info("Delete all backuped commitlog files in " + config.getBackupCommitLogLocation());
+          SystemUtils.cleanupDir(config.getBackupCommitLogLocation(), null);
+
+          logger.info("Delete all commitlog files in " + config.getCommitLogLocation());
+          SystemUtils.cleanupDir(config.getCommitLogLocation(), null);
+        }
+        files.addAll(plan.getCommitLogs());
+      }
 
+      // One pass over the download pool: the few commit logs go first so they
+      // never wait behind large SSTables, then the snapshot and incrementals
+      // largest first
+      files.addAll(plan.getFiles());
+      if (stagedRestore)
+        downloadStaged(files);
+      else
+        download(files);
+      complete = true;
+    } finally {
+      restored.close(complete);
+    }
+  }
 
-    Collections.sort(metas);
-    AbstractBackupPath meta = Iterators.getLast(metas.iterator());
-    logger.info("Snapshot Meta file for restore " + meta.getRemotePath());
-
-    // Download snapshot which is listed in the meta file.
-    List<AbstractBackupPath> snapshots = metaData.get(meta);
-    download(snapshots.iterator(), BackupFileType.SNAP);
-
-    logger.info("Downloading incrementals");
-    // Download incrementals (SST).
-    Iterator<AbstractBackupPath> incrementals = fs.list(prefix, meta.time, endTime);
-    download(incrementals, BackupFileType.SST);
-
-    //Downloading CommitLogs
-    if (config.isBackingUpCommitLogs())  //TODO: will change to isRestoringCommitLogs()
-    {
-      logger.info("Delete all backuped commitlog files in " + config.getBackupCommitLogLocation());
-      SystemUtils.cleanupDir(config.getBackupCommitLogLocation(), null);
+  /**
+   * Download a keyspace restore of a running node through the staging dir,
+   * loading each column family once its SSTables are in place. Files other
+   * than SSTables go straight to their usual place.
+   */
+  private void downloadStaged(List<AbstractBackupPath> files) throws Exception {
+    staged = new StagedRestore(new File(config.getDataFileLocation()), new StagedRestore.Loader() {
+      @Override
+      public void load(String keyspace, String columnFamily) throws Exception {
+        JMXNodeTool.instance(config).loadNewSSTables(keyspace, columnFamily);
+      }
+    }, files, restored);
+    try {
+      for (AbstractBackupPath path : files)
+        if (!staged.isPlaced(path))
+          download(path, staged.stagingFile(path));
+      waitToComplete();
+      if (!staged.getLoadFailures().isEmpty())
+        logger.error("Restored SSTables of {} are in place but not loaded, refresh them", staged.getLoadFailures());
+    } finally {
+      staged.close();
+      staged = null;
+    }
+  }
 
-      logger.info("Delete all commitlog files in " + config.getCommitLogLocation());
-      SystemUtils.cleanupDir(config.getCommitLogLocation(), null);
+  @Override
+  protected boolean isRestoredOnDownload(AbstractBackupPath path) {
+    // A staged SSTable is recorded once its generation is in place
+    return staged == null || !StagedRestore.isStaged(path);
+  }
 
-      Iterator<AbstractBackupPath> commitLogPathIterator = fs.list(prefix, meta.time, endTime);
-      download(commitLogPathIterator, BackupFileType.CL, config.maxCommitLogsRestore());
-    }
+  @Override
+  protected void downloaded(AbstractBackupPath path, File location) throws IOException {
+    if (staged != null)
+      staged.downloaded(path);
   }
 
   @Override
@@ -0,0 +1,168 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.ParallelFramedDecoder;
+import c3.ops.priam.utils.NativeIO;
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Destination for a restored file.
+ * <p>
+ * Stream writes are gathered into large block-aligned writes on a
+ * FileChannel. Disk space is preallocated from the expected size and then in
+ * large steps as the file grows. {@link #write(ByteBuffer, long)} allows
+ * positional writes from several threads for writers that produce the file
+ * out of order. The file is truncated to the bytes actually written and
+ * synced once, on close.
+ */
+public class RestoreFileSink extends OutputStream implements ParallelFramedDecoder.Sink {
+  private static final int BLOCK_SIZE = 1024 * 1024;
+  private static final long PREALLOCATE_STEP = 64L * 1024 * 1024;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final FileChannel channel;
+  private final int fd;
+  private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+  private final RateLimiter limiter;
+  private final AtomicLong end = new AtomicLong();
+  private long position;
+  private long allocated;
+  private boolean closed;
+
+  /**
+   * @param file         file to restore into, truncated if it exists
+   * @param expectedSize expected size of the file, 0 if unknown
+   */
+  public RestoreFileSink(File file, long expectedSize) throws IOException {
+    this(file, expectedSize, null);
+  }
+
+  /**
+   * @param file         file to restore into, truncated if it exists
+   * @param expectedSize expected size of the file, 0 if unknown
+   * @param limiter      takes a permit per byte written to disk, or null
+   */
+  public RestoreFileSink(File file, long expectedSize, RateLimiter limiter) throws IOException {
+    this.file = file;
+    this.limiter = limiter;
+    this.raf = new RandomAccessFile(file, "rw");
+    this.channel = raf.getChannel();
+    this.fd = NativeIO.getfd(raf.getFD());
+    channel.truncate(0);
+    preallocate(expectedSize);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Reserve disk space for the first {@code size} bytes of the file.
+   */
+  public synchronized void preallocate(long size) {
+    if (size <= allocated)
+      return;
+    if (NativeIO.tryFallocate(fd, allocated, size - allocated))
+      allocated = size;
+    else
+      allocated = Long.MAX_VALUE; // not supported here, don't keep trying
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    block.put((byte) b);
+    if (!block.hasRemaining())
+      flushBlock();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    while (len > 0) {
+      int count = Math.min(len, block.remaining());
+      block.put(b, off, count);
+      off += count;
+      len -= count;
+      if (!block.hasRemaining())
+        flushBlock();
+    }
+  }
+
+  /**
+   * Write the remaining bytes of src at the given file offset. Safe to call
+   * from several threads at once; not meant to be mixed with stream writes.
+   */
+  @Override
+  public void write(ByteBuffer src, long offset) throws IOException {
+    ensureOpen();
+    long last = offset + src.remaining();
+    throttle(src.remaining());
+    growTo(last);
+    while (src.hasRemaining())
+      offset += channel.write(src, offset);
+    advanceEnd(last);
+  }
+
+  private void flushBlock() throws IOException {
+    block.flip();
+    long last = position + block.remaining();
+    throttle(block.remaining());
+    growTo(last);
+    while (block.hasRemaining())
+      position += channel.write(block, position);
+    block.clear();
+    advanceEnd(last);
+  }
+
+  private void throttle(int bytes) {
+    if (limiter != null && bytes > 0)
+      limiter.acquire(bytes);
+  }
+
+  private void growTo(long size) {
+    if (size > allocated)
+      preallocate(Math.max(size, allocated + PREALLOCATE_STEP));
+  }
+
+  private void advanceEnd(long last) {
+    long current;
+    while ((current = end.get()) < last && !end.compareAndSet(current, last)) {
+      // retry
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed)
+      throw new IOException("Restore sink already closed for " + file);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    // data reaches the disk on close; partial blocks are not written early
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed)
+      return;
+    closed = true;
+    try {
+      if (block.position() > 0)
+        flushBlock();
+      // drop whatever was preallocated past the real end of the file
+      channel.truncate(end.get());
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+  }
+}
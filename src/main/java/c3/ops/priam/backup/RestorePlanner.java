@@ -0,0 +1,246 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which files a restore needs before any of them is downloaded.
+ * <p>
+ * The candidates are the files listed in the latest snapshot meta file of the
+ * range, the incremental SSTables backed up after that snapshot and, when
+ * commit logs are backed up, the last few commit logs. They all come from a
+ * single listing of the range. Then:
+ * <ul>
+ * <li>a file that shows up twice, under the same remote path or as the same
+ * file of a column family, is downloaded once. Copies of one file are
+ * restored to the same local path whatever codec they were stored with, and
+ * the snapshot copy is preferred;</li>
+ * <li>files of keyspaces that are not being restored are dropped.</li>
+ * </ul>
+ * Data files are ordered largest first, so the biggest downloads start early
+ * instead of holding up the end of the restore.
+ */
+@Singleton
+public class RestorePlanner {
+  private static final Logger logger = LoggerFactory.getLogger(RestorePlanner.class);
+  private static final String SNAPSHOT_META = "meta.json";
+  private static final Comparator<AbstractBackupPath> LARGEST_FIRST = new Comparator<AbstractBackupPath>() {
+    @Override
+    public int compare(AbstractBackupPath a, AbstractBackupPath b) {
+      return Long.compare(b.getSize(), a.getSize());
+    }
+  };
+  private final IConfiguration config;
+  private final IBackupFileSystem fs;
+  private final MetaData metaData;
+
+  @Inject
+  public RestorePlanner(IConfiguration config, @Named("backup") IBackupFileSystem fs, MetaData metaData) {
+    this.config = config;
+    this.fs = fs;
+    this.metaData = metaData;
+  }
+
+  /**
+   * Parse the SSTable generation out of a file name such as
+   * ks-cf-jb-12-Data.db.
+   *
+   * @return the generation, or -1 if the name has none
+   */
+  static long generation(String fileName) {
+    String[] parts = StringUtils.split(fileName, '-');
+    if (parts.length < 3)
+      return -1;
+    try {
+      return Long.parseLong(parts[parts.length - 2]);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the prefix restores read from: the restore prefix if set, else
+   * this node's backup prefix
+   */
+  public String getPrefix() {
+    return StringUtils.isNotBlank(config.getRestorePrefix()) ? config.getRestorePrefix() : config.getBackupPrefix();
+  }
+
+  /**
+   * Plan a restore of the latest snapshot in the range, and what was backed
+   * up after it until the end of the range.
+   *
+   * @return the plan, or null if there is no snapshot in the range
+   */
+  public Plan plan(Date startTime, Date endTime) {
+    String prefix = getPrefix();
+    logger.info("Looking for meta file here:  " + prefix);
+    List<AbstractBackupPath> listed = Lists.newArrayList(fs.list(prefix, startTime, endTime));
+    List<AbstractBackupPath> metas = Lists.newArrayList();
+    for (AbstractBackupPath path : listed) {
+      // Incremental backups write meta files too; only meta.json describes a snapshot
+      if (path.getType() == BackupFileType.META && path.getFileName().equalsIgnoreCase(SNAPSHOT_META))
+        metas.add(path);
+    }
+    if (metas.isEmpty())
+      return null;
+    Collections.sort(metas);
+    AbstractBackupPath meta = metas.get(metas.size() - 1);
+
+    List<AbstractBackupPath> snapshot = Lists.newArrayList();
+    for (AbstractBackupPath path : metaData.get(meta)) {
+      if (path.getType() == BackupFileType.SNAP)
+        snapshot.add(path);
+    }
+    resolveSizes(snapshot, listed);
+
+    Plan plan = new Plan(meta);
+    Set<String> remotePaths = Sets.newHashSet();
+    Map<String, AbstractBackupPath> components = Maps.newHashMap();
+    for (AbstractBackupPath path : snapshot)
+      plan.add(path, remotePaths, components);
+    for (AbstractBackupPath path : listed) {
+      // Incrementals from before the snapshot are in it already
+      if (path.getType() != BackupFileType.SST || path.getTime().before(meta.getTime()))
+        continue;
+      plan.add(path, remotePaths, components);
+    }
+    Collections.sort(plan.files, LARGEST_FIRST);
+
+    if (config.isBackingUpCommitLogs()) {
+      LinkedList<AbstractBackupPath> commitLogs = Lists.newLinkedList();
+      for (AbstractBackupPath path : listed) {
+        if (path.getType() != BackupFileType.CL || path.getTime().before(meta.getTime()))
+          continue;
+        commitLogs.add(path);
+        if (commitLogs.size() > config.maxCommitLogsRestore())
+          commitLogs.removeFirst();
+      }
+      plan.commitLogs.addAll(commitLogs);
+    }
+    logger.info("Restore plan: {}", plan);
+    return plan;
+  }
+
+  /**
+   * Meta files only give the remote paths, so take the sizes from the
+   * listing.
+   */
+  private static void resolveSizes(List<AbstractBackupPath> snapshot, List<AbstractBackupPath> listed) {
+    Map<String, AbstractBackupPath> byPath = Maps.newHashMap();
+    for (AbstractBackupPath path : listed)
+      byPath.put(path.getRemotePath(), path);
+    for (AbstractBackupPath path : snapshot) {
+      AbstractBackupPath known = byPath.get(path.getRemotePath());
+      if (known != null)
+        path.setSize(known.getSize());
+    }
+  }
+
+  private static String columnFamily(AbstractBackupPath path) {
+    return path.getKeyspace() + "/" + path.getColumnFamily();
+  }
+
+  private static String component(AbstractBackupPath path) {
+    return columnFamily(path) + "/" + path.getFileName();
+  }
+
+  /**
+   * Files to download for a restore, and what was left out.
+   */
+  public class Plan {
+    private final AbstractBackupPath meta;
+    private final List<AbstractBackupPath> files = Lists.newArrayList();
+    private final List<AbstractBackupPath> commitLogs = Lists.newArrayList();
+    private int duplicates;
+
+    Plan(AbstractBackupPath meta) {
+      this.meta = meta;
+    }
+
+    private void add(AbstractBackupPath path, Set<String> remotePaths, Map<String, AbstractBackupPath> components) {
+      if (!AbstractRestore.isRestored(config, path))
+        return;
+      if (!remotePaths.add(path.getRemotePath())) {
+        duplicates++;
+        return;
+      }
+      AbstractBackupPath kept = components.get(component(path));
+      if (kept != null) {
+        duplicates++;
+        if (kept.getType() == BackupFileType.SNAP || path.getType() != BackupFileType.SNAP)
+          return;
+        files.remove(kept);
+      }
+      components.put(component(path), path);
+      files.add(path);
+    }
+
+    /**
+     * @return the snapshot meta file the restore starts from
+     */
+    public AbstractBackupPath getMeta() {
+      return meta;
+    }
+
+    /**
+     * @return snapshot and incremental files, largest first
+     */
+    public List<AbstractBackupPath> getFiles() {
+      return files;
+    }
+
+    /**
+     * @return commit logs to replay, oldest first
+     */
+    public List<AbstractBackupPath> getCommitLogs() {
+      return commitLogs;
+    }
+
+    public int getDuplicates() {
+      return duplicates;
+    }
+
+    public long getFileBytes() {
+      return bytes(files);
+    }
+
+    public long getCommitLogBytes() {
+      return bytes(commitLogs);
+    }
+
+    public long getTotalBytes() {
+      return getFileBytes() + getCommitLogBytes();
+    }
+
+    private long bytes(List<AbstractBackupPath> paths) {
+      long total = 0;
+      for (AbstractBackupPath path : paths)
+        total += path.getSize();
+      return total;
+    }
+
+    @Override
+    public String toString() {
+      return "snapshot " + meta.getRemotePath() + ", " + files.size() + " files and " + commitLogs.size() + " commit logs, "
+          + getTotalBytes() + " bytes; " + duplicates + " duplicates left out";
+    }
+  }
+}
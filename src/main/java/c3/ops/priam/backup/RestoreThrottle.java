@@ -0,0 +1,116 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.utils.JMXConnectionException;
+import c3.ops.priam.utils.JMXNodeTool;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits shared by all restores: the rate files are downloaded at, the rate
+ * they are written to disk at, and how many are restored at once while
+ * Cassandra is busy. Rates are in bytes per second, 0 for unlimited, and can
+ * be changed while a restore runs.
+ */
+@Singleton
+public class RestoreThrottle {
+  private static final Logger logger = LoggerFactory.getLogger(RestoreThrottle.class);
+  private final IConfiguration config;
+  private final RateLimiter downloadLimiter;
+  private final RateLimiter writeLimiter;
+  private volatile long downloadRate;
+  private volatile long writeRate;
+
+  @Inject
+  public RestoreThrottle(IConfiguration config) {
+    this.config = config;
+    this.downloadRate = Math.max(0, config.getRestoreDownloadThrottle());
+    this.writeRate = Math.max(0, config.getRestoreWriteThrottle());
+    this.downloadLimiter = RateLimiter.create(toRate(downloadRate));
+    this.writeLimiter = RateLimiter.create(toRate(writeRate));
+  }
+
+  public RateLimiter getDownloadLimiter() {
+    return downloadLimiter;
+  }
+
+  public RateLimiter getWriteLimiter() {
+    return writeLimiter;
+  }
+
+  public long getDownloadRate() {
+    return downloadRate;
+  }
+
+  public void setDownloadRate(long bytesPerSecond) {
+    downloadRate = Math.max(0, bytesPerSecond);
+    downloadLimiter.setRate(toRate(downloadRate));
+    logger.info("Restore download rate set to " + describe(downloadRate));
+  }
+
+  public long getWriteRate() {
+    return writeRate;
+  }
+
+  public void setWriteRate(long bytesPerSecond) {
+    writeRate = Math.max(0, bytesPerSecond);
+    writeLimiter.setRate(toRate(writeRate));
+    logger.info("Restore write rate set to " + describe(writeRate));
+  }
+
+  /**
+   * @return how many files to restore at once, given the number restored at
+   * once now and the tasks pending in Cassandra's thread pools. Returns
+   * current if Cassandra can't be reached or back off is disabled.
+   */
+  public int concurrency(int current) {
+    int limit = config.getRestoreMaxPendingTasks();
+    if (limit < 1)
+      return current;
+    long pending;
+    try {
+      pending = pendingTasks(JMXNodeTool.instance(config));
+    } catch (JMXConnectionException e) {
+      return current;
+    }
+    int next = concurrency(current, config.getMaxBackupDownloadThreads(), pending, limit);
+    if (next != current)
+      logger.info(String.format("Cassandra has %d pending tasks, restoring %d files at once", pending, next));
+    return next;
+  }
+
+  /**
+   * Halve the concurrency while pending tasks are over the limit, and add one
+   * back per check once they are not.
+   */
+  static int concurrency(int current, int max, long pending, int limit) {
+    if (pending > limit)
+      return Math.max(1, current / 2);
+    return Math.min(max, current + 1);
+  }
+
+  // Cassandra 2.0's NodeProbe only lists thread pools through the deprecated
+  // MBean, named in full here because an import can't suppress the warning
+  @SuppressWarnings("deprecation")
+  private static long pendingTasks(JMXNodeTool nodetool) {
+    long pending = 0;
+    Iterator<Map.Entry<String, org.apache.cassandra.concurrent.JMXEnabledThreadPoolExecutorMBean>> pools = nodetool.getThreadPoolMBeanProxies();
+    while (pools.hasNext())
+      pending += pools.next().getValue().getPendingTasks();
+    return pending;
+  }
+
+  private static double toRate(long bytesPerSecond) {
+    return bytesPerSecond < 1 ? Double.MAX_VALUE : bytesPerSecond;
+  }
+
+  private static String describe(long bytesPerSecond) {
+    return bytesPerSecond < 1 ? "unlimited" : bytesPerSecond + " bytes/sec";
+  }
+}
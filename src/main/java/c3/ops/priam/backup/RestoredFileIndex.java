@@ -0,0 +1,225 @@
+package c3.ops.priam.backup;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Files a restore has finished downloading, so none is fetched twice and an
+ * interrupted restore picks up where it stopped.
+ * <p>
+ * Files are keyed by a 64 bit hash of their remote path, worked out once per
+ * file. The hashes are spread over {@link #STRIPES} open addressing sets of
+ * primitive longs, each with its own lock, so download threads rarely wait
+ * on each other, and a million files take 16 to 32 MB.
+ * <p>
+ * Every hash is also appended to a journal under the local state dir. The
+ * journal starts with an id for the restore; a restore with the same id
+ * loads the hashes and resumes, any other restore starts over. The journal
+ * is deleted once the restore completes.
+ */
+public class RestoredFileIndex {
+  private static final Logger logger = LoggerFactory.getLogger(RestoredFileIndex.class);
+  static final int STRIPES = 16;
+  private final File journalFile;
+  private final LongSet[] stripes = new LongSet[STRIPES];
+  private DataOutputStream journal;
+
+  public RestoredFileIndex(File journalFile) {
+    this.journalFile = journalFile;
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new LongSet();
+  }
+
+  /**
+   * @return hash the index keys the file by
+   */
+  public static long hash(AbstractBackupPath path) {
+    return Hashing.murmur3_128().hashString(path.getRemotePath(), Charsets.UTF_8).asLong();
+  }
+
+  /**
+   * Start recording a restore. If the journal was left by an interrupted
+   * restore with the same id, the files it recorded count as restored.
+   *
+   * @return true if resuming an earlier restore
+   */
+  public synchronized boolean open(String restoreId) {
+    closeJournal();
+    for (LongSet stripe : stripes)
+      stripe.clear();
+    boolean resuming = load(restoreId);
+    try {
+      FileUtils.forceMkdir(journalFile.getParentFile());
+      journal = new DataOutputStream(new FileOutputStream(journalFile, resuming));
+      if (!resuming) {
+        journal.writeUTF(restoreId);
+        journal.flush();
+      }
+    } catch (IOException e) {
+      logger.warn("Unable to write restore journal " + journalFile + ", an interrupted restore will start over", e);
+      closeJournal();
+    }
+    return resuming;
+  }
+
+  private boolean load(String restoreId) {
+    if (!journalFile.exists())
+      return false;
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+      if (!restoreId.equals(in.readUTF()))
+        return false;
+      long header = headerLength(restoreId);
+      long records = (journalFile.length() - header) / 8;
+      for (long i = 0; i < records; i++)
+        add(in.readLong());
+      in.close();
+      // Drop a torn last record so appends stay aligned
+      RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+      try {
+        raf.setLength(header + records * 8);
+      } finally {
+        raf.close();
+      }
+      logger.info("Resuming restore from {}: {} files already restored", journalFile, size());
+      return true;
+    } catch (EOFException e) {
+      return false;
+    } catch (IOException e) {
+      logger.warn("Unable to read restore journal " + journalFile + ", starting over", e);
+      return false;
+    } finally {
+      IOUtils.closeQuietly(in);
+    }
+  }
+
+  private static long headerLength(String restoreId) throws IOException {
+    ByteArrayOutputStream header = new ByteArrayOutputStream();
+    new DataOutputStream(header).writeUTF(restoreId);
+    return header.size();
+  }
+
+  public boolean contains(long hash) {
+    return stripe(hash).contains(hash);
+  }
+
+  /**
+   * Record a file as restored.
+   */
+  public void add(AbstractBackupPath path, long hash) {
+    if (!add(hash))
+      return;
+    synchronized (this) {
+      if (journal == null)
+        return;
+      try {
+        // A torn record is dropped on load, so only that file is fetched again
+        journal.writeLong(hash);
+        journal.flush();
+      } catch (IOException e) {
+        logger.warn("Unable to record " + path.getRemotePath() + " in " + journalFile, e);
+        closeJournal();
+      }
+    }
+  }
+
+  private boolean add(long hash) {
+    return stripe(hash).add(hash);
+  }
+
+  public int size() {
+    int size = 0;
+    for (LongSet stripe : stripes)
+      size += stripe.size();
+    return size;
+  }
+
+  /**
+   * Stop recording. The journal of a complete restore is deleted; otherwise it
+   * is kept so the next attempt resumes.
+   */
+  public synchronized void close(boolean complete) {
+    closeJournal();
+    if (complete)
+      FileUtils.deleteQuietly(journalFile);
+  }
+
+  private void closeJournal() {
+    IOUtils.closeQuietly(journal);
+    journal = null;
+  }
+
+  private LongSet stripe(long hash) {
+    return stripes[(int) (hash >>> 60)];
+  }
+
+  /**
+   * Set of longs with linear probing. Zero marks a free slot, so a zero key
+   * is stored as one.
+   */
+  private static class LongSet {
+    private long[] slots = new long[64];
+    private int size;
+
+    synchronized boolean contains(long key) {
+      key = key == 0 ? 1 : key;
+      int mask = slots.length - 1;
+      for (int i = (int) key & mask; slots[i] != 0; i = (i + 1) & mask) {
+        if (slots[i] == key)
+          return true;
+      }
+      return false;
+    }
+
+    synchronized boolean add(long key) {
+      key = key == 0 ? 1 : key;
+      if (!insert(slots, key))
+        return false;
+      if (++size > slots.length / 2) {
+        long[] grown = new long[slots.length * 2];
+        for (long slot : slots) {
+          if (slot != 0)
+            insert(grown, slot);
+        }
+        slots = grown;
+      }
+      return true;
+    }
+
+    private static boolean insert(long[] slots, long key) {
+      int mask = slots.length - 1;
+      int i = (int) key & mask;
+      for (; slots[i] != 0; i = (i + 1) & mask) {
+        if (slots[i] == key)
+          return false;
+      }
+      slots[i] = key;
+      return true;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized void clear() {
+      slots = new long[64];
+      size = 0;
+    }
+  }
+}
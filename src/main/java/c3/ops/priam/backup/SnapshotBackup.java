@@ -51,14 +51,16 @@ public class SnapshotBackup extends AbstractBackup {
   private final ThreadSleeper sleeper = new ThreadSleeper();
   private final long WAIT_TIME_MS = 60 * 1000 * 10;
   private final CommitLogBackup clBackup;
+  private final BackupDedupIndex dedupIndex;
 
 
   @Inject
   public SnapshotBackup(IConfiguration config, @Named("backup") IBackupFileSystem fs, Provider<AbstractBackupPath> pathFactory,
-                        MetaData metaData, CommitLogBackup clBackup) {
-    super(config, fs, pathFactory);
+                        MetaData metaData, CommitLogBackup clBackup, BackupUploadScheduler scheduler, UploadLedger ledger, BackupDedupIndex dedupIndex) {
+    super(config, fs, pathFactory, scheduler, ledger);
     this.metaData = metaData;
     this.clBackup = clBackup;
+    this.dedupIndex = dedupIndex;
   }
 
   public static TaskTimer getTimer(IConfiguration config) {
@@ -90,7 +92,7 @@ public class SnapshotBackup extends AbstractBackup {
       snapshotRemotePaths.clear();
       takeSnapshot(snapshotName);
       // Collect all snapshot dir's under keyspace dir's
-      List<AbstractBackupPath> bps = Lists.newArrayList();
+      List<File> snapshotDirs = Lists.newArrayList();
       File dataDir = new File(config.getDataFileLocation());
       for (File keyspaceDir : dataDir.listFiles()) {
         if (keyspaceDir.isFile())
@@ -105,13 +107,18 @@ public class SnapshotBackup extends AbstractBackup {
           File snapshotDir = getValidSnapshot(columnFamilyDir, snpDir, snapshotName);
           // Add files to this dir
           if (null != snapshotDir)
-            bps.addAll(upload(snapshotDir, BackupFileType.SNAP));
+            snapshotDirs.add(snapshotDir);
           else
             logger.warn("{} folder does not contain {} snapshots", snpDir, snapshotName);
         }
       }
+      // Upload the files of all column families together
+      List<AbstractBackupPath> bps = Lists.newArrayList();
+      for (List<AbstractBackupPath> uploaded : upload(snapshotDirs, BackupFileType.SNAP).values())
+        bps.addAll(uploaded);
       // Upload meta file
       metaData.set(bps, snapshotName);
+      dedupIndex.save();
       logger.info("Snapshot upload complete for " + snapshotName);
 
       if (snapshotRemotePaths.size() > 0) {
@@ -169,6 +176,34 @@ public class SnapshotBackup extends AbstractBackup {
     }
   }
 
+  /**
+   * SSTables are immutable, so a file stored by an earlier snapshot or
+   * incremental backup is copied within the backup location rather than
+   * uploaded again. The copy is made under this snapshot's own key and is
+   * created now, so lifecycle expiry counts from this snapshot and not from
+   * the first upload of the file.
+   */
+  @Override
+  protected String copyStored(AbstractBackupPath bp, File file) throws Exception {
+    BackupDedupIndex.Entry stored = dedupIndex.find(bp, file);
+    if (stored == null)
+      return null;
+    AbstractBackupPath source = pathFactory.get();
+    source.parseRemote(stored.getRemotePath());
+    try {
+      fs.copy(source, bp);
+    } catch (BackupRestoreException e) {
+      logger.warn(String.format("Could not copy %s to %s, uploading it instead", source.getRemotePath(), bp.getRemotePath()), e);
+      return null;
+    }
+    return stored.getMd5();
+  }
+
+  @Override
+  protected void uploaded(AbstractBackupPath bp, File file, String md5) throws Exception {
+    dedupIndex.add(bp, file, md5);
+  }
+
   @Override
   protected void addToRemotePath(String remotePath) {
     snapshotRemotePaths.add(remotePath);
@@ -0,0 +1,269 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Restores the SSTables of a running node through a staging dir, so
+ * Cassandra never sees a partly written file and each column family can be
+ * loaded as soon as its own files are down.
+ * <p>
+ * Files are downloaded under the staging dir, which lives in the data dir so
+ * that moving out of it is a rename. Once every component of an SSTable
+ * generation is down, the components are moved into the column family's dir,
+ * the Data component last, so a load never picks up a generation with
+ * components missing. Each generation is renumbered on the way in, well
+ * above the generations the column family has, so it never replaces a live
+ * SSTable or takes the number of one Cassandra already knows, which the load
+ * would skip. Once every generation of a column family is in place, the
+ * column family is loaded.
+ * <p>
+ * A generation is recorded in the restore journal once it is in place, not
+ * as its files come down, since the staged files are gone by the time an
+ * interrupted restore resumes. The resumed restore leaves the generations the
+ * journal has alone, and downloads the others again. Not thread safe: downloads are reported from the
+ * thread waiting on them.
+ */
+public class StagedRestore {
+  private static final Logger logger = LoggerFactory.getLogger(StagedRestore.class);
+  public static final String STAGING_DIR = ".restore_staging";
+  private static final String DATA_COMPONENT = "-Data.db";
+  // Leaves room for the flushes and compactions Cassandra numbers before the load
+  private static final long GENERATION_GAP = 100000;
+  private final File dataDir;
+  private final File stagingDir;
+  private final Loader loader;
+  private final RestoredFileIndex restored;
+  // Components of each generation, and those not downloaded yet
+  private final Map<String, List<AbstractBackupPath>> generations = Maps.newHashMap();
+  private final Map<String, Set<String>> remaining = Maps.newHashMap();
+  // Generations not in place yet, per column family
+  private final Map<String, Integer> columnFamilies = Maps.newHashMap();
+  // Generations an interrupted restore already put in place
+  private final Set<String> placed = Sets.newHashSet();
+  // Last generation number given to a restored generation, per column family
+  private final Map<String, Long> renumbered = Maps.newHashMap();
+  private final List<String> loadFailures = Lists.newArrayList();
+
+  /**
+   * Makes Cassandra pick up the SSTables newly placed in a column family's
+   * dir.
+   */
+  public interface Loader {
+    void load(String keyspace, String columnFamily) throws Exception;
+  }
+
+  /**
+   * @param files    the files the restore will download; only SSTables are
+   *                 staged
+   * @param restored the restore's journal, with the files of generations
+   *                 an interrupted restore put in place
+   */
+  public StagedRestore(File dataDir, Loader loader, List<AbstractBackupPath> files, RestoredFileIndex restored) throws IOException {
+    this.dataDir = dataDir;
+    this.stagingDir = new File(dataDir, STAGING_DIR);
+    this.loader = loader;
+    this.restored = restored;
+    // Whatever an earlier restore left behind is incomplete
+    FileUtils.deleteDirectory(stagingDir);
+    for (AbstractBackupPath path : files) {
+      if (!isStaged(path))
+        continue;
+      String generation = generation(path);
+      if (placed.contains(generation))
+        continue;
+      // Components are recorded one by one, any of them means the generation was moved in
+      if (restored.contains(RestoredFileIndex.hash(path))) {
+        placed.add(generation);
+        forget(generation, path);
+        continue;
+      }
+      if (!generations.containsKey(generation)) {
+        generations.put(generation, Lists.<AbstractBackupPath>newArrayList());
+        remaining.put(generation, Sets.<String>newHashSet());
+        Integer pending = columnFamilies.get(columnFamily(path));
+        columnFamilies.put(columnFamily(path), pending == null ? 1 : pending + 1);
+      }
+      if (remaining.get(generation).add(path.getRemotePath()))
+        generations.get(generation).add(path);
+    }
+  }
+
+  /**
+   * @return true if the file's generation was put in place by an interrupted
+   * restore, so it is not downloaded again
+   */
+  public boolean isPlaced(AbstractBackupPath path) {
+    return isStaged(path) && placed.contains(generation(path));
+  }
+
+  public static boolean isStaged(AbstractBackupPath path) {
+    return path.getType() == BackupFileType.SNAP || path.getType() == BackupFileType.SST;
+  }
+
+  /**
+   * @return where to download the file: under the staging dir for SSTables,
+   * else the usual restore location
+   */
+  public File stagingFile(AbstractBackupPath path) {
+    File live = path.newRestoreFile();
+    if (!isStaged(path))
+      return live;
+    File staged = new File(stagingDir, dataDir.toURI().relativize(live.toURI()).getPath());
+    staged.getParentFile().mkdirs();
+    return staged;
+  }
+
+  /**
+   * Note a file as downloaded, moving its generation into place and loading
+   * its column family once they are complete.
+   */
+  public void downloaded(AbstractBackupPath path) throws IOException {
+    if (!isStaged(path))
+      return;
+    String generation = generation(path);
+    Set<String> components = remaining.get(generation);
+    if (components == null || !components.remove(path.getRemotePath()) || !components.isEmpty())
+      return;
+    remaining.remove(generation);
+    moveIntoPlace(generations.remove(generation));
+
+    int pending = columnFamilies.get(columnFamily(path)) - 1;
+    if (pending > 0) {
+      columnFamilies.put(columnFamily(path), pending);
+      return;
+    }
+    columnFamilies.remove(columnFamily(path));
+    try {
+      logger.info("Loading restored SSTables of {}.{}", path.getKeyspace(), path.getColumnFamily());
+      loader.load(path.getKeyspace(), path.getColumnFamily());
+    } catch (Exception e) {
+      // The files are in place, a refresh later picks them up
+      logger.error("Unable to load restored SSTables of " + path.getKeyspace() + "." + path.getColumnFamily(), e);
+      loadFailures.add(path.getKeyspace() + "." + path.getColumnFamily());
+    }
+  }
+
+  /**
+   * @return column families whose SSTables are in place but could not be
+   * loaded
+   */
+  public List<String> getLoadFailures() {
+    return loadFailures;
+  }
+
+  /**
+   * @return column families with SSTables still to download
+   */
+  public Set<String> getIncomplete() {
+    return columnFamilies.keySet();
+  }
+
+  /**
+   * Remove the staging dir, with any generation that did not complete.
+   */
+  public void close() {
+    if (!columnFamilies.isEmpty())
+      logger.warn("Restore left SSTables of {} out, they were not complete", columnFamilies.keySet());
+    FileUtils.deleteQuietly(stagingDir);
+  }
+
+  private void moveIntoPlace(List<AbstractBackupPath> components) throws IOException {
+    AbstractBackupPath first = components.get(0);
+    long generation = RestorePlanner.generation(first.getFileName()) < 0 ? -1 : freeGeneration(first);
+    AbstractBackupPath data = null;
+    for (AbstractBackupPath component : components) {
+      if (component.getFileName().endsWith(DATA_COMPONENT))
+        data = component;
+      else
+        move(component, generation);
+    }
+    if (data != null)
+      move(data, generation);
+    for (AbstractBackupPath component : components)
+      restored.add(component, RestoredFileIndex.hash(component));
+  }
+
+  /**
+   * Drop a generation found placed after some of its components were
+   * counted.
+   */
+  private void forget(String generation, AbstractBackupPath path) {
+    if (generations.remove(generation) == null)
+      return;
+    remaining.remove(generation);
+    int pending = columnFamilies.get(columnFamily(path)) - 1;
+    if (pending > 0)
+      columnFamilies.put(columnFamily(path), pending);
+    else
+      columnFamilies.remove(columnFamily(path));
+  }
+
+  private void move(AbstractBackupPath path, long generation) throws IOException {
+    File live = path.newRestoreFile();
+    if (generation < 0) {
+      Files.move(stagingFile(path).toPath(), live.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      return;
+    }
+    File target = new File(live.getParentFile(), withGeneration(path.getFileName(), generation));
+    Files.move(stagingFile(path).toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @return a generation number no file of the column family's dir has
+   */
+  private long freeGeneration(AbstractBackupPath path) {
+    File dir = path.newRestoreFile().getParentFile();
+    Set<Long> taken = Sets.newHashSet();
+    long highest = 0;
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        long generation = RestorePlanner.generation(name);
+        taken.add(generation);
+        highest = Math.max(highest, generation);
+      }
+    }
+    Long last = renumbered.get(columnFamily(path));
+    long generation = last == null ? highest + GENERATION_GAP : last + 1;
+    while (taken.contains(generation))
+      generation++;
+    renumbered.put(columnFamily(path), generation);
+    return generation;
+  }
+
+  /**
+   * @return the SSTable file name with its generation replaced, e.g.
+   * ks-cf-jb-7-Data.db for ks-cf-jb-2-Data.db and 7
+   */
+  static String withGeneration(String fileName, long generation) {
+    int component = fileName.lastIndexOf('-');
+    int start = fileName.lastIndexOf('-', component - 1);
+    return fileName.substring(0, start + 1) + generation + fileName.substring(component);
+  }
+
+  private static String columnFamily(AbstractBackupPath path) {
+    return path.getKeyspace() + "/" + path.getColumnFamily();
+  }
+
+  /**
+   * Files that are not named like SSTables make a generation of their own.
+   */
+  private static String generation(AbstractBackupPath path) {
+    long generation = RestorePlanner.generation(path.getFileName());
+    return columnFamily(path) + "/" + (generation < 0 ? path.getFileName() : Long.toString(generation));
+  }
+}
@@ -0,0 +1,229 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only local record of every completed upload of this node: remote
+ * path, size, MD5 and upload time.
+ * <p>
+ * A file is recorded as soon as its upload completes, so a backup that is
+ * interrupted before deleting the local file does not upload it again, and
+ * the files in the backup location can be listed without going to S3. The
+ * in-memory index is sorted by remote path, which orders files by date like
+ * an S3 listing. Entries older than the backup retention are dropped when the
+ * ledger is loaded, and the file is rewritten without them. A last record
+ * without its newline was cut short by a crash and is dropped the same way,
+ * even when what is left of it still parses.
+ */
+@Singleton
+public class UploadLedger {
+  private static final Logger logger = LoggerFactory.getLogger(UploadLedger.class);
+  private static final String LEDGER_FILE = "upload_ledger.log";
+  private final File ledgerFile;
+  private final int retentionDays;
+  private final Provider<AbstractBackupPath> pathFactory;
+  private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+  private Writer writer;
+  private FileOutputStream out;
+  private boolean loaded;
+  private long firstUpload = Long.MAX_VALUE;
+
+  @Inject
+  public UploadLedger(IConfiguration config, Provider<AbstractBackupPath> pathFactory) {
+    this(new File(config.getLocalStateLocation(), LEDGER_FILE), config.getBackupRetentionDays(), pathFactory);
+  }
+
+  UploadLedger(File ledgerFile, int retentionDays, Provider<AbstractBackupPath> pathFactory) {
+    this.ledgerFile = ledgerFile;
+    this.retentionDays = retentionDays;
+    this.pathFactory = pathFactory;
+  }
+
+  /**
+   * @return true if a file of the same size was already uploaded to this
+   * remote path
+   */
+  public boolean contains(AbstractBackupPath bp) {
+    if (!load())
+      return false;
+    Entry entry = entries.get(bp.getRemotePath());
+    return entry != null && entry.size == bp.getSize();
+  }
+
+  /**
+   * Record a completed upload. Failing to write the ledger does not fail the
+   * backup; the file is then simply not known to the ledger.
+   */
+  public synchronized void record(AbstractBackupPath bp, String md5) {
+    if (!load())
+      return;
+    Entry entry = new Entry(bp.getRemotePath(), bp.getSize(), md5, System.currentTimeMillis());
+    try {
+      if (writer == null)
+        openWriter();
+      writer.write(entry.toLine());
+      writer.write('\n');
+      writer.flush();
+      out.getFD().sync();
+      entries.put(entry.remotePath, entry);
+      firstUpload = Math.min(firstUpload, entry.uploaded);
+    } catch (IOException e) {
+      logger.warn("Unable to record upload of " + bp.getRemotePath() + " in " + ledgerFile, e);
+    }
+  }
+
+  /**
+   * @return true if the ledger has recorded every upload made since the
+   * given time
+   */
+  public synchronized boolean covers(Date start) {
+    return load() && firstUpload != Long.MAX_VALUE && start.getTime() >= firstUpload;
+  }
+
+  /**
+   * Files whose backup time is within the range, in the same order and with
+   * the same bounds as {@link IBackupFileSystem#list(String, Date, Date)}.
+   */
+  public Iterator<AbstractBackupPath> list(Date start, Date till) {
+    List<AbstractBackupPath> paths = Lists.newArrayList();
+    if (!load())
+      return paths.iterator();
+    for (Entry entry : entries.values()) {
+      AbstractBackupPath path = pathFactory.get();
+      path.parseRemote(entry.remotePath);
+      Date time = path.getTime();
+      if ((time.after(start) && time.before(till)) || time.equals(start)) {
+        path.setSize(entry.size);
+        path.setUploadedTs(new Date(entry.uploaded));
+        paths.add(path);
+      }
+    }
+    return paths.iterator();
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Close the ledger file. It is reopened on the next upload.
+   */
+  public synchronized void close() {
+    if (writer == null)
+      return;
+    try {
+      writer.close();
+    } catch (IOException e) {
+      logger.warn("Unable to close " + ledgerFile, e);
+    }
+    writer = null;
+    out = null;
+  }
+
+  private synchronized boolean load() {
+    if (loaded)
+      return true;
+    try {
+      if (ledgerFile.exists()) {
+        long expiry = retentionDays > 0 ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays) : 0;
+        String content = Files.toString(ledgerFile, Charsets.UTF_8);
+        int complete = content.lastIndexOf('\n') + 1;
+        if (complete < content.length())
+          logger.warn("Dropping torn last record of {}: {}", ledgerFile, content.substring(complete));
+        int lines = complete < content.length() ? 1 : 0;
+        for (String line : StringUtils.split(content.substring(0, complete), '\n')) {
+          lines++;
+          Entry entry = Entry.parse(line);
+          if (entry == null) {
+            logger.warn("Ignoring malformed line in {}: {}", ledgerFile, line);
+            continue;
+          }
+          if (entry.uploaded < expiry)
+            entries.remove(entry.remotePath);
+          else
+            entries.put(entry.remotePath, entry);
+        }
+        if (lines > entries.size())
+          rewrite();
+        for (Entry entry : entries.values())
+          firstUpload = Math.min(firstUpload, entry.uploaded);
+        logger.info("Loaded {} uploads from {}", entries.size(), ledgerFile);
+      }
+      loaded = true;
+    } catch (IOException e) {
+      logger.warn("Unable to load upload ledger " + ledgerFile, e);
+    }
+    return loaded;
+  }
+
+  private void rewrite() throws IOException {
+    File tmp = new File(ledgerFile.getPath() + ".tmp");
+    BufferedWriter tmpWriter = Files.newWriter(tmp, Charsets.UTF_8);
+    try {
+      for (Entry entry : entries.values()) {
+        tmpWriter.write(entry.toLine());
+        tmpWriter.newLine();
+      }
+    } finally {
+      tmpWriter.close();
+    }
+    java.nio.file.Files.move(tmp.toPath(), ledgerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void openWriter() throws IOException {
+    Files.createParentDirs(ledgerFile);
+    out = new FileOutputStream(ledgerFile, true);
+    writer = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+  }
+
+  private static class Entry {
+    private final String remotePath;
+    private final long size;
+    private final String md5;
+    private final long uploaded;
+
+    Entry(String remotePath, long size, String md5, long uploaded) {
+      this.remotePath = remotePath;
+      this.size = size;
+      this.md5 = md5;
+      this.uploaded = uploaded;
+    }
+
+    String toLine() {
+      return StringUtils.join(new Object[]{uploaded, size, md5, remotePath}, '\t');
+    }
+
+    static Entry parse(String line) {
+      String[] fields = StringUtils.split(line, '\t');
+      if (fields.length != 4)
+        return null;
+      try {
+        return new Entry(fields[3], Long.parseLong(fields[1]), fields[2], Long.parseLong(fields[0]));
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
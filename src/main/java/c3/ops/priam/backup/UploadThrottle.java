@@ -0,0 +1,170 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rate limit shared by all backup uploads, adjusted at runtime.
+ * <p>
+ * The ceiling comes from, in order: a rate set by an operator over JMX or
+ * REST, the entry of the upload schedule covering the current hour, and the
+ * static upload throttle. Below the ceiling the rate adapts to the node:
+ * {@link UploadThrottleTask} halves it whenever Cassandra is under pressure,
+ * and raises it again by half per quiet interval until it reaches the
+ * ceiling, or until it is well above what the uploads actually use.
+ */
+@Singleton
+public class UploadThrottle {
+  private static final Logger logger = LoggerFactory.getLogger(UploadThrottle.class);
+  static final double UNLIMITED = Double.MAX_VALUE;
+  // Backing off never takes the rate below this, in bytes per second
+  static final double MIN_RATE = 1024 * 1024;
+  private static final double BACKOFF = 0.5;
+  private static final double RECOVERY = 1.5;
+
+  private final IConfiguration config;
+  private final RateLimiter limiter;
+  private final AtomicLong acquired = new AtomicLong();
+  private volatile double ceiling;
+  private volatile double rate;
+  private Long override;
+  private long lastSample = System.nanoTime();
+
+  @Inject
+  public UploadThrottle(IConfiguration config) {
+    this.config = config;
+    this.ceiling = configuredRate(Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+    this.rate = ceiling;
+    this.limiter = RateLimiter.create(rate);
+  }
+
+  /**
+   * Block until the bytes may be sent.
+   */
+  public void acquire(int bytes) {
+    acquired.addAndGet(bytes);
+    limiter.acquire(Math.max(bytes, 1));
+  }
+
+  /**
+   * @return the rate uploads are held to, in bytes per second, 0 if unlimited
+   */
+  public long getRate() {
+    return toBytesPerSecond(rate);
+  }
+
+  /**
+   * @return the rate the adaptive limit recovers to, in bytes per second, 0 if unlimited
+   */
+  public long getCeiling() {
+    return toBytesPerSecond(ceiling);
+  }
+
+  /**
+   * @return the operator set rate, or null when following the configuration
+   */
+  public synchronized Long getOverride() {
+    return override;
+  }
+
+  /**
+   * Pin the ceiling to a rate in bytes per second, 0 for unlimited. A
+   * negative rate goes back to the schedule and the static throttle.
+   */
+  public synchronized void setOverride(long bytesPerSecond) {
+    override = bytesPerSecond < 0 ? null : bytesPerSecond;
+    logger.info("Upload throttle override " + (override == null ? "cleared" : "set to " + override + " bytes/sec"));
+    refresh();
+  }
+
+  /**
+   * Recompute the ceiling for the current hour and override.
+   */
+  public synchronized void refresh() {
+    double next = override != null ? toRate(override) : configuredRate(Calendar.getInstance().get(Calendar.HOUR_OF_DAY));
+    // A rate that was not backed off follows the ceiling up and down
+    rate = rate >= ceiling ? next : Math.min(rate, next);
+    ceiling = next;
+    apply();
+  }
+
+  /**
+   * Back off if the node is busy, otherwise recover towards the ceiling.
+   */
+  public synchronized void adjust(boolean busy) {
+    long now = System.nanoTime();
+    double seconds = Math.max(now - lastSample, 1) / 1e9;
+    lastSample = now;
+    adjust(busy, acquired.getAndSet(0) / seconds);
+  }
+
+  synchronized void adjust(boolean busy, double observed) {
+    if (busy) {
+      // Back off from what is actually being sent if that is below the limit
+      double from = observed > 0 ? Math.min(rate, observed) : rate;
+      if (from == UNLIMITED)
+        return;
+      rate = Math.min(ceiling, Math.max(MIN_RATE, from * BACKOFF));
+    } else if (rate < ceiling) {
+      rate = rate * RECOVERY;
+      // Once the limit no longer holds the uploads back, lift it altogether
+      if (rate >= ceiling || rate > 2 * observed)
+        rate = ceiling;
+    }
+    apply();
+  }
+
+  private void apply() {
+    if (limiter.getRate() != rate) {
+      logger.info("Upload rate set to " + (rate == UNLIMITED ? "unlimited" : (long) rate + " bytes/sec"));
+      limiter.setRate(rate);
+    }
+  }
+
+  private double configuredRate(int hour) {
+    return toRate(scheduledRate(config.getUploadThrottleSchedule(), hour, config.getUploadThrottle()));
+  }
+
+  /**
+   * Rate of the first schedule entry covering the hour. Entries are
+   * <code>start-end:bytesPerSecond</code> separated by commas, with hours
+   * from 0 to 23 in local time; an entry whose end is before its start wraps
+   * past midnight.
+   *
+   * @return the scheduled rate, or the fallback if no entry covers the hour
+   */
+  static long scheduledRate(String schedule, int hour, long fallback) {
+    if (StringUtils.isBlank(schedule))
+      return fallback;
+    for (String entry : schedule.split(",")) {
+      try {
+        String[] parts = entry.trim().split(":");
+        String[] hours = parts[0].split("-");
+        int start = Integer.parseInt(hours[0].trim());
+        int end = Integer.parseInt(hours[1].trim());
+        boolean covers = start <= end ? hour >= start && hour < end : hour >= start || hour < end;
+        if (covers)
+          return Long.parseLong(parts[1].trim());
+      } catch (RuntimeException e) {
+        logger.warn("Ignoring invalid upload throttle schedule entry: " + entry);
+      }
+    }
+    return fallback;
+  }
+
+  private static double toRate(long bytesPerSecond) {
+    return bytesPerSecond < 1 ? UNLIMITED : bytesPerSecond;
+  }
+
+  private static long toBytesPerSecond(double rate) {
+    return rate == UNLIMITED ? 0 : (long) rate;
+  }
+}
@@ -0,0 +1,77 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.scheduler.SimpleTimer;
+import c3.ops.priam.scheduler.Task;
+import c3.ops.priam.scheduler.TaskTimer;
+import c3.ops.priam.utils.JMXConnectionException;
+import c3.ops.priam.utils.JMXNodeTool;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the upload throttle in step with the schedule and, when adaptive
+ * throttling is enabled, with the load on Cassandra. The node counts as busy
+ * when compactions pile up, messages were dropped since the last check, or
+ * the recent read latency is over its limit.
+ */
+@Singleton
+public class UploadThrottleTask extends Task {
+  public static final String JOBNAME = "UPLOAD_THROTTLE";
+  private static final Logger logger = LoggerFactory.getLogger(UploadThrottleTask.class);
+  private final UploadThrottle throttle;
+  private long lastDropped = -1;
+
+  @Inject
+  public UploadThrottleTask(IConfiguration config, UploadThrottle throttle) {
+    super(config);
+    this.throttle = throttle;
+  }
+
+  public static TaskTimer getTimer() {
+    return new SimpleTimer(JOBNAME, 30L * 1000);
+  }
+
+  @Override
+  public void execute() throws Exception {
+    throttle.refresh();
+    if (!config.isUploadThrottleAdaptive())
+      return;
+    JMXNodeTool nodetool;
+    try {
+      nodetool = JMXNodeTool.instance(config);
+    } catch (JMXConnectionException e) {
+      logger.debug("Cassandra not reachable, keeping the upload rate: " + e.getMessage());
+      return;
+    }
+    throttle.adjust(isBusy(nodetool));
+  }
+
+  // Cassandra 2.0 only exposes pending compactions and recent read latency
+  // through these deprecated MBean calls, NodeProbe has no metrics to replace them
+  @SuppressWarnings("deprecation")
+  private boolean isBusy(JMXNodeTool nodetool) {
+    int pendingCompactions = nodetool.getCompactionManagerProxy().getPendingTasks();
+    long dropped = 0;
+    for (Integer count : nodetool.getDroppedMessages().values())
+      dropped += count;
+    long newlyDropped = lastDropped < 0 ? 0 : dropped - lastDropped;
+    lastDropped = dropped;
+    double readLatencyMs = nodetool.getSpProxy().getRecentReadLatencyMicros() / 1000;
+
+    boolean busy = pendingCompactions > config.getUploadThrottleMaxPendingCompactions()
+        || newlyDropped > 0
+        || readLatencyMs > config.getUploadThrottleMaxReadLatencyMs();
+    if (busy)
+      logger.info(String.format("Cassandra busy (pending compactions %d, dropped messages %d, read latency %.1f ms), backing off uploads",
+          pendingCompactions, newlyDropped, readLatencyMs));
+    return busy;
+  }
+
+  @Override
+  public String getName() {
+    return JOBNAME;
+  }
+}
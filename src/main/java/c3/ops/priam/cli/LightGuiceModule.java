@@ -23,7 +23,7 @@ import c3.ops.priam.aws.SDBInstanceFactory;
 import c3.ops.priam.backup.AbstractBackupPath;
 import c3.ops.priam.backup.IBackupFileSystem;
 import c3.ops.priam.compress.ICompression;
-import c3.ops.priam.compress.SnappyCompression;
+import c3.ops.priam.compress.SnappyFramedCompression;
 import c3.ops.priam.defaultimpl.ClearCredential;
 import c3.ops.priam.defaultimpl.PriamConfiguration;
 import c3.ops.priam.identity.IMembership;
@@ -42,7 +42,7 @@ class LightGuiceModule extends AbstractModule {
     bind(IConfiguration.class).to(PriamConfiguration.class).asEagerSingleton();
     bind(IPriamInstanceFactory.class).to(SDBInstanceFactory.class);
     bind(AbstractBackupPath.class).to(S3BackupPath.class);
-    bind(ICompression.class).to(SnappyCompression.class);
+    bind(ICompression.class).to(SnappyFramedCompression.class);
     bind(Sleeper.class).to(ThreadSleeper.class);
     bind(ITokenManager.class).to(TokenManager.class);
     bind(IBackupFileSystem.class).annotatedWith(Names.named("backup")).to(S3FileSystem.class);
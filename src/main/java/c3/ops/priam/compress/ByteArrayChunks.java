@@ -0,0 +1,48 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Chunks from a pooled compressor, copied out into byte arrays for callers
+ * that keep them.
+ */
+class ByteArrayChunks implements Iterator<byte[]> {
+  private final Iterator<ByteBuffer> chunks;
+  private final BufferPool pool;
+
+  ByteArrayChunks(Iterator<ByteBuffer> chunks, BufferPool pool) {
+    this.chunks = chunks;
+    this.pool = pool;
+  }
+
+  /**
+   * @return a pool holding the single buffer the chunks are compressed into
+   */
+  static BufferPool singleBuffer(long chunkSize) {
+    return new BufferPool(1, (int) (chunkSize + ICompression.MAX_CHUNK_OVERHEAD), false);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return chunks.hasNext();
+  }
+
+  @Override
+  public byte[] next() {
+    ByteBuffer chunk = chunks.next();
+    try {
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      return bytes;
+    } finally {
+      pool.release(chunk);
+    }
+  }
+
+  @Override
+  public void remove() {
+  }
+}
@@ -0,0 +1,52 @@
+package c3.ops.priam.compress;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.Map;
+
+/**
+ * The codecs backups can be written with, by name. The name of the codec an
+ * object was written with is stored in its metadata under
+ * {@link #METADATA_KEY}; objects without it predate codec selection and are
+ * read with the default codec.
+ */
+@Singleton
+public class CompressionRegistry {
+  public static final String METADATA_KEY = "compression";
+  public static final String SNAPPY = "snappy";
+  public static final String SNAPPY_JAVA = "snappy-java";
+  public static final String LZ4 = "lz4";
+  public static final String GZIP = "gzip";
+  private final ICompression defaultCodec;
+  private final Map<String, ICompression> codecs;
+
+  @Inject
+  public CompressionRegistry(ICompression defaultCodec) {
+    this.defaultCodec = defaultCodec;
+    this.codecs = ImmutableMap.of(
+        SNAPPY, new SnappyFramedCompression(),
+        SNAPPY_JAVA, new SnappyCompression(),
+        LZ4, new Lz4Compression(),
+        GZIP, new GzipCompression());
+  }
+
+  /**
+   * @throws IllegalArgumentException if there is no such codec
+   */
+  public ICompression get(String name) {
+    ICompression codec = codecs.get(name);
+    if (codec == null)
+      throw new IllegalArgumentException("Unknown compression codec '" + name + "', expected one of " + codecs.keySet());
+    return codec;
+  }
+
+  /**
+   * @return the codec to read an object with, given the codec name from its
+   * metadata, which may be null
+   */
+  public ICompression forObject(String name) {
+    return name == null ? defaultCodec : get(name);
+  }
+}
@@ -0,0 +1,155 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+import org.apache.commons.io.IOUtils;
+import org.xerial.snappy.PureJavaCrc32C;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+/**
+ * Compresses an input stream into chunks in the snappy framing format,
+ * writing the frames straight into part buffers taken from a
+ * {@link BufferPool}. The returned buffers are flipped and ready to read; the
+ * consumer owns them and must release them back to the pool.
+ * <p>
+ * The source is read a full frame of 64 KB at a time, and each frame carries
+ * the masked CRC-32C of its data. With heap part buffers a frame is
+ * compressed in place, so the compressed bytes are not copied between the
+ * compressor and the uploader. A chunk ends at the first frame boundary past
+ * the chunk size, and nothing is read ahead of it. Every chunk starts with the
+ * stream identifier, so it decompresses on its own to exactly the input
+ * consumed while producing it, and the chunks concatenate into one valid
+ * stream.
+ */
+public class FramedChunkedStream implements Iterator<ByteBuffer> {
+  static final byte[] STREAM_IDENTIFIER = new byte[]{(byte) 0xff, 0x06, 0x00, 0x00, 's', 'N', 'a', 'P', 'p', 'Y'};
+  private static final int COMPRESSED_FRAME = 0x00;
+  private static final int UNCOMPRESSED_FRAME = 0x01;
+  private static final int FRAME_HEADER = 8;
+  private static final int MAX_FRAME = 64 * 1024;
+  // Frames that do not shrink below this ratio are stored as is
+  private static final double MIN_COMPRESSION_RATIO = 0.85;
+
+  private final InputStream origin;
+  private final BufferPool pool;
+  private final long chunkSize;
+  private final int capacity;
+  private final byte[] block = new byte[MAX_FRAME];
+  private final PureJavaCrc32C crc = new PureJavaCrc32C();
+  // Only needed when the part buffers are direct
+  private byte[] scratch;
+  private int blockLimit;
+  private boolean eof;
+  private boolean hasnext = true;
+
+  public FramedChunkedStream(InputStream is, long chunkSize, BufferPool pool) {
+    this.origin = is;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.capacity = (int) (chunkSize + ICompression.MAX_CHUNK_OVERHEAD);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return hasnext;
+  }
+
+  @Override
+  public ByteBuffer next() {
+    ByteBuffer target = acquire();
+    try {
+      target.put(STREAM_IDENTIFIER);
+      while (target.position() < chunkSize && fill())
+        writeFrame(target, blockLimit);
+      if (eof) {
+        hasnext = false;
+        IOUtils.closeQuietly(origin);
+      }
+      target.flip();
+      return target;
+    } catch (IOException e) {
+      release(target);
+      throw new RuntimeException(e);
+    }
+  }
+
+  private ByteBuffer acquire() {
+    if (pool == null)
+      return ByteBuffer.allocate(capacity);
+    try {
+      return pool.acquire(capacity);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void release(ByteBuffer buf) {
+    if (pool != null)
+      pool.release(buf);
+  }
+
+  /**
+   * Read the next frame of the source.
+   *
+   * @return false at the end of the input
+   */
+  private boolean fill() throws IOException {
+    blockLimit = 0;
+    while (!eof && blockLimit < block.length) {
+      int count = origin.read(block, blockLimit, block.length - blockLimit);
+      if (count == -1)
+        eof = true;
+      else
+        blockLimit += count;
+    }
+    return blockLimit > 0;
+  }
+
+  private void writeFrame(ByteBuffer target, int len) throws IOException {
+    crc.reset();
+    crc.update(block, 0, len);
+    int checksum = maskedCrc(crc.getIntegerValue());
+    int start = target.position();
+    if (target.remaining() < FRAME_HEADER + Snappy.maxCompressedLength(len))
+      throw new IOException("Compressed chunk overflows its part buffer");
+    int compressed;
+    if (target.hasArray()) {
+      compressed = Snappy.compress(block, 0, len, target.array(), target.arrayOffset() + start + FRAME_HEADER);
+    } else {
+      if (scratch == null)
+        scratch = new byte[Snappy.maxCompressedLength(MAX_FRAME)];
+      compressed = Snappy.compress(block, 0, len, scratch, 0);
+    }
+    target.order(ByteOrder.LITTLE_ENDIAN);
+    if (compressed < len * MIN_COMPRESSION_RATIO) {
+      target.putInt(COMPRESSED_FRAME | (compressed + 4) << 8);
+      target.putInt(checksum);
+      if (target.hasArray())
+        target.position(start + FRAME_HEADER + compressed);
+      else
+        target.put(scratch, 0, compressed);
+    } else {
+      target.putInt(UNCOMPRESSED_FRAME | (len + 4) << 8);
+      target.putInt(checksum);
+      target.put(block, 0, len);
+    }
+    target.order(ByteOrder.BIG_ENDIAN);
+  }
+
+  /**
+   * Checksum masking from the snappy framing format.
+   */
+  static int maskedCrc(int crc) {
+    return ((crc >>> 15) | (crc << 17)) + 0xa282ead8;
+  }
+
+  @Override
+  public void remove() {
+  }
+}
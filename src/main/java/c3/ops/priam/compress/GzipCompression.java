@@ -0,0 +1,44 @@
+package c3.ops.priam.compress;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip at the best compression level. Trades CPU for noticeably smaller
+ * objects, for backups that are kept long and rarely restored.
+ */
+public class GzipCompression extends StreamCompression {
+  private static final int BUFFER = 64 * 1024;
+
+  @Override
+  public OutputStream open(OutputStream out) throws IOException {
+    return new GZIPOutputStream(out, BUFFER) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    };
+  }
+
+  /**
+   * Each chunk is a gzip member. GZIPInputStream reads on to the next member
+   * only if the input reports bytes available, so report them whenever the
+   * input has not ended.
+   */
+  @Override
+  protected InputStream decompress(InputStream input) throws IOException {
+    final BufferedInputStream buffered = new BufferedInputStream(input);
+    return new GZIPInputStream(new FilterInputStream(buffered) {
+      @Override
+      public int available() throws IOException {
+        int available = buffered.available();
+        return available > 0 || !hasMore(buffered) ? available : 1;
+      }
+    }, BUFFER);
+  }
+}
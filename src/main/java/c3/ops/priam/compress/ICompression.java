@@ -15,15 +15,23 @@
  */
 package c3.ops.priam.compress;
 
+import c3.ops.priam.utils.BufferPool;
 import com.google.inject.ImplementedBy;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
-@ImplementedBy(SnappyCompression.class)
+@ImplementedBy(SnappyFramedCompression.class)
 public interface ICompression {
+  /**
+   * How far a compressed chunk may run past the requested chunk size. Part
+   * buffers must be at least chunk size plus this.
+   */
+  public static final int MAX_CHUNK_OVERHEAD = 128 * 1024;
+
   /**
    * Uncompress the input stream and write to the output stream.
    * Closes both input and output streams
@@ -34,4 +42,12 @@ public interface ICompression {
    * Produces chunks of compressed data.
    */
   public Iterator<byte[]> compress(InputStream is, long chunkSize) throws IOException;
+
+  /**
+   * Produces chunks of compressed data in buffers acquired from the pool. Each
+   * buffer is ready to read and must be released to the pool by the caller.
+   * Each chunk decompresses on its own to exactly the input consumed while
+   * producing it.
+   */
+  public Iterator<ByteBuffer> compress(InputStream is, long chunkSize, BufferPool pool) throws IOException;
 }
@@ -0,0 +1,223 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compresses an input stream on a pool of workers and hands out the result in
+ * part buffers, like {@link ICompression#compress(InputStream, long, BufferPool)}.
+ * <p>
+ * The input is read in blocks of {@link #BLOCK_SIZE} on the calling thread,
+ * and each block is compressed on its own into a complete stream by a worker.
+ * Up to two blocks per worker are compressed ahead. The compressed blocks are
+ * copied in order into the part buffer until it holds at least the chunk
+ * size, so a part is a sequence of complete streams that decompresses on its
+ * own, and the parts concatenate into one stream the codec reads in one go.
+ * <p>
+ * Input is read ahead of the parts handed out, so {@link #getBytesConsumed()}
+ * rather than the position of the input tells how much of it the parts so
+ * far cover.
+ * <p>
+ * The block buffers come from a {@link Buffers} set that the stream has to
+ * itself while it runs. Sets are kept and handed from one stream to the next,
+ * so a file does not allocate its buffers afresh.
+ */
+public class ParallelChunkedStream implements Iterator<ByteBuffer> {
+  public static final int BLOCK_SIZE = 512 * 1024;
+  /**
+   * How far a part may run past the chunk size: one compressed block, which
+   * may come out as two chunks. Part buffers must be at least chunk size plus
+   * this.
+   */
+  public static final int MAX_OVERHEAD = BLOCK_SIZE + 2 * ICompression.MAX_CHUNK_OVERHEAD;
+  private final ICompression codec;
+  private final InputStream origin;
+  private final long chunkSize;
+  private final BufferPool partPool;
+  private final ExecutorService workers;
+  private final int window;
+  private final BufferPool inputBlocks;
+  private final BufferPool outputBlocks;
+  private final Deque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+  private long consumed;
+  private boolean submittedAny;
+  private boolean eof;
+
+  /**
+   * @param buffers block buffers not used by any other stream till this one
+   *                is done
+   */
+  public ParallelChunkedStream(ICompression codec, InputStream is, long chunkSize, BufferPool partPool,
+                               ExecutorService workers, Buffers buffers) {
+    this.codec = codec;
+    this.origin = is;
+    this.chunkSize = chunkSize;
+    this.partPool = partPool;
+    this.workers = workers;
+    this.window = buffers.window;
+    this.inputBlocks = buffers.input;
+    this.outputBlocks = buffers.output;
+  }
+
+  /**
+   * @return bytes of the input compressed into the parts handed out so far
+   */
+  public long getBytesConsumed() {
+    return consumed;
+  }
+
+  @Override
+  public boolean hasNext() {
+    try {
+      submit();
+    } catch (IOException e) {
+      fail();
+      throw new RuntimeException(e);
+    }
+    return !inFlight.isEmpty();
+  }
+
+  @Override
+  public ByteBuffer next() {
+    ByteBuffer target;
+    try {
+      target = partPool.acquire((int) (chunkSize + MAX_OVERHEAD));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      fail();
+      throw new RuntimeException(e);
+    }
+    try {
+      while (target.position() < chunkSize && hasNext()) {
+        Block block = inFlight.removeFirst().get();
+        for (ByteBuffer chunk : block.chunks) {
+          if (target.remaining() < chunk.remaining())
+            throw new IOException("Compressed chunk overflows its part buffer");
+          target.put(chunk);
+          outputBlocks.release(chunk);
+        }
+        consumed += block.length;
+      }
+      target.flip();
+      return target;
+    } catch (Exception e) {
+      partPool.release(target);
+      fail();
+      if (e instanceof InterruptedException)
+        Thread.currentThread().interrupt();
+      throw new RuntimeException(e instanceof ExecutionException ? e.getCause() : e);
+    }
+  }
+
+  /**
+   * Read blocks and queue them for compression until the window is full.
+   */
+  private void submit() throws IOException {
+    while (inFlight.size() < window && (!eof || !submittedAny)) {
+      final ByteBuffer input = inputBlocks.tryAcquire(BLOCK_SIZE);
+      if (input == null)
+        return;
+      final int length = fill(input.array());
+      boolean first = !submittedAny;
+      submittedAny = true;
+      if (eof)
+        IOUtils.closeQuietly(origin);
+      // An empty input still makes one (empty) compressed part
+      if (length == 0 && !first) {
+        inputBlocks.release(input);
+        return;
+      }
+      inFlight.addLast(workers.submit(new Callable<Block>() {
+        @Override
+        public Block call() throws Exception {
+          try {
+            List<ByteBuffer> chunks = Lists.newArrayList();
+            Iterator<ByteBuffer> it = codec.compress(new ByteArrayInputStream(input.array(), 0, length), BLOCK_SIZE, outputBlocks);
+            while (it.hasNext())
+              chunks.add(it.next());
+            return new Block(length, chunks);
+          } finally {
+            inputBlocks.release(input);
+          }
+        }
+      }));
+    }
+  }
+
+  private int fill(byte[] block) throws IOException {
+    int length = 0;
+    while (length < block.length) {
+      int count = origin.read(block, length, block.length - length);
+      if (count == -1) {
+        eof = true;
+        break;
+      }
+      length += count;
+    }
+    return length;
+  }
+
+  private void fail() {
+    for (Future<Block> future : inFlight)
+      future.cancel(false);
+    inFlight.clear();
+    eof = true;
+    submittedAny = true;
+    IOUtils.closeQuietly(origin);
+  }
+
+  @Override
+  public void remove() {
+  }
+
+  /**
+   * Block buffers for one stream at a time, enough to keep two blocks per
+   * worker in flight. Buffers are allocated on first use and kept.
+   */
+  public static class Buffers {
+    private final int window;
+    private final BufferPool input;
+    private final BufferPool output;
+
+    public Buffers(int threads) {
+      this.window = Math.max(1, threads) * 2;
+      this.input = new BufferPool(window, BLOCK_SIZE, false);
+      // A block that does not compress may come out as two chunks; two buffers
+      // per block in flight means no worker waits for the assembler
+      this.output = new BufferPool(window * 2, BLOCK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    }
+
+    /**
+     * @return true if every buffer is back, which is the case once a stream
+     * has handed out all its parts. A failed stream may leave some with its
+     * workers.
+     */
+    public boolean isIdle() {
+      return input.available() == window && output.available() == window * 2;
+    }
+  }
+
+  private static class Block {
+    private final int length;
+    private final List<ByteBuffer> chunks;
+
+    Block(int length, List<ByteBuffer> chunks) {
+      this.length = length;
+      this.chunks = chunks;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+package c3.ops.priam.compress;
+
+import org.apache.commons.io.IOUtils;
+import org.xerial.snappy.PureJavaCrc32C;
+import org.xerial.snappy.Snappy;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decompresses a stream in the snappy framing format on a pool of workers,
+ * writing each piece of output at its offset in the destination.
+ * <p>
+ * Every frame header gives the length of the frame, and a compressed frame
+ * starts with the length of its uncompressed data, so the calling thread can
+ * split the input into frames and know where each frame's output goes
+ * without decompressing anything. Frames are gathered into batches of up to
+ * {@link #BATCH_SIZE} of output, and workers decompress the batches, check the
+ * CRC of every frame and write the output at the batch's offset. Up to two
+ * batches per worker are in flight for one stream.
+ * <p>
+ * Batches come from a bounded pool shared by all streams of the decoder, so
+ * concurrent restores hold at most {@link #getMaxBatches()} batches between
+ * them. A stream that finds the pool empty reuses its own oldest batch, and
+ * only blocks for the pool while it holds none.
+ */
+public class ParallelFramedDecoder {
+  public static final int BATCH_SIZE = 1024 * 1024;
+  private static final int COMPRESSED_FRAME = 0x00;
+  private static final int UNCOMPRESSED_FRAME = 0x01;
+  private static final int STREAM_IDENTIFIER_FRAME = 0xff;
+  private static final int MIN_SKIPPABLE_FRAME = 0x80;
+  private static final int MAX_FRAME = 64 * 1024;
+  // A compressed frame is at most snappy's worst case for a full frame, plus the CRC
+  private static final int MAX_FRAME_LENGTH = 4 + 32 + MAX_FRAME + MAX_FRAME / 6;
+  private final ExecutorService workers;
+  private final int window;
+  private final int maxBatches;
+  private final Semaphore permits;
+  private final ConcurrentLinkedQueue<Batch> free = new ConcurrentLinkedQueue<Batch>();
+
+  public ParallelFramedDecoder(ExecutorService workers, int threads) {
+    this.workers = workers;
+    this.window = Math.max(1, threads) * 2;
+    this.maxBatches = window + 1;
+    this.permits = new Semaphore(maxBatches, true);
+  }
+
+  /**
+   * Destination that takes writes at arbitrary offsets from several threads.
+   */
+  public interface Sink {
+    void write(ByteBuffer src, long offset) throws IOException;
+  }
+
+  /**
+   * @return true if the stream starts with the stream identifier of the
+   * snappy framing format. Nothing is consumed.
+   */
+  public static boolean isFramed(BufferedInputStream input) throws IOException {
+    byte[] header = new byte[FramedChunkedStream.STREAM_IDENTIFIER.length];
+    input.mark(header.length);
+    int read = IOUtils.read(input, header);
+    input.reset();
+    return read == header.length && Arrays.equals(header, FramedChunkedStream.STREAM_IDENTIFIER);
+  }
+
+  /**
+   * Decompress the whole input into the sink. Closes the input; the sink is
+   * left open for the caller.
+   *
+   * @return number of bytes written to the sink
+   */
+  public long decompress(InputStream input, Sink sink) throws IOException {
+    Deque<Batch> inFlight = new ArrayDeque<Batch>();
+    Batch batch = null;
+    try {
+      long offset = 0;
+      batch = acquire().reset(offset);
+      byte[] header = new byte[4];
+      while (readHeader(input, header)) {
+        int type = header[0] & 0xff;
+        int length = (header[1] & 0xff) | (header[2] & 0xff) << 8 | (header[3] & 0xff) << 16;
+        if (type == STREAM_IDENTIFIER_FRAME) {
+          byte[] id = new byte[length];
+          IOUtils.readFully(input, id);
+          if (length != FramedChunkedStream.STREAM_IDENTIFIER.length - 4
+              || !Arrays.equals(id, Arrays.copyOfRange(FramedChunkedStream.STREAM_IDENTIFIER, 4, FramedChunkedStream.STREAM_IDENTIFIER.length)))
+            throw new IOException("Corrupt input: bad stream identifier");
+          continue;
+        }
+        if (type >= MIN_SKIPPABLE_FRAME) {
+          IOUtils.skipFully(input, length);
+          continue;
+        }
+        if (type != COMPRESSED_FRAME && type != UNCOMPRESSED_FRAME)
+          throw new IOException("Corrupt input: unsupported frame type " + type);
+        if (length < 4 || length > MAX_FRAME_LENGTH)
+          throw new IOException("Corrupt input: frame length " + length);
+        if (batch.isFull()) {
+          offset += batch.outputLength;
+          submit(inFlight, batch, sink);
+          // owned by inFlight from here on
+          batch = null;
+          batch = nextBatch(inFlight).reset(offset);
+        }
+        batch.add(type, input, length);
+      }
+      offset += batch.outputLength;
+      if (batch.frames > 0) {
+        submit(inFlight, batch, sink);
+        batch = null;
+      }
+      while (!inFlight.isEmpty()) {
+        complete(inFlight.peekFirst());
+        release(inFlight.removeFirst());
+      }
+      return offset;
+    } finally {
+      if (batch != null)
+        release(batch);
+      for (Batch pending : inFlight)
+        abandon(pending);
+      IOUtils.closeQuietly(input);
+    }
+  }
+
+  /**
+   * @return most batches the decoder holds at once, across all streams
+   */
+  public int getMaxBatches() {
+    return maxBatches;
+  }
+
+  /**
+   * @return number of batches that can be taken from the pool without blocking
+   */
+  public int availableBatches() {
+    return permits.availablePermits();
+  }
+
+  private boolean readHeader(InputStream input, byte[] header) throws IOException {
+    int read = IOUtils.read(input, header);
+    if (read == 0)
+      return false;
+    if (read < header.length)
+      throw new EOFException("Corrupt input: truncated frame header");
+    return true;
+  }
+
+  private void submit(Deque<Batch> inFlight, final Batch batch, final Sink sink) throws IOException {
+    while (inFlight.size() >= window) {
+      complete(inFlight.peekFirst());
+      release(inFlight.removeFirst());
+    }
+    // State of this submission only: once released, the batch may be reset
+    // and submitted again by another stream before this task gets to run
+    final AtomicInteger state = new AtomicInteger(Batch.NEW);
+    batch.state = state;
+    batch.future = workers.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        // dropped before it started, the stream has released the batch
+        if (!state.compareAndSet(Batch.NEW, Batch.RUNNING))
+          return null;
+        try {
+          sink.write(batch.decode(), batch.offset);
+        } finally {
+          // the stream gave up on the batch while it ran, so nobody else releases it
+          if (!state.compareAndSet(Batch.RUNNING, Batch.DONE))
+            release(batch);
+        }
+        return null;
+      }
+    });
+    inFlight.addLast(batch);
+  }
+
+  /**
+   * Take a batch from the pool, or wait for the oldest one in flight when the
+   * pool is empty. Blocks on the pool only when nothing is in flight, so a
+   * stream never waits for batches while holding some.
+   */
+  private Batch nextBatch(Deque<Batch> inFlight) throws IOException {
+    if (permits.tryAcquire())
+      return take();
+    if (inFlight.isEmpty())
+      return acquire();
+    complete(inFlight.peekFirst());
+    return inFlight.removeFirst();
+  }
+
+  private Batch acquire() throws IOException {
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decompressing", e);
+    }
+    return take();
+  }
+
+  private Batch take() {
+    Batch batch = free.poll();
+    return batch != null ? batch : new Batch();
+  }
+
+  private void release(Batch batch) {
+    free.offer(batch);
+    permits.release();
+  }
+
+  /**
+   * Give up on a batch in flight. A batch that is still being decoded is
+   * marked abandoned and released by its worker when it finishes.
+   */
+  private void abandon(Batch batch) {
+    batch.future.cancel(false);
+    if (batch.state.compareAndSet(Batch.NEW, Batch.ABANDONED) || !batch.state.compareAndSet(Batch.RUNNING, Batch.ABANDONED))
+      release(batch);
+  }
+
+  private static void complete(Batch batch) throws IOException {
+    try {
+      batch.future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decompressing", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Consecutive frames whose output lands in one contiguous range.
+   */
+  private static class Batch {
+    private static final int NEW = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int ABANDONED = 3;
+    private static final int MAX_FRAMES = BATCH_SIZE / MAX_FRAME;
+    private final byte[] input = new byte[MAX_FRAMES * MAX_FRAME_LENGTH];
+    private final byte[] output = new byte[BATCH_SIZE];
+    private final PureJavaCrc32C crc = new PureJavaCrc32C();
+    private final int[] types = new int[MAX_FRAMES];
+    private final int[] starts = new int[MAX_FRAMES];
+    private final int[] lengths = new int[MAX_FRAMES];
+    private final int[] outputLengths = new int[MAX_FRAMES];
+    private long offset;
+    private int frames;
+    private int inputLength;
+    private int outputLength;
+    private AtomicInteger state;
+    private Future<Void> future;
+
+    Batch reset(long offset) {
+      state = null;
+      this.offset = offset;
+      frames = 0;
+      inputLength = 0;
+      outputLength = 0;
+      future = null;
+      return this;
+    }
+
+    boolean isFull() {
+      return frames == MAX_FRAMES;
+    }
+
+    void add(int type, InputStream in, int length) throws IOException {
+      IOUtils.readFully(in, input, inputLength, length);
+      int uncompressed = type == COMPRESSED_FRAME ? Snappy.uncompressedLength(input, inputLength + 4, length - 4) : length - 4;
+      if (uncompressed > MAX_FRAME)
+        throw new IOException("Corrupt input: frame of " + uncompressed + " bytes");
+      types[frames] = type;
+      starts[frames] = inputLength;
+      lengths[frames] = length;
+      outputLengths[frames] = uncompressed;
+      frames++;
+      inputLength += length;
+      outputLength += uncompressed;
+    }
+
+    ByteBuffer decode() throws IOException {
+      int out = 0;
+      for (int i = 0; i < frames; i++) {
+        int data = starts[i] + 4;
+        int length = lengths[i] - 4;
+        if (types[i] == COMPRESSED_FRAME)
+          Snappy.uncompress(input, data, length, output, out);
+        else
+          System.arraycopy(input, data, output, out, length);
+        crc.reset();
+        crc.update(output, out, outputLengths[i]);
+        if (FramedChunkedStream.maskedCrc(crc.getIntegerValue()) != readInt(input, starts[i]))
+          throw new IOException("Corrupt input: invalid checksum at offset " + (offset + out));
+        out += outputLengths[i];
+      }
+      return ByteBuffer.wrap(output, 0, outputLength);
+    }
+
+    private static int readInt(byte[] b, int off) {
+      return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+    }
+  }
+}
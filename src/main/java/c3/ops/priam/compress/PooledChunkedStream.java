@@ -0,0 +1,135 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+import org.apache.commons.io.IOUtils;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Same chunking as {@link ChunkedStream}, but each chunk is compressed
+ * straight into a buffer taken from a {@link BufferPool} instead of a fresh
+ * byte[]. The returned buffers are flipped and ready to read; the consumer
+ * owns them and must release them back to the pool.
+ * <p>
+ * Every chunk is a complete compressed stream of exactly the input read to
+ * produce it, written by the given {@link Encoder}. The chunks concatenate
+ * into a stream the codec reads in one go, and an upload can be resumed by
+ * compressing again from the input offset where a chunk ended.
+ */
+public class PooledChunkedStream implements Iterator<ByteBuffer> {
+  // One snappy block, so a single write compresses at most one block.
+  static final int BYTES_TO_READ = 32 * 1024;
+  private final byte[] data = new byte[BYTES_TO_READ];
+  private final BufferSink sink = new BufferSink();
+  private OutputStream compress;
+  private final Encoder encoder;
+  private final InputStream origin;
+  private final BufferPool pool;
+  private final long chunkSize;
+  private final int capacity;
+  private boolean hasnext = true;
+
+  public PooledChunkedStream(InputStream is, long chunkSize, BufferPool pool) throws IOException {
+    this(is, chunkSize, pool, new Encoder() {
+      @Override
+      public OutputStream open(OutputStream out) throws IOException {
+        return new SnappyOutputStream(out);
+      }
+    });
+  }
+
+  public PooledChunkedStream(InputStream is, long chunkSize, BufferPool pool, Encoder encoder) throws IOException {
+    this.encoder = encoder;
+    this.origin = is;
+    this.pool = pool;
+    this.chunkSize = chunkSize;
+    this.capacity = (int) (chunkSize + ICompression.MAX_CHUNK_OVERHEAD);
+  }
+
+  @Override
+  public boolean hasNext() {
+    return hasnext;
+  }
+
+  @Override
+  public ByteBuffer next() {
+    try {
+      sink.target = pool.acquire(capacity);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+    try {
+      compress = encoder.open(sink);
+      int count;
+      while ((count = origin.read(data, 0, data.length)) != -1) {
+        compress.write(data, 0, count);
+        if (sink.target.position() >= chunkSize) {
+          compress.close();
+          return handOff();
+        }
+      }
+      // We don't have anything else to read hence set to false.
+      return done();
+    } catch (IOException e) {
+      pool.release(sink.target);
+      sink.target = null;
+      throw new RuntimeException(e);
+    }
+  }
+
+  private ByteBuffer done() throws IOException {
+    compress.close();
+    ByteBuffer return_ = handOff();
+    hasnext = false;
+    IOUtils.closeQuietly(origin);
+    return return_;
+  }
+
+  private ByteBuffer handOff() {
+    ByteBuffer return_ = sink.target;
+    sink.target = null;
+    return_.flip();
+    return return_;
+  }
+
+  @Override
+  public void remove() {
+  }
+
+  /**
+   * Starts a compressed stream for each chunk.
+   */
+  public interface Encoder {
+    OutputStream open(OutputStream out) throws IOException;
+  }
+
+  /**
+   * Writes the compressed output into the current part buffer.
+   */
+  private static class BufferSink extends OutputStream {
+    private ByteBuffer target;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (target == null || !target.hasRemaining())
+        throw new IOException("Compressed chunk overflows its part buffer");
+      target.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      // closing the snappy stream may flush an empty block after the last chunk
+      if (len == 0)
+        return;
+      if (target == null || target.remaining() < len)
+        throw new IOException("Compressed chunk overflows its part buffer");
+      target.put(b, off, len);
+    }
+  }
+}
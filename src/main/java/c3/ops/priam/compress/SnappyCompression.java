@@ -15,24 +15,33 @@
  */
 package c3.ops.priam.compress;
 
+import c3.ops.priam.utils.BufferPool;
 import org.apache.commons.io.IOUtils;
+import org.xerial.snappy.SnappyFramedInputStream;
 import org.xerial.snappy.SnappyInputStream;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 /**
  * Class to generate compressed chunks of data from an input stream using
- * SnappyCompression
+ * SnappyCompression. Decompresses both snappy-java streams and the snappy
+ * framing format.
  */
 public class SnappyCompression implements ICompression {
-  private static final int BUFFER = 2 * 1024;
+  private static final int BUFFER = 64 * 1024;
 
   @Override
   public Iterator<byte[]> compress(InputStream is, long chunkSize) throws IOException {
     return new ChunkedStream(is, chunkSize);
   }
 
+  @Override
+  public Iterator<ByteBuffer> compress(InputStream is, long chunkSize, BufferPool pool) throws IOException {
+    return new PooledChunkedStream(is, chunkSize, pool);
+  }
+
   @Override
   public void decompressAndClose(InputStream input, OutputStream output) throws IOException {
     try {
@@ -44,17 +53,29 @@ public class SnappyCompression implements ICompression {
   }
 
   private void decompress(InputStream input, OutputStream output) throws IOException {
-    SnappyInputStream is = new SnappyInputStream(new BufferedInputStream(input));
+    InputStream is = open(new BufferedInputStream(input, BUFFER));
     byte data[] = new byte[BUFFER];
-    BufferedOutputStream dest1 = new BufferedOutputStream(output, BUFFER);
     try {
       int c;
+      // Reads are already BUFFER sized, no need for another buffer on the output side
       while ((c = is.read(data, 0, BUFFER)) != -1) {
-        dest1.write(data, 0, c);
+        output.write(data, 0, c);
       }
+      // Close here so a failure writing out the tail of the file is not swallowed
+      output.close();
     } finally {
-      IOUtils.closeQuietly(dest1);
+      IOUtils.closeQuietly(output);
       IOUtils.closeQuietly(is);
     }
   }
+
+  /**
+   * Backups are either a snappy-java stream or in the snappy framing format;
+   * tell them apart by the stream header.
+   */
+  private static InputStream open(BufferedInputStream input) throws IOException {
+    if (ParallelFramedDecoder.isFramed(input))
+      return new SnappyFramedInputStream(input, true);
+    return new SnappyInputStream(input);
+  }
 }
@@ -0,0 +1,25 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Compresses in the snappy framing format, with a CRC-32C per frame. Reads
+ * backups in either format.
+ */
+public class SnappyFramedCompression extends SnappyCompression {
+  @Override
+  public Iterator<byte[]> compress(InputStream is, long chunkSize) throws IOException {
+    BufferPool pool = ByteArrayChunks.singleBuffer(chunkSize);
+    return new ByteArrayChunks(new FramedChunkedStream(is, chunkSize, pool), pool);
+  }
+
+  @Override
+  public Iterator<ByteBuffer> compress(InputStream is, long chunkSize, BufferPool pool) throws IOException {
+    return new FramedChunkedStream(is, chunkSize, pool);
+  }
+}
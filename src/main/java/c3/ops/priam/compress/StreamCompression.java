@@ -0,0 +1,64 @@
+package c3.ops.priam.compress;
+
+import c3.ops.priam.utils.BufferPool;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Base for codecs that wrap a compressing output stream and a decompressing
+ * input stream. Each chunk is a complete stream, so the decompressor must read
+ * a sequence of streams back to back.
+ */
+public abstract class StreamCompression implements ICompression, PooledChunkedStream.Encoder {
+  private static final int BUFFER = 64 * 1024;
+
+  /**
+   * @return stream that reads all the compressed streams in the input
+   */
+  protected abstract InputStream decompress(InputStream input) throws IOException;
+
+  @Override
+  public Iterator<byte[]> compress(InputStream is, long chunkSize) throws IOException {
+    BufferPool pool = ByteArrayChunks.singleBuffer(chunkSize);
+    return new ByteArrayChunks(compress(is, chunkSize, pool), pool);
+  }
+
+  @Override
+  public Iterator<ByteBuffer> compress(InputStream is, long chunkSize, BufferPool pool) throws IOException {
+    return new PooledChunkedStream(is, chunkSize, pool, this);
+  }
+
+  @Override
+  public void decompressAndClose(InputStream input, OutputStream output) throws IOException {
+    InputStream is = null;
+    try {
+      is = decompress(new BufferedInputStream(input, BUFFER));
+      byte data[] = new byte[BUFFER];
+      int c;
+      while ((c = is.read(data, 0, BUFFER)) != -1)
+        output.write(data, 0, c);
+      // Close here so a failure writing out the tail of the file is not swallowed
+      output.close();
+    } finally {
+      IOUtils.closeQuietly(is);
+      IOUtils.closeQuietly(input);
+      IOUtils.closeQuietly(output);
+    }
+  }
+
+  /**
+   * @return true if the stream has more bytes, without consuming any
+   */
+  static boolean hasMore(BufferedInputStream in) throws IOException {
+    in.mark(1);
+    int b = in.read();
+    in.reset();
+    return b != -1;
+  }
+}
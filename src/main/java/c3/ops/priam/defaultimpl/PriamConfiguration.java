@@ -64,6 +64,10 @@ public class PriamConfiguration implements IConfiguration {
   private static final String CONFIG_SSL_STORAGE_LISTERN_PORT_NAME = PRIAM_PRE + ".ssl.storage.port";
   private static final String CONFIG_CL_BK_LOCATION = PRIAM_PRE + ".backup.commitlog.location";
   private static final String CONFIG_THROTTLE_UPLOAD_PER_SECOND = PRIAM_PRE + ".upload.throttle";
+  private static final String CONFIG_THROTTLE_UPLOAD_SCHEDULE = PRIAM_PRE + ".upload.throttle.schedule";
+  private static final String CONFIG_THROTTLE_UPLOAD_ADAPTIVE = PRIAM_PRE + ".upload.throttle.adaptive";
+  private static final String CONFIG_THROTTLE_UPLOAD_MAX_PENDING_COMPACTIONS = PRIAM_PRE + ".upload.throttle.max.pendingcompactions";
+  private static final String CONFIG_THROTTLE_UPLOAD_MAX_READ_LATENCY = PRIAM_PRE + ".upload.throttle.max.readlatencyms";
   private static final String CONFIG_IN_MEMORY_COMPACTION_LIMIT = PRIAM_PRE + ".memory.compaction.limit";
   private static final String CONFIG_COMPACTION_THROUHPUT = PRIAM_PRE + ".compaction.throughput";
   private static final String CONFIG_MAX_HINT_WINDOW_IN_MS = PRIAM_PRE + ".hint.window";
@@ -83,18 +87,36 @@ public class PriamConfiguration implements IConfiguration {
 
   // Backup and Restore
   private static final String CONFIG_BACKUP_THREADS = PRIAM_PRE + ".backup.threads";
+  private static final String CONFIG_BACKUP_COMPRESSION_THREADS = PRIAM_PRE + ".backup.compression.threads";
+  private static final String CONFIG_BACKUP_SINGLE_PUT_THRESHOLD = PRIAM_PRE + ".backup.singleput.thresholdkb";
+  private static final String CONFIG_BACKUP_FILE_CONCURRENCY = PRIAM_PRE + ".backup.file.concurrency";
+  private static final String CONFIG_BACKUP_BYTES_IN_FLIGHT = PRIAM_PRE + ".backup.inflightmb";
+  private static final String CONFIG_COMPRESSION_CODEC = PRIAM_PRE + ".compression.codec";
   private static final String CONFIG_RESTORE_PREFIX = PRIAM_PRE + ".restore.prefix";
   private static final String CONFIG_INCR_BK_ENABLE = PRIAM_PRE + ".backup.incremental.enable";
+  private static final String CONFIG_INCR_BK_WATCH = PRIAM_PRE + ".backup.incremental.watch";
+  private static final String CONFIG_INCR_BK_RECONCILE = PRIAM_PRE + ".backup.incremental.reconcile.secs";
   private static final String CONFIG_CL_BK_ENABLE = PRIAM_PRE + ".backup.commitlog.enable";
   private static final String CONFIG_AUTO_RESTORE_SNAPSHOTNAME = PRIAM_PRE + ".restore.snapshot";
   private static final String CONFIG_BUCKET_NAME = PRIAM_PRE + ".s3.bucket";
   private static final String CONFIG_BACKUP_HOUR = PRIAM_PRE + ".backup.hour";
   private static final String CONFIG_S3_BASE_DIR = PRIAM_PRE + ".s3.base_dir";
   private static final String CONFIG_RESTORE_THREADS = PRIAM_PRE + ".restore.threads";
+  private static final String CONFIG_RESTORE_DECOMPRESSION_THREADS = PRIAM_PRE + ".restore.decompression.threads";
+  private static final String CONFIG_RESTORE_DOWNLOAD_THROTTLE = PRIAM_PRE + ".restore.download.throttle";
+  private static final String CONFIG_RESTORE_WRITE_THROTTLE = PRIAM_PRE + ".restore.write.throttle";
+  private static final String CONFIG_RESTORE_MAX_PENDING_TASKS = PRIAM_PRE + ".restore.max.pendingtasks";
+  private static final String CONFIG_RESTORE_FAILURE_POLICY = PRIAM_PRE + ".restore.failure.policy";
+  private static final String CONFIG_RESTORE_RANGE_PARALLELISM = PRIAM_PRE + ".restore.range.parallelism";
+  private static final String CONFIG_RESTORE_RANGE_SIZE = PRIAM_PRE + ".restore.range.sizemb";
   private static final String CONFIG_RESTORE_CLOSEST_TOKEN = PRIAM_PRE + ".restore.closesttoken";
+  private static final String CONFIG_RESTORE_STAGED = PRIAM_PRE + ".restore.staged";
   private static final String CONFIG_RESTORE_KEYSPACES = PRIAM_PRE + ".restore.keyspaces";
   private static final String CONFIG_BACKUP_CHUNK_SIZE = PRIAM_PRE + ".backup.chunksizemb";
   private static final String CONFIG_BACKUP_RETENTION = PRIAM_PRE + ".backup.retention";
+  private static final String CONFIG_BACKUP_DEDUP_MAX_AGE = PRIAM_PRE + ".backup.dedup.maxagedays";
+  private static final String CONFIG_BACKUP_INVENTORY_SYNC = PRIAM_PRE + ".backup.inventory.sync.secs";
+  private static final String CONFIG_LOCAL_STATE_LOCATION = PRIAM_PRE + ".localstate.dir";
   private static final String CONFIG_BACKUP_RACS = PRIAM_PRE + ".backup.racs";
   private static final String CONFIG_MULTITHREADED_COMPACTION = PRIAM_PRE + ".multithreaded.compaction";
   private static final String CONFIG_STREAMING_THROUGHPUT_MB = PRIAM_PRE + ".streaming.throughput.mb";
@@ -197,9 +219,25 @@ public class PriamConfiguration implements IConfiguration {
   private final int DEFAULT_SSL_STORAGE_PORT = 7001;
   private final int DEFAULT_BACKUP_HOUR = 12;
   private final int DEFAULT_BACKUP_THREADS = 2;
+  private final int DEFAULT_BACKUP_COMPRESSION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private final int DEFAULT_BACKUP_SINGLE_PUT_THRESHOLD = 5 * 1024;
+  private final int DEFAULT_BACKUP_FILE_CONCURRENCY = 4;
+  private final int DEFAULT_BACKUP_BYTES_IN_FLIGHT = 512;
+  private final String DEFAULT_COMPRESSION_CODEC = "snappy";
   private final int DEFAULT_RESTORE_THREADS = 8;
+  private final int DEFAULT_RESTORE_DECOMPRESSION_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  private final int DEFAULT_RESTORE_RANGE_PARALLELISM = 1;
+  private final int DEFAULT_RESTORE_MAX_PENDING_TASKS = 64;
+  private final String DEFAULT_RESTORE_FAILURE_POLICY = "fail";
+  private final int DEFAULT_RESTORE_RANGE_SIZE = 5;
   private final int DEFAULT_BACKUP_CHUNK_SIZE = 10;
   private final int DEFAULT_BACKUP_RETENTION = 5;
+  private final int DEFAULT_BACKUP_DEDUP_MAX_AGE = 0;
+  private final int DEFAULT_BACKUP_INVENTORY_SYNC = 300;
+  private final int DEFAULT_INCR_BK_RECONCILE = 600;
+  private final int DEFAULT_THROTTLE_UPLOAD_MAX_PENDING_COMPACTIONS = 32;
+  private final int DEFAULT_THROTTLE_UPLOAD_MAX_READ_LATENCY = 20;
+  private final String DEFAULT_LOCAL_STATE_LOCATION = "/var/lib/priam";
   private final int DEFAULT_VNODE_NUM_TOKENS = 1;
   private final int DEFAULT_HINTS_MAX_THREADS = 2; //default value from 1.2 yaml
   private final int DEFAULT_HINTS_THROTTLE_KB = 1024; //default value from 1.2 yaml
@@ -340,6 +378,21 @@ public class PriamConfiguration implements IConfiguration {
     return config.get(CONFIG_BACKUP_RETENTION, DEFAULT_BACKUP_RETENTION);
   }
 
+  @Override
+  public int getBackupDedupMaxAgeDays() {
+    return config.get(CONFIG_BACKUP_DEDUP_MAX_AGE, DEFAULT_BACKUP_DEDUP_MAX_AGE);
+  }
+
+  @Override
+  public int getBackupInventorySyncSeconds() {
+    return config.get(CONFIG_BACKUP_INVENTORY_SYNC, DEFAULT_BACKUP_INVENTORY_SYNC);
+  }
+
+  @Override
+  public String getLocalStateLocation() {
+    return config.get(CONFIG_LOCAL_STATE_LOCATION, DEFAULT_LOCAL_STATE_LOCATION);
+  }
+
   @Override
   public List<String> getBackupRacs() {
     return config.getList(CONFIG_BACKUP_RACS);
@@ -509,16 +562,89 @@ public class PriamConfiguration implements IConfiguration {
     return config.get(CONFIG_BACKUP_THREADS, DEFAULT_BACKUP_THREADS);
   }
 
+  @Override
+  public int getBackupCompressionThreads() {
+    return config.get(CONFIG_BACKUP_COMPRESSION_THREADS, DEFAULT_BACKUP_COMPRESSION_THREADS);
+  }
+
+  @Override
+  public long getSinglePutThreshold() {
+    long size = config.get(CONFIG_BACKUP_SINGLE_PUT_THRESHOLD, DEFAULT_BACKUP_SINGLE_PUT_THRESHOLD);
+    return size * 1024L;
+  }
+
+  @Override
+  public int getBackupFileConcurrency() {
+    return config.get(CONFIG_BACKUP_FILE_CONCURRENCY, DEFAULT_BACKUP_FILE_CONCURRENCY);
+  }
+
+  @Override
+  public long getBackupBytesInFlight() {
+    long size = config.get(CONFIG_BACKUP_BYTES_IN_FLIGHT, DEFAULT_BACKUP_BYTES_IN_FLIGHT);
+    return size * 1024 * 1024L;
+  }
+
+  /**
+   * priam.compression.codec sets the codec for all files, and e.g.
+   * priam.compression.codec.cl overrides it for commit logs.
+   */
+  @Override
+  public String getCompressionCodec(String fileType) {
+    String codec = config.get(CONFIG_COMPRESSION_CODEC, DEFAULT_COMPRESSION_CODEC);
+    return config.get(CONFIG_COMPRESSION_CODEC + "." + fileType.toLowerCase(), codec);
+  }
+
   @Override
   public int getMaxBackupDownloadThreads() {
     return config.get(CONFIG_RESTORE_THREADS, DEFAULT_RESTORE_THREADS);
   }
 
+  @Override
+  public int getRestoreDecompressionThreads() {
+    return config.get(CONFIG_RESTORE_DECOMPRESSION_THREADS, DEFAULT_RESTORE_DECOMPRESSION_THREADS);
+  }
+
+  @Override
+  public int getRestoreDownloadThrottle() {
+    return config.get(CONFIG_RESTORE_DOWNLOAD_THROTTLE, 0);
+  }
+
+  @Override
+  public int getRestoreWriteThrottle() {
+    return config.get(CONFIG_RESTORE_WRITE_THROTTLE, 0);
+  }
+
+  @Override
+  public int getRestoreMaxPendingTasks() {
+    return config.get(CONFIG_RESTORE_MAX_PENDING_TASKS, DEFAULT_RESTORE_MAX_PENDING_TASKS);
+  }
+
+  @Override
+  public String getRestoreFailurePolicy() {
+    return config.get(CONFIG_RESTORE_FAILURE_POLICY, DEFAULT_RESTORE_FAILURE_POLICY);
+  }
+
+  @Override
+  public int getDownloadRangeParallelism() {
+    return config.get(CONFIG_RESTORE_RANGE_PARALLELISM, DEFAULT_RESTORE_RANGE_PARALLELISM);
+  }
+
+  @Override
+  public long getDownloadRangeSize() {
+    long size = config.get(CONFIG_RESTORE_RANGE_SIZE, DEFAULT_RESTORE_RANGE_SIZE);
+    return size * 1024 * 1024L;
+  }
+
   @Override
   public boolean isRestoreClosestToken() {
     return config.get(CONFIG_RESTORE_CLOSEST_TOKEN, false);
   }
 
+  @Override
+  public boolean isRestoreStaged() {
+    return config.get(CONFIG_RESTORE_STAGED, false);
+  }
+
   @Override
   public String getRingName() {
     return config.get(CONFIG_Ring_Name, "");
@@ -534,6 +660,16 @@ public class PriamConfiguration implements IConfiguration {
     return config.get(CONFIG_INCR_BK_ENABLE, true);
   }
 
+  @Override
+  public boolean isIncrBackupWatch() {
+    return config.get(CONFIG_INCR_BK_WATCH, false);
+  }
+
+  @Override
+  public int getIncrBackupReconcileSeconds() {
+    return config.get(CONFIG_INCR_BK_RECONCILE, DEFAULT_INCR_BK_RECONCILE);
+  }
+
   @Override
   public String getHostIP() {
     if (this.isVpcRing()) return LOCAL_IP;
@@ -545,6 +681,26 @@ public class PriamConfiguration implements IConfiguration {
     return config.get(CONFIG_THROTTLE_UPLOAD_PER_SECOND, Integer.MAX_VALUE);
   }
 
+  @Override
+  public String getUploadThrottleSchedule() {
+    return config.get(CONFIG_THROTTLE_UPLOAD_SCHEDULE, BLANK);
+  }
+
+  @Override
+  public boolean isUploadThrottleAdaptive() {
+    return config.get(CONFIG_THROTTLE_UPLOAD_ADAPTIVE, false);
+  }
+
+  @Override
+  public int getUploadThrottleMaxPendingCompactions() {
+    return config.get(CONFIG_THROTTLE_UPLOAD_MAX_PENDING_COMPACTIONS, DEFAULT_THROTTLE_UPLOAD_MAX_PENDING_COMPACTIONS);
+  }
+
+  @Override
+  public int getUploadThrottleMaxReadLatencyMs() {
+    return config.get(CONFIG_THROTTLE_UPLOAD_MAX_READ_LATENCY, DEFAULT_THROTTLE_UPLOAD_MAX_READ_LATENCY);
+  }
+
   @Override
   public boolean isLocalBootstrapEnabled() {
     return config.get(CONFIG_LOAD_LOCAL_PROPERTIES, false);
@@ -63,6 +63,12 @@ public class BackupServlet {
   private static final String REST_HEADER_REGION = "region";
   private static final String REST_KEYSPACES = "keyspaces";
   private static final String REST_RESTORE_PREFIX = "restoreprefix";
+  private static final String REST_THROTTLE_RATE = "rate";
+  private static final String REST_THROTTLE_DOWNLOAD = "download";
+  private static final String REST_THROTTLE_WRITE = "write";
+  private static final String REST_INVENTORY_TYPE = "type";
+  private static final String REST_INVENTORY_KEYSPACE = "keyspace";
+  private static final String REST_INVENTORY_COLUMNFAMILY = "cf";
   private static final String FMT = "yyyyMMddHHmm";
   private static final String REST_LOCR_ROWKEY = "verifyrowkey";
   private static final String REST_LOCR_KEYSPACE = "verifyks";
@@ -84,7 +90,15 @@ public class BackupServlet {
   @Inject
   private PriamScheduler scheduler;
   @Inject
-  private MetaData metaData;
+  private UploadLedger ledger;
+  @Inject
+  private UploadThrottle uploadThrottle;
+  @Inject
+  private RestoreThrottle restoreThrottle;
+  @Inject
+  private BackupInventory inventory;
+  @Inject
+  private RestorePlanner restorePlanner;
 
   @Inject
 
@@ -123,18 +137,9 @@ public class BackupServlet {
   @Path("/restore")
   public Response restore(@QueryParam(REST_HEADER_RANGE) String daterange, @QueryParam(REST_HEADER_REGION) String region, @QueryParam(REST_HEADER_TOKEN) String token,
                           @QueryParam(REST_KEYSPACES) String keyspaces, @QueryParam(REST_RESTORE_PREFIX) String restorePrefix) throws Exception {
-    Date startTime;
-    Date endTime;
-
-    if (StringUtils.isBlank(daterange) || daterange.equalsIgnoreCase("default")) {
-      startTime = new DateTime().minusDays(1).toDate();
-      endTime = new DateTime().toDate();
-    } else {
-      String[] restore = daterange.split(",");
-      AbstractBackupPath path = pathProvider.get();
-      startTime = path.parseDate(restore[0]);
-      endTime = path.parseDate(restore[1]);
-    }
+    Date[] range = dateRange(daterange);
+    Date startTime = range[0];
+    Date endTime = range[1];
 
     String origRestorePrefix = config.getRestorePrefix();
     if (StringUtils.isNotBlank(restorePrefix)) {
@@ -158,27 +163,79 @@ public class BackupServlet {
   @GET
   @Path("/list")
   public Response list(@QueryParam(REST_HEADER_RANGE) String daterange, @QueryParam(REST_HEADER_FILTER) @DefaultValue("") String filter) throws Exception {
-    Date startTime;
-    Date endTime;
-
-    if (StringUtils.isBlank(daterange) || daterange.equalsIgnoreCase("default")) {
-      startTime = new DateTime().minusDays(1).toDate();
-      endTime = new DateTime().toDate();
-    } else {
-      String[] restore = daterange.split(",");
-      AbstractBackupPath path = pathProvider.get();
-      startTime = path.parseDate(restore[0]);
-      endTime = path.parseDate(restore[1]);
-    }
+    Date[] range = dateRange(daterange);
+    Date startTime = range[0];
+    Date endTime = range[1];
 
     logger.info("Parameters: {backupPrefix: [" + config.getBackupPrefix() + "], daterange: [" + daterange + "], filter: [" + filter + "]}");
 
-    Iterator<AbstractBackupPath> it = bkpStatusFs.list(config.getBackupPrefix(), startTime, endTime);
+    // Backups known locally, through the inventory or the uploads since the
+    // ledger was started, need no listing of S3
+    Iterator<AbstractBackupPath> it;
+    if (inventory != null && inventory.covers(startTime))
+      it = inventory.list(startTime, endTime, null, null, null).iterator();
+    else if (ledger != null && ledger.covers(startTime))
+      it = ledger.list(startTime, endTime);
+    else
+      it = bkpStatusFs.list(config.getBackupPrefix(), startTime, endTime);
     JSONObject object = new JSONObject();
     object = constructJsonResponse(object, it, filter);
     return Response.ok(object.toString(2), MediaType.APPLICATION_JSON).build();
   }
 
+  /**
+   * Dry run of a restore: the files it would download, largest first, and
+   * their total size. Nothing is downloaded apart from the snapshot meta file.
+   */
+  @GET
+  @Path("/restore_plan")
+  public Response restorePlan(@QueryParam(REST_HEADER_RANGE) String daterange) throws Exception {
+    Date[] range = dateRange(daterange);
+    Date startTime = range[0];
+    Date endTime = range[1];
+
+    RestorePlanner.Plan plan = restorePlanner.plan(startTime, endTime);
+    JSONObject object = new JSONObject();
+    if (plan == null) {
+      object.put("snapshot", JSONObject.NULL);
+      return Response.ok(object.toString(), MediaType.APPLICATION_JSON).build();
+    }
+    JSONArray files = new JSONArray();
+    for (AbstractBackupPath p : plan.getFiles())
+      files.put(new JSONObject().put("filename", p.getRemotePath()).put("size", p.getSize()));
+    JSONArray commitLogs = new JSONArray();
+    for (AbstractBackupPath p : plan.getCommitLogs())
+      commitLogs.put(new JSONObject().put("filename", p.getRemotePath()).put("size", p.getSize()));
+    object.put("snapshot", plan.getMeta().getRemotePath());
+    object.put("files", files);
+    object.put("commitlogs", commitLogs);
+    object.put("num_files", plan.getFiles().size() + plan.getCommitLogs().size());
+    object.put("total_size", plan.getTotalBytes());
+    object.put("duplicates", plan.getDuplicates());
+    return Response.ok(object.toString(2), MediaType.APPLICATION_JSON).build();
+  }
+
+  /**
+   * Number and total size of the backup files in the local inventory, by
+   * backup time and optionally by type, keyspace and column family.
+   */
+  @GET
+  @Path("/inventory")
+  public Response inventory(@QueryParam(REST_HEADER_RANGE) String daterange, @QueryParam(REST_INVENTORY_TYPE) String type,
+                            @QueryParam(REST_INVENTORY_KEYSPACE) String keyspace, @QueryParam(REST_INVENTORY_COLUMNFAMILY) String cf) throws Exception {
+    Date[] range = dateRange(daterange);
+    Date startTime = range[0];
+    Date endTime = range[1];
+
+    BackupFileType fileType = StringUtils.isBlank(type) ? null : BackupFileType.valueOf(type.toUpperCase());
+    BackupInventory.Totals totals = inventory.totals(startTime, endTime, fileType, keyspace, cf);
+    JSONObject object = new JSONObject();
+    object.put("covered", inventory.covers(startTime));
+    object.put("num_files", totals.files);
+    object.put("total_size", totals.bytes);
+    return Response.ok(object.toString(), MediaType.APPLICATION_JSON).build();
+  }
+
   @GET
   @Path("/status")
   public Response status() throws Exception {
@@ -194,6 +251,39 @@ public class BackupServlet {
     return Response.ok(object.toString(), MediaType.APPLICATION_JSON).build();
   }
 
+  /**
+   * Shows the upload rate, and with the rate parameter pins its ceiling in
+   * bytes per second (0 for unlimited, negative to follow the configuration again).
+   */
+  @GET
+  @Path("/throttle")
+  public Response throttle(@QueryParam(REST_THROTTLE_RATE) Long rate) throws Exception {
+    if (rate != null)
+      uploadThrottle.setOverride(rate);
+    JSONObject object = new JSONObject();
+    object.put("rate", uploadThrottle.getRate());
+    object.put("ceiling", uploadThrottle.getCeiling());
+    object.put("override", uploadThrottle.getOverride() == null ? JSONObject.NULL : uploadThrottle.getOverride());
+    return Response.ok(object.toString(), MediaType.APPLICATION_JSON).build();
+  }
+
+  /**
+   * Shows the restore download and disk write rates, and sets either one in
+   * bytes per second (0 for unlimited).
+   */
+  @GET
+  @Path("/restore_throttle")
+  public Response restoreThrottle(@QueryParam(REST_THROTTLE_DOWNLOAD) Long download, @QueryParam(REST_THROTTLE_WRITE) Long write) throws Exception {
+    if (download != null)
+      restoreThrottle.setDownloadRate(download);
+    if (write != null)
+      restoreThrottle.setWriteRate(write);
+    JSONObject object = new JSONObject();
+    object.put("download", restoreThrottle.getDownloadRate());
+    object.put("write", restoreThrottle.getWriteRate());
+    return Response.ok(object.toString(), MediaType.APPLICATION_JSON).build();
+  }
+
   /**
    * <p/>
    * Life_Of_C*Row : With this REST call, mutations/existence of a rowkey can be found.
@@ -293,6 +383,18 @@ public class BackupServlet {
    * @param keyspaces Comma seperated list of keyspaces to restore
    * @throws Exception
    */
+  /**
+   * @return start and end of a range given as start,end in the backup date
+   * format, or of the last day when the range is blank or "default"
+   */
+  private Date[] dateRange(String daterange) {
+    if (StringUtils.isBlank(daterange) || daterange.equalsIgnoreCase("default"))
+      return new Date[]{new DateTime().minusDays(1).toDate(), new DateTime().toDate()};
+    String[] range = daterange.split(",");
+    AbstractBackupPath path = pathProvider.get();
+    return new Date[]{path.parseDate(range[0]), path.parseDate(range[1])};
+  }
+
   private void restore(String token, String region, Date startTime, Date endTime, String keyspaces) throws Exception {
     String origRegion = config.getDC();
     String origToken = priamServer.getId().getInstance().getToken();
@@ -367,13 +469,10 @@ public class BackupServlet {
         backupJSON.put("uploaded_ts",
             new DateTime(p.getUploadedTs()).toString(FMT));
         if ("meta".equalsIgnoreCase(filter)) {
-          List<AbstractBackupPath> allFiles = metaData.get(p);
-          long totalSize = 0;
-          for (AbstractBackupPath abp : allFiles)
-            totalSize = totalSize + abp.getSize();
-          backupJSON.put("num_files", Long.toString(allFiles.size()));
-          // keyValues.put("TOTAL-SIZE", Long.toString(totalSize)); //
-          // Add Later
+          // Worked out once per snapshot, rather than reading every meta file each time
+          BackupInventory.Totals totals = inventory.metaTotals(p);
+          backupJSON.put("num_files", Long.toString(totals.files));
+          backupJSON.put("total_size", Long.toString(totals.bytes));
         }
         fileCnt++;
         jArray.put(backupJSON);
@@ -19,78 +19,136 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * {@link ThreadPoolExecutor} that will block in the {@code submit()} method
- * until the task can be successfully added to the queue.
+ * Thread pool whose submit blocks, instead of rejecting, while all threads
+ * are busy and the queue is full.
+ * <p>
+ * Free slots (threads plus queue capacity) are counted with a semaphore, so a
+ * submitter wakes up as soon as a task finishes and submitters do not
+ * serialize on each other. Callers that need to wait for their own tasks
+ * submit them through a {@link TaskGroup}, which lets several batches share
+ * the pool.
  */
 public class BlockingSubmitThreadPoolExecutor extends ThreadPoolExecutor {
-  private static final long DEFAULT_SLEEP = 100;
   private static final long DEFAULT_KEEP_ALIVE = 100;
   private static final Logger logger = LoggerFactory.getLogger(BlockingSubmitThreadPoolExecutor.class);
-  private BlockingQueue<Runnable> queue;
-  private long giveupTime;
-  private AtomicInteger active;
+  private final Semaphore slots;
+  private final long giveupTime;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition idle = lock.newCondition();
+  private int active;
 
   public BlockingSubmitThreadPoolExecutor(int maximumPoolSize, BlockingQueue<Runnable> workQueue, long timeoutAdding) {
     super(maximumPoolSize, maximumPoolSize, DEFAULT_KEEP_ALIVE, TimeUnit.SECONDS, workQueue);
-    this.queue = workQueue;
     this.giveupTime = timeoutAdding;
-    this.active = new AtomicInteger(0);
+    this.slots = new Semaphore(maximumPoolSize + workQueue.remainingCapacity(), true);
+    setRejectedExecutionHandler(new QueueWhenFull());
   }
 
   /**
-   * This is a thread safe way to avoid rejection exception... this is
-   * implemented because we might want to hold the incoming requests till
-   * there is a free thread.
+   * Blocks until there is room for the task, and fails if there is none
+   * within the timeout given at construction. Every submit and invoke method
+   * goes through here, so each task holds a slot till it has run.
    */
   @Override
-  public <T> Future<T> submit(Callable<T> task) {
-    synchronized (this) {
-      active.incrementAndGet();
-      long timeout = 0;
-      while (queue.remainingCapacity() == 0) {
-        try {
-          if (timeout <= giveupTime) {
-            Thread.sleep(DEFAULT_SLEEP);
-            timeout += DEFAULT_SLEEP;
-          } else {
-            throw new RuntimeException("Timed out because TPE is too busy...");
-          }
-        } catch (InterruptedException e) {
-          throw new RuntimeException(e);
-        }
-      }
-      return super.submit(task);
+  public void execute(Runnable command) {
+    acquireSlot();
+    lock.lock();
+    try {
+      active++;
+    } finally {
+      lock.unlock();
+    }
+    try {
+      super.execute(command);
+    } catch (RejectedExecutionException e) {
+      finished();
+      throw e;
+    }
+  }
+
+  /**
+   * Submit a task as part of the group; {@link TaskGroup#await(long)} then
+   * waits for it along with the rest of the group.
+   */
+  public <T> Future<T> submit(TaskGroup group, Callable<T> task) {
+    Callable<T> tracked = group.track(task);
+    try {
+      return submit(tracked);
+    } catch (RuntimeException e) {
+      group.untrack(e);
+      throw e;
+    }
+  }
+
+  private void acquireSlot() {
+    try {
+      if (!slots.tryAcquire(giveupTime, TimeUnit.MILLISECONDS))
+        throw new RuntimeException("Timed out because TPE is too busy...");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
     }
   }
 
   @Override
   protected void afterExecute(Runnable r, Throwable t) {
     super.afterExecute(r, t);
-    active.decrementAndGet();
+    finished();
+  }
+
+  private void finished() {
+    slots.release();
+    lock.lock();
+    try {
+      if (--active == 0)
+        idle.signalAll();
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
-   * blocking call to test if the threads are done or not.
+   * blocking call to test if the threads are done or not. Waits for every
+   * task in the pool; use a {@link TaskGroup} to wait for specific tasks.
    */
   public void sleepTillEmpty() {
-    long timeout = 0;
+    long remaining = TimeUnit.MILLISECONDS.toNanos(giveupTime);
+    lock.lock();
+    try {
+      while (active > 0) {
+        if (remaining <= 0)
+          throw new RuntimeException("Timed out because TPE is too busy...");
+        logger.debug("Waiting for empty, Count: {}", active);
+        remaining = idle.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } finally {
+      lock.unlock();
+    }
+  }
 
-    while (!queue.isEmpty() || (active.get() > 0)) {
+  /**
+   * A slot is given back just before its worker picks up the next task, so a
+   * holder of a slot can briefly find the queue full. It waits for the queue
+   * instead of failing.
+   */
+  private static class QueueWhenFull implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      if (executor.isShutdown())
+        throw new RejectedExecutionException("Executor has been shut down");
       try {
-        if (timeout <= giveupTime) {
-          Thread.sleep(DEFAULT_SLEEP);
-          timeout += DEFAULT_SLEEP;
-          logger.debug("After Sleeping for empty: {}, Count: {}", +queue.size(), active.get());
-        } else {
-          throw new RuntimeException("Timed out because TPE is too busy...");
-        }
+        executor.getQueue().put(r);
       } catch (InterruptedException e) {
-        throw new RuntimeException(e);
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException(e);
       }
     }
-
   }
 }
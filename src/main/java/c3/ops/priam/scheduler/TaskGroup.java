@@ -0,0 +1,81 @@
+package c3.ops.priam.scheduler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for a batch of tasks submitted to a shared
+ * {@link BlockingSubmitThreadPoolExecutor}, e.g. the parts of one upload.
+ * Waiting on the group only waits for its own tasks, and returns as soon as
+ * one of them fails.
+ */
+public class TaskGroup {
+  private int pending;
+  private Throwable failure;
+
+  <T> Callable<T> track(final Callable<T> task) {
+    synchronized (this) {
+      pending++;
+    }
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        Throwable error = null;
+        try {
+          return task.call();
+        } catch (Exception e) {
+          error = e;
+          throw e;
+        } catch (Error e) {
+          error = e;
+          throw e;
+        } finally {
+          done(error);
+        }
+      }
+    };
+  }
+
+  /**
+   * A tracked task never made it into the pool.
+   */
+  void untrack(Throwable cause) {
+    done(cause);
+  }
+
+  private synchronized void done(Throwable error) {
+    pending--;
+    if (error != null && failure == null)
+      failure = error;
+    notifyAll();
+  }
+
+  /**
+   * @return number of tasks submitted but not yet finished
+   */
+  public synchronized int pending() {
+    return pending;
+  }
+
+  /**
+   * Wait for every task in the group.
+   *
+   * @throws ExecutionException with the first failure as its cause, as soon
+   *                            as any task fails
+   * @throws TimeoutException   if tasks are still running after the timeout
+   */
+  public synchronized void await(long timeoutMillis) throws InterruptedException, ExecutionException, TimeoutException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    long deadline = System.nanoTime() + remaining;
+    while (pending > 0 && failure == null) {
+      if (remaining <= 0)
+        throw new TimeoutException(pending + " tasks still running after " + timeoutMillis + " ms");
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      remaining = deadline - System.nanoTime();
+    }
+    if (failure != null)
+      throw new ExecutionException(failure);
+  }
+}
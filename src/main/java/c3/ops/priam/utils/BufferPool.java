@@ -0,0 +1,97 @@
+package c3.ops.priam.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of fixed size byte buffers, used to recycle the large part
+ * buffers of multipart uploads instead of allocating them per part.
+ * <p>
+ * At most {@code maxBuffers} buffers are handed out at any time and
+ * {@link #acquire(int)} blocks until one is released, so the memory held by
+ * the pool never exceeds {@code maxBuffers * bufferSize}. Requests larger than
+ * the pooled buffer size get a one-off buffer which still counts against the
+ * limit but is dropped on release.
+ */
+public class BufferPool {
+  private final int bufferSize;
+  private final boolean direct;
+  private final Semaphore permits;
+  private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<ByteBuffer>();
+  private final AtomicInteger allocated = new AtomicInteger();
+
+  public BufferPool(int maxBuffers, int bufferSize, boolean direct) {
+    if (maxBuffers < 1)
+      throw new IllegalArgumentException("Buffer pool needs at least one buffer");
+    this.bufferSize = bufferSize;
+    this.direct = direct;
+    this.permits = new Semaphore(maxBuffers, true);
+  }
+
+  /**
+   * Take a cleared buffer of at least the given capacity, blocking until one
+   * is available.
+   */
+  public ByteBuffer acquire(int capacity) throws InterruptedException {
+    permits.acquire();
+    return take(capacity);
+  }
+
+  /**
+   * Like {@link #acquire(int)} but returns null instead of blocking when the
+   * pool is exhausted.
+   */
+  public ByteBuffer tryAcquire(int capacity) {
+    if (!permits.tryAcquire())
+      return null;
+    return take(capacity);
+  }
+
+  private ByteBuffer take(int capacity) {
+    ByteBuffer buf = null;
+    if (capacity <= bufferSize) {
+      buf = free.poll();
+      if (buf == null)
+        buf = allocate(bufferSize);
+    } else
+      buf = allocate(capacity);
+    buf.clear();
+    return buf;
+  }
+
+  /**
+   * Give a buffer obtained from {@link #acquire(int)} back to the pool.
+   */
+  public void release(ByteBuffer buf) {
+    if (buf.capacity() == bufferSize)
+      free.offer(buf);
+    else
+      allocated.decrementAndGet();
+    permits.release();
+  }
+
+  private ByteBuffer allocate(int capacity) {
+    allocated.incrementAndGet();
+    return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * @return number of buffers that can be acquired without blocking
+   */
+  public int available() {
+    return permits.availablePermits();
+  }
+
+  /**
+   * @return number of buffers currently allocated, pooled or in use
+   */
+  public int allocated() {
+    return allocated.get();
+  }
+}
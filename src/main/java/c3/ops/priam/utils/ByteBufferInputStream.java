@@ -0,0 +1,62 @@
+package c3.ops.priam.utils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * InputStream over the remaining bytes of a ByteBuffer. Reads from a private
+ * view so the source buffer's position is left alone, and supports mark/reset
+ * so the S3 client can rewind on retries.
+ */
+public class ByteBufferInputStream extends InputStream {
+  private final ByteBuffer buf;
+
+  public ByteBufferInputStream(ByteBuffer source) {
+    this.buf = source.duplicate();
+  }
+
+  @Override
+  public int read() {
+    if (!buf.hasRemaining())
+      return -1;
+    return buf.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) {
+    if (len == 0)
+      return 0;
+    if (!buf.hasRemaining())
+      return -1;
+    int count = Math.min(len, buf.remaining());
+    buf.get(b, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) {
+    int count = (int) Math.min(Math.max(n, 0), buf.remaining());
+    buf.position(buf.position() + count);
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return buf.remaining();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return true;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+    buf.mark();
+  }
+
+  @Override
+  public synchronized void reset() {
+    buf.reset();
+  }
+}
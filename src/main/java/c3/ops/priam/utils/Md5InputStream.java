@@ -0,0 +1,85 @@
+package c3.ops.priam.utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Input stream that computes the MD5 of the bytes read through it, so a file
+ * is hashed while it is uploaded instead of being read again afterwards.
+ * Skipped bytes are read and hashed too.
+ */
+public class Md5InputStream extends FilterInputStream {
+  private static final int SKIP_BUFFER_SIZE = 64 * 1024;
+  private final MessageDigest digest;
+  private boolean eof;
+  private String md5;
+
+  public Md5InputStream(InputStream in) {
+    super(in);
+    try {
+      this.digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b == -1)
+      eof = true;
+    else
+      digest.update((byte) b);
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int count = super.read(b, off, len);
+    if (count == -1)
+      eof = true;
+    else if (count > 0)
+      digest.update(b, off, count);
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    byte[] buf = new byte[(int) Math.min(n, SKIP_BUFFER_SIZE)];
+    long skipped = 0;
+    while (skipped < n) {
+      int count = read(buf, 0, (int) Math.min(buf.length, n - skipped));
+      if (count == -1)
+        break;
+      skipped += count;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public synchronized void mark(int readlimit) {
+  }
+
+  @Override
+  public synchronized void reset() throws IOException {
+    throw new IOException("mark/reset not supported");
+  }
+
+  /**
+   * @return MD5 of the whole stream in the form of {@link SystemUtils#md5(java.io.File)},
+   * or null if it was not read to the end
+   */
+  public String getMd5() {
+    if (eof && md5 == null)
+      md5 = SystemUtils.toHex(digest.digest());
+    return md5;
+  }
+}
@@ -0,0 +1,78 @@
+package c3.ops.priam.utils;
+
+import com.sun.jna.Native;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.lang.reflect.Field;
+
+/**
+ * The few libc calls Cassandra's CLibrary does not expose. Everything here
+ * degrades to a no-op when JNA or the call is unavailable.
+ */
+public final class NativeIO {
+  private static final Logger logger = LoggerFactory.getLogger(NativeIO.class);
+  private static boolean jnaAvailable = false;
+  // FileDescriptor.fd, null where the JDK does not open it up to reflection
+  private static final Field FD_FIELD = fdField();
+
+  static {
+    try {
+      Native.register("c");
+      jnaAvailable = true;
+    } catch (Throwable e) {
+      logger.info("JNA not available, file preallocation is disabled: " + e.getMessage());
+    }
+  }
+
+  private static Field fdField() {
+    try {
+      Field field = FileDescriptor.class.getDeclaredField("fd");
+      field.setAccessible(true);
+      return field;
+    } catch (Exception e) {
+      // Newer JDKs refuse unless java.base/java.io is opened to this module
+      logger.warn("Unable to read file descriptors, file preallocation is disabled: " + e);
+      return null;
+    }
+  }
+
+  private NativeIO() {
+  }
+
+  private static native int posix_fallocate(int fd, long offset, long len);
+
+  /**
+   * Reserve disk blocks for the given range of the file.
+   *
+   * @return true if the space was allocated
+   */
+  public static boolean tryFallocate(int fd, long offset, long len) {
+    if (!jnaAvailable || fd < 0 || len <= 0)
+      return false;
+    try {
+      int result = posix_fallocate(fd, offset, len);
+      if (result != 0)
+        logger.debug("posix_fallocate({}, {}, {}) failed with {}", fd, offset, len, result);
+      return result == 0;
+    } catch (Throwable e) {
+      logger.debug("posix_fallocate not available: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * @return the unix file descriptor, or -1 if it cannot be read
+   */
+  public static int getfd(FileDescriptor descriptor) {
+    if (FD_FIELD == null)
+      return -1;
+    try {
+      return FD_FIELD.getInt(descriptor);
+    } catch (Exception e) {
+      logger.debug("Unable to read file descriptor: " + e.getMessage());
+      return -1;
+    }
+  }
+}
@@ -28,6 +28,7 @@ import javax.management.remote.JMXConnector;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.util.List;
 
@@ -92,6 +93,19 @@ public class SystemUtils {
     }
   }
 
+  /**
+   * Md5 of the remaining bytes of the buffer, without moving its position
+   */
+  public static byte[] md5(ByteBuffer buf) {
+    try {
+      MessageDigest mdigest = MessageDigest.getInstance("MD5");
+      mdigest.update(buf.duplicate());
+      return mdigest.digest();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Get a Md5 string which is similar to OS Md5sum
    */
@@ -0,0 +1,37 @@
+package c3.ops.priam.utils;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that takes a permit from the rate limiter for every byte
+ * read. The limiter may be shared by several streams and its rate changed
+ * while they are read.
+ */
+public class ThrottledInputStream extends FilterInputStream {
+  private final RateLimiter limiter;
+
+  public ThrottledInputStream(InputStream in, RateLimiter limiter) {
+    super(in);
+    this.limiter = limiter;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = super.read();
+    if (b != -1)
+      limiter.acquire();
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int count = super.read(b, off, len);
+    if (count > 0)
+      limiter.acquire(count);
+    return count;
+  }
+}
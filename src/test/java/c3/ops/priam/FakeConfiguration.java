@@ -153,6 +153,11 @@ public class FakeConfiguration implements IConfiguration {
     return 2;
   }
 
+  @Override
+  public int getBackupCompressionThreads() {
+    return 1;
+  }
+
   @Override
   public String getDC() {
     // TODO Auto-generated method stub
@@ -171,6 +176,61 @@ public class FakeConfiguration implements IConfiguration {
     return 3;
   }
 
+  @Override
+  public int getRestoreDecompressionThreads() {
+    return 1;
+  }
+
+  @Override
+  public int getRestoreDownloadThrottle() {
+    return 0;
+  }
+
+  @Override
+  public int getRestoreWriteThrottle() {
+    return 0;
+  }
+
+  @Override
+  public int getRestoreMaxPendingTasks() {
+    return 0;
+  }
+
+  @Override
+  public String getRestoreFailurePolicy() {
+    return "fail";
+  }
+
+  @Override
+  public int getDownloadRangeParallelism() {
+    return 1;
+  }
+
+  @Override
+  public long getSinglePutThreshold() {
+    return 5L * 1024 * 1024;
+  }
+
+  @Override
+  public int getBackupFileConcurrency() {
+    return 4;
+  }
+
+  @Override
+  public long getBackupBytesInFlight() {
+    return 64L * 1024 * 1024;
+  }
+
+  @Override
+  public String getCompressionCodec(String fileType) {
+    return "snappy";
+  }
+
+  @Override
+  public long getDownloadRangeSize() {
+    return 5L * 1024 * 1024;
+  }
+
   @Override
   public String getRestorePrefix() {
     // TODO Auto-generated method stub
@@ -204,6 +264,16 @@ public class FakeConfiguration implements IConfiguration {
     return true;
   }
 
+  @Override
+  public boolean isIncrBackupWatch() {
+    return false;
+  }
+
+  @Override
+  public int getIncrBackupReconcileSeconds() {
+    return 600;
+  }
+
   @Override
   public String getHostIP() {
     // TODO Auto-generated method stub
@@ -216,6 +286,26 @@ public class FakeConfiguration implements IConfiguration {
     return 0;
   }
 
+  @Override
+  public String getUploadThrottleSchedule() {
+    return "";
+  }
+
+  @Override
+  public boolean isUploadThrottleAdaptive() {
+    return false;
+  }
+
+  @Override
+  public int getUploadThrottleMaxPendingCompactions() {
+    return 32;
+  }
+
+  @Override
+  public int getUploadThrottleMaxReadLatencyMs() {
+    return 20;
+  }
+
   @Override
   public boolean isLocalBootstrapEnabled() {
     // TODO Auto-generated method stub
@@ -277,6 +367,11 @@ public class FakeConfiguration implements IConfiguration {
     return false;
   }
 
+  @Override
+  public boolean isRestoreStaged() {
+    return false;
+  }
+
   @Override
   public String getCassStopScript() {
     return "true";
@@ -297,6 +392,21 @@ public class FakeConfiguration implements IConfiguration {
     return 5;
   }
 
+  @Override
+  public int getBackupDedupMaxAgeDays() {
+    return 0;
+  }
+
+  @Override
+  public int getBackupInventorySyncSeconds() {
+    return 300;
+  }
+
+  @Override
+  public String getLocalStateLocation() {
+    return "target/priam_state";
+  }
+
   @Override
   public List<String> getBackupRacs() {
     return Lists.newArrayList();
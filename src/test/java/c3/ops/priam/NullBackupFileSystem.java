@@ -33,6 +33,10 @@ public class NullBackupFileSystem implements IBackupFileSystem {
   public void upload(AbstractBackupPath path, InputStream in) throws BackupRestoreException {
   }
 
+  @Override
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException {
+  }
+
   @Override
   public Iterator<AbstractBackupPath> listPrefixes(Date date) {
     return null;
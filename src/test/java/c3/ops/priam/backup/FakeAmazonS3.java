@@ -0,0 +1,53 @@
+package c3.ops.priam.backup;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.google.common.collect.Maps;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Fake S3 client for tests. A test answers the requests it expects with
+ * {@link #on(String, Class, Handler)}; any other call fails with
+ * UnsupportedOperationException.
+ */
+public class FakeAmazonS3 implements InvocationHandler {
+  private final Map<String, Handler<?>> handlers = Maps.newConcurrentMap();
+
+  /**
+   * Answers one kind of request.
+   */
+  public interface Handler<R> {
+    Object handle(R request) throws Exception;
+  }
+
+  /**
+   * Answer the calls of the named method that take the given request type.
+   */
+  public <R> FakeAmazonS3 on(String method, Class<R> request, Handler<R> handler) {
+    handlers.put(key(method, request), handler);
+    return this;
+  }
+
+  public AmazonS3 client() {
+    return (AmazonS3) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{AmazonS3.class}, this);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    if (method.getDeclaringClass() == Object.class)
+      return method.invoke(this, args);
+    Class<?>[] params = method.getParameterTypes();
+    Handler<Object> handler = params.length == 1 ? (Handler<Object>) handlers.get(key(method.getName(), params[0])) : null;
+    if (handler == null)
+      throw new UnsupportedOperationException(method.getName());
+    return handler.handle(args[0]);
+  }
+
+  private static String key(String method, Class<?> request) {
+    return method + "(" + request.getName() + ")";
+  }
+}
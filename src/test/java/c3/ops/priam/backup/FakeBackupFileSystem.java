@@ -85,6 +85,11 @@ public class FakeBackupFileSystem implements IBackupFileSystem {
     uploadedFiles.add(path.backupFile.getAbsolutePath());
   }
 
+  @Override
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException {
+    flist.add(to);
+  }
+
   @Override
   public Iterator<AbstractBackupPath> list(String bucket, Date start, Date till) {
     String[] paths = bucket.split(String.valueOf(S3BackupPath.PATH_SEP));
@@ -0,0 +1,23 @@
+package c3.ops.priam.backup;
+
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * Meta data whose snapshots all list the same files, counting the reads.
+ */
+public class FakeMetaData extends MetaData {
+  final List<AbstractBackupPath> files = Lists.newArrayList();
+  int reads;
+
+  public FakeMetaData() {
+    super(null, null, null);
+  }
+
+  @Override
+  public List<AbstractBackupPath> get(AbstractBackupPath meta) {
+    reads++;
+    return files;
+  }
+}
@@ -0,0 +1,65 @@
+package c3.ops.priam.backup;
+
+import com.google.common.collect.Lists;
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Backup file system that only lists the files it is given, by backup time,
+ * and remembers the start of every listing. Downloads write nothing.
+ */
+public class ListingFileSystem implements IBackupFileSystem {
+  final List<AbstractBackupPath> files = Lists.newArrayList();
+  final List<Date> starts = Lists.newArrayList();
+
+  @Override
+  public Iterator<AbstractBackupPath> list(String path, Date start, Date till) {
+    starts.add(start);
+    List<AbstractBackupPath> listed = Lists.newArrayList();
+    for (AbstractBackupPath file : files)
+      if ((file.getTime().after(start) && file.getTime().before(till)) || file.getTime().equals(start))
+        listed.add(file);
+    return listed.iterator();
+  }
+
+  @Override
+  public void download(AbstractBackupPath path, OutputStream os) throws BackupRestoreException {
+    IOUtils.closeQuietly(os);
+  }
+
+  @Override
+  public void download(AbstractBackupPath path, OutputStream os, String filePath) throws BackupRestoreException {
+    download(path, os);
+  }
+
+  @Override
+  public void upload(AbstractBackupPath path, InputStream in) {
+  }
+
+  @Override
+  public void copy(AbstractBackupPath from, AbstractBackupPath to) {
+  }
+
+  @Override
+  public Iterator<AbstractBackupPath> listPrefixes(Date date) {
+    return Lists.<AbstractBackupPath>newArrayList().iterator();
+  }
+
+  @Override
+  public void cleanup() {
+  }
+
+  @Override
+  public int getActivecount() {
+    return 0;
+  }
+
+  @Override
+  public void shutdown() {
+  }
+}
@@ -0,0 +1,145 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.utils.SystemUtils;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBackupDedupIndex {
+  private static final String REMOTE = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db";
+  private File dir;
+  private File indexFile;
+  private File sstable;
+  private S3BackupPath bp;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/dedup-index");
+    FileUtils.forceMkdir(dir);
+    indexFile = new File(dir, "backup_dedup.idx");
+    sstable = new File(dir, "ks1-cf1-jb-1-Data.db");
+    FileUtils.writeStringToFile(sstable, "immutable sstable contents");
+    bp = new S3BackupPath(new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1"), null);
+    bp.parseRemote(REMOTE);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void findsUploadedFileAfterReload() throws Exception {
+    BackupDedupIndex index = new BackupDedupIndex(indexFile, 3);
+    assertNull(index.find(bp, sstable));
+    index.add(bp, sstable, SystemUtils.md5(sstable));
+    index.save();
+
+    BackupDedupIndex reloaded = new BackupDedupIndex(indexFile, 3);
+    assertEquals(REMOTE, reloaded.find(bp, sstable).getRemotePath());
+  }
+
+  @Test
+  public void changedContentIsNotReused() throws Exception {
+    BackupDedupIndex index = new BackupDedupIndex(indexFile, 3);
+    index.add(bp, sstable, SystemUtils.md5(sstable));
+    // same name and size, different bytes
+    FileUtils.writeStringToFile(sstable, "IMMUTABLE SSTABLE CONTENTS");
+    sstable.setLastModified(sstable.lastModified() - 60 * 1000);
+    assertNull(index.find(bp, sstable));
+  }
+
+  /**
+   * Takes a snapshot of an unchanged SSTable every day, but for a week with no
+   * backups, while a lifecycle rule deletes objects retention days after they
+   * were created. Every snapshot still within its retention must find all its
+   * files.
+   */
+  @Test
+  public void snapshotsOutliveLifecycleExpiry() throws Exception {
+    final int retentionDays = 7;
+    final long day = TimeUnit.DAYS.toMillis(1);
+    final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    final Map<String, Long> created = Maps.newHashMap();
+    final FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1");
+    IBackupFileSystem fs = new BackupFileSystemAdapter() {
+      @Override
+      public void copy(AbstractBackupPath from, AbstractBackupPath to) throws BackupRestoreException {
+        if (!created.containsKey(from.getRemotePath()))
+          throw new BackupRestoreException("No such key " + from.getRemotePath());
+        created.put(to.getRemotePath(), now.get());
+      }
+
+      @Override
+      public void download(AbstractBackupPath path, OutputStream os, String filePath) {
+      }
+    };
+    Provider<AbstractBackupPath> pathFactory = new Provider<AbstractBackupPath>() {
+      @Override
+      public AbstractBackupPath get() {
+        return new S3BackupPath(config, null);
+      }
+    };
+    BackupDedupIndex index = new BackupDedupIndex(indexFile, retentionDays - 1) {
+      @Override
+      long currentTimeMillis() {
+        return now.get();
+      }
+    };
+    SnapshotBackup backup = new SnapshotBackup(config, fs, pathFactory, null, null, null, null, index);
+
+    Map<Integer, String> snapshots = Maps.newHashMap();
+    int uploads = 0;
+    for (int d = 0; d < 4 * retentionDays; d++, now.addAndGet(day)) {
+      boolean skipped = d >= 10 && d < 10 + retentionDays;
+      for (Iterator<Long> it = created.values().iterator(); it.hasNext(); )
+        if (now.get() - it.next() >= retentionDays * day)
+          it.remove();
+      if (skipped)
+        continue;
+      AbstractBackupPath snap = pathFactory.get();
+      snap.parseRemote(REMOTE.replace("201108110030", snap.formatDate(new Date(now.get()))));
+      String md5 = backup.copyStored(snap, sstable);
+      if (md5 == null) {
+        created.put(snap.getRemotePath(), now.get());
+        md5 = SystemUtils.md5(sstable);
+        uploads++;
+      }
+      backup.uploaded(snap, sstable, md5);
+      snapshots.put(d, snap.getRemotePath());
+
+      for (int s = Math.max(0, d - retentionDays + 1); s <= d; s++)
+        if (snapshots.containsKey(s))
+          assertTrue("snapshot of day " + s + " lost its file on day " + d, created.containsKey(snapshots.get(s)));
+    }
+    // each snapshot copies the one before it; the file is uploaded again
+    // only after the gap, when its entry has aged out
+    assertEquals(2, uploads);
+  }
+
+  @Test
+  public void disabledIndexStoresNothing() throws Exception {
+    BackupDedupIndex index = new BackupDedupIndex(indexFile, 0);
+    index.add(bp, sstable, SystemUtils.md5(sstable));
+    index.save();
+    assertNull(index.find(bp, sstable));
+    assertEquals(false, indexFile.exists());
+  }
+}
@@ -0,0 +1,69 @@
+package c3.ops.priam.backup;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestBackupDirWatcher {
+  private final File dataDir = new File("target/data_watch");
+  private final BlockingQueue<Set<File>> batches = new LinkedBlockingQueue<Set<File>>();
+  private BackupDirWatcher watcher;
+
+  @Before
+  public void setup() throws Exception {
+    FileUtils.deleteQuietly(dataDir);
+    new File(dataDir, "ks1/cf1/backups").mkdirs();
+    watcher = new BackupDirWatcher(dataDir, new BackupDirWatcher.Listener() {
+      @Override
+      public void changed(Set<File> backupDirs) {
+        batches.add(backupDirs);
+      }
+
+      @Override
+      public void rescan() {
+      }
+    });
+    watcher.start();
+  }
+
+  @After
+  public void cleanup() {
+    watcher.stop();
+    FileUtils.deleteQuietly(dataDir);
+  }
+
+  @Test
+  public void newFileInBackupsDir() throws Exception {
+    File backups = new File(dataDir, "ks1/cf1/backups");
+    FileUtils.touch(new File(backups, "ks1-cf1-ka-1-Data.db"));
+    assertTrue(next().contains(backups));
+  }
+
+  @Test
+  public void newColumnFamily() throws Exception {
+    File backups = new File(dataDir, "ks1/cf2/backups");
+    backups.mkdirs();
+    FileUtils.touch(new File(backups, "ks1-cf2-ka-1-Data.db"));
+    Set<File> changed = next();
+    // The file may land before the new dirs are registered, or after
+    while (!changed.contains(backups))
+      changed = next();
+    assertTrue(changed.contains(backups));
+  }
+
+  private Set<File> next() throws InterruptedException {
+    Set<File> changed = batches.poll(30, TimeUnit.SECONDS);
+    assertNotNull("no change reported", changed);
+    return changed;
+  }
+}
@@ -0,0 +1,212 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.backup.AbstractBackupPath.BackupFileType;
+import c3.ops.priam.backup.IMessageObserver.BACKUP_MESSAGE_TYPE;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBackupInventory {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private final FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1");
+  private final Provider<AbstractBackupPath> pathFactory = new Provider<AbstractBackupPath>() {
+    @Override
+    public AbstractBackupPath get() {
+      return new S3BackupPath(config, null);
+    }
+  };
+  private final ListingFileSystem fs = new ListingFileSystem();
+  private final FakeMetaData metaData = new FakeMetaData();
+  private final long now = System.currentTimeMillis();
+  private File dir;
+  private File inventoryFile;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/backup-inventory");
+    FileUtils.forceMkdir(dir);
+    inventoryFile = new File(dir, "backup_inventory.log");
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void firstSyncListsRetentionThenDeltas() throws Exception {
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 100));
+    BackupInventory inventory = inventory();
+    assertFalse(inventory.covers(new Date(now)));
+
+    inventory.sync();
+    long retention = TimeUnit.DAYS.toMillis(config.getBackupRetentionDays());
+    assertTrue(Math.abs(fs.starts.get(0).getTime() - (now - retention)) < TimeUnit.MINUTES.toMillis(1));
+    assertTrue(inventory.covers(new Date(now - TimeUnit.DAYS.toMillis(1))));
+    assertFalse(inventory.covers(new Date(now - retention - TimeUnit.DAYS.toMillis(1))));
+    assertEquals(1, inventory.size());
+
+    inventory.sync();
+    // Only from a little before the last listing
+    assertTrue(fs.starts.get(1).getTime() > now - TimeUnit.HOURS.toMillis(7));
+  }
+
+  @Test
+  public void queriesByTimeTypeKeyspaceAndColumnFamily() throws Exception {
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 100));
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf2/f2.db", 200));
+    fs.files.add(path(hoursAgo(20), "SST/ks2/cf1/f3.db", 400));
+    fs.files.add(path(hoursAgo(10), "META/meta.json", 10));
+    fs.files.add(path(hoursAgo(2), "SST/ks1/cf1/f4.db", 800));
+    BackupInventory inventory = inventory();
+    inventory.sync();
+
+    Date start = new Date(now - TimeUnit.HOURS.toMillis(48));
+    Date till = new Date(now);
+    assertEquals(1510, inventory.totals(start, till, null, null, null).bytes);
+    assertEquals(900, inventory.totals(start, till, BackupFileType.SST, "ks1", "cf1").bytes);
+    assertEquals(3, inventory.totals(start, till, BackupFileType.SST, "ks1", null).files);
+    assertEquals(1, inventory.totals(start, till, BackupFileType.META, null, null).files);
+
+    List<AbstractBackupPath> recent = inventory.list(new Date(now - TimeUnit.HOURS.toMillis(25)), till, BackupFileType.SST, null, null);
+    assertEquals(2, recent.size());
+    assertEquals(PREFIX + hoursAgo(20) + "/SST/ks2/cf1/f3.db", recent.get(0).getRemotePath());
+    assertEquals(400, recent.get(0).getSize());
+    assertEquals(PREFIX + hoursAgo(2) + "/SST/ks1/cf1/f4.db", recent.get(1).getRemotePath());
+  }
+
+  @Test
+  public void survivesRestart() throws Exception {
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 100));
+    BackupInventory inventory = inventory();
+    inventory.sync();
+    AbstractBackupPath meta = path(hoursAgo(10), "META/meta.json", 10);
+    metaData.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 0));
+    inventory.metaTotals(meta);
+    inventory.sync();
+
+    BackupInventory reloaded = inventory();
+    assertTrue(reloaded.covers(new Date(now - TimeUnit.DAYS.toMillis(1))));
+    assertEquals(1, reloaded.size());
+    assertEquals(100, reloaded.metaTotals(meta).bytes);
+    assertEquals(1, metaData.reads);
+
+    reloaded.sync();
+    assertTrue(fs.starts.get(2).getTime() > now - TimeUnit.HOURS.toMillis(7));
+  }
+
+  @Test
+  public void metaTotalsReadTheMetaFileOnce() throws Exception {
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 100));
+    fs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f2.db", 200));
+    BackupInventory inventory = inventory();
+    inventory.sync();
+    AbstractBackupPath meta = path(hoursAgo(10), "META/meta.json", 10);
+    metaData.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 0));
+    metaData.files.add(path(hoursAgo(30), "SST/ks1/cf1/f2.db", 0));
+
+    assertEquals(300, inventory.metaTotals(meta).bytes);
+    assertEquals(2, inventory.metaTotals(meta).files);
+    assertEquals(1, metaData.reads);
+  }
+
+  @Test
+  public void uploadsShowUpBeforeTheNextListing() throws Exception {
+    BackupInventory inventory = inventory();
+    inventory.sync();
+    AbstractBackupPath uploaded = path(hoursAgo(1), "SST/ks1/cf1/f1.db", 100);
+    inventory.update(BACKUP_MESSAGE_TYPE.SNAPSHOT, Lists.newArrayList(uploaded.getRemotePath()));
+
+    Date start = new Date(now - TimeUnit.HOURS.toMillis(2));
+    List<AbstractBackupPath> listed = inventory.list(start, new Date(now), null, null, null);
+    assertEquals(1, listed.size());
+    assertEquals(0, listed.get(0).getSize());
+
+    fs.files.add(uploaded);
+    inventory.sync();
+    assertEquals(100, inventory.totals(start, new Date(now), null, null, null).bytes);
+  }
+
+  @Test
+  public void slowListingHoldsUpNoUpdatesOrReads() throws Exception {
+    final CountDownLatch listing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    ListingFileSystem slowFs = new ListingFileSystem() {
+      @Override
+      public Iterator<AbstractBackupPath> list(String path, Date start, Date till) {
+        listing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.list(path, start, till);
+      }
+    };
+    slowFs.files.add(path(hoursAgo(30), "SST/ks1/cf1/f1.db", 100));
+    final BackupInventory inventory = new BackupInventory(config, slowFs, metaData, pathFactory, inventoryFile);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<?> sync = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          inventory.sync();
+          return null;
+        }
+      });
+      assertTrue(listing.await(10, TimeUnit.SECONDS));
+
+      final AbstractBackupPath uploaded = path(hoursAgo(1), "SST/ks1/cf1/f2.db", 200);
+      Future<Integer> update = executor.submit(new Callable<Integer>() {
+        @Override
+        public Integer call() {
+          inventory.update(BACKUP_MESSAGE_TYPE.SNAPSHOT, Lists.newArrayList(uploaded.getRemotePath()));
+          return inventory.size();
+        }
+      });
+      assertEquals(Integer.valueOf(1), update.get(10, TimeUnit.SECONDS));
+
+      release.countDown();
+      sync.get(10, TimeUnit.SECONDS);
+      assertEquals(2, inventory.size());
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  private BackupInventory inventory() {
+    return new BackupInventory(config, fs, metaData, pathFactory, inventoryFile);
+  }
+
+  private String hoursAgo(int hours) {
+    return AbstractBackupPath.formatDate(new Date(now - TimeUnit.HOURS.toMillis(hours)));
+  }
+
+  private AbstractBackupPath path(String time, String suffix, long size) {
+    AbstractBackupPath path = pathFactory.get();
+    path.parseRemote(PREFIX + time + "/" + suffix);
+    path.setSize(size);
+    return path;
+  }
+}
@@ -0,0 +1,86 @@
+package c3.ops.priam.backup;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBackupUploadScheduler {
+  private static final long BUDGET = 10 * 1024;
+  private File dir;
+  private BackupUploadScheduler scheduler;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/upload-scheduler");
+    FileUtils.forceMkdir(dir);
+    scheduler = new BackupUploadScheduler(8, BUDGET);
+  }
+
+  @After
+  public void cleanup() {
+    scheduler.shutdown();
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void staysWithinByteBudget() throws Exception {
+    final AtomicLong inFlight = new AtomicLong();
+    final AtomicLong peak = new AtomicLong();
+    final AtomicInteger concurrent = new AtomicInteger();
+    final AtomicInteger maxConcurrent = new AtomicInteger();
+    List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int i = 0; i < 20; i++) {
+      final File file = newFile("f" + i, 3 * 1024);
+      futures.add(scheduler.submit(file, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          long now = inFlight.addAndGet(file.length());
+          peak.set(Math.max(peak.get(), now));
+          int running = concurrent.incrementAndGet();
+          maxConcurrent.set(Math.max(maxConcurrent.get(), running));
+          Thread.sleep(20);
+          concurrent.decrementAndGet();
+          inFlight.addAndGet(-file.length());
+          return null;
+        }
+      }));
+    }
+    for (Future<Void> future : futures)
+      future.get(10, TimeUnit.SECONDS);
+    assertTrue("budget exceeded: " + peak.get(), peak.get() <= BUDGET);
+    assertTrue("files did not upload concurrently", maxConcurrent.get() > 1);
+    assertEquals(0, scheduler.getBytesInFlight());
+  }
+
+  @Test
+  public void fileLargerThanBudgetStillUploads() throws Exception {
+    File big = newFile("big", 3 * (int) BUDGET);
+    Future<String> future = scheduler.submit(big, new Callable<String>() {
+      @Override
+      public String call() {
+        return "done";
+      }
+    });
+    assertEquals("done", future.get(10, TimeUnit.SECONDS));
+    assertEquals(0, scheduler.getBytesInFlight());
+  }
+
+  private File newFile(String name, int size) throws Exception {
+    File file = new File(dir, name);
+    FileUtils.writeByteArrayToFile(file, new byte[size]);
+    return file;
+  }
+}
@@ -0,0 +1,126 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.CompressionRegistry;
+import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.SnappyFramedCompression;
+import c3.ops.priam.utils.BufferPool;
+import com.google.common.io.CountingInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompressionCodecs {
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private final ICompression defaultCodec = new SnappyFramedCompression();
+  private final CompressionRegistry codecs = new CompressionRegistry(defaultCodec);
+
+  @Test
+  public void everyCodecRoundTrips() throws Exception {
+    byte[] source = testData(2 * 1024 * 1024 + 77);
+    for (String name : Arrays.asList(CompressionRegistry.SNAPPY, CompressionRegistry.SNAPPY_JAVA,
+        CompressionRegistry.LZ4, CompressionRegistry.GZIP)) {
+      ICompression codec = codecs.get(name);
+      BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+      CountingInputStream counting = new CountingInputStream(new ByteArrayInputStream(source));
+      Iterator<ByteBuffer> chunks = codec.compress(counting, CHUNK_SIZE, pool);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      long offset = 0;
+      int count = 0;
+      while (chunks.hasNext()) {
+        byte[] chunk = drain(chunks.next(), pool);
+        // each chunk restores exactly the input read while producing it
+        assertArrayEquals(name, Arrays.copyOfRange(source, (int) offset, (int) counting.getCount()), decompress(codec, chunk));
+        offset = counting.getCount();
+        compressed.write(chunk);
+        count++;
+      }
+      assertTrue(name, count > 1);
+      // a slow input that never reports bytes available still reads every chunk
+      assertArrayEquals(name, source, decompress(codec, new TrickleInputStream(compressed.toByteArray())));
+    }
+  }
+
+  @Test
+  public void byteArrayChunks() throws Exception {
+    byte[] source = testData(600 * 1024);
+    ICompression codec = codecs.get(CompressionRegistry.LZ4);
+    Iterator<byte[]> chunks = codec.compress(new ByteArrayInputStream(source), CHUNK_SIZE);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunks.hasNext())
+      compressed.write(chunks.next());
+    assertArrayEquals(source, decompress(codec, compressed.toByteArray()));
+  }
+
+  @Test
+  public void objectsWithoutCodecUseDefault() {
+    assertSame(defaultCodec, codecs.forObject(null));
+    assertSame(codecs.get(CompressionRegistry.GZIP), codecs.forObject(CompressionRegistry.GZIP));
+  }
+
+  @Test
+  public void unknownCodec() {
+    try {
+      codecs.get("zstd");
+      fail("expected an unknown codec to be rejected");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("zstd"));
+    }
+  }
+
+  private static byte[] decompress(ICompression codec, byte[] compressed) throws Exception {
+    return decompress(codec, new ByteArrayInputStream(compressed));
+  }
+
+  private static byte[] decompress(ICompression codec, InputStream compressed) throws Exception {
+    ByteArrayOutputStream restored = new ByteArrayOutputStream();
+    codec.decompressAndClose(compressed, restored);
+    return restored.toByteArray();
+  }
+
+  private static byte[] drain(ByteBuffer chunk, BufferPool pool) {
+    byte[] bytes = new byte[chunk.remaining()];
+    chunk.get(bytes);
+    pool.release(chunk);
+    return bytes;
+  }
+
+  private static byte[] testData(int size) {
+    byte[] data = new byte[size];
+    Random random = new Random(13);
+    for (int i = 0; i < size; i++)
+      data[i] = (i / 4096) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 31);
+    return data;
+  }
+
+  /**
+   * Returns at most 1000 bytes per read and never reports anything available,
+   * like a network stream between packets.
+   */
+  private static class TrickleInputStream extends ByteArrayInputStream {
+    TrickleInputStream(byte[] buf) {
+      super(buf);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) {
+      return super.read(b, off, Math.min(len, 1000));
+    }
+
+    @Override
+    public synchronized int available() {
+      return 0;
+    }
+  }
+}
@@ -1,16 +1,22 @@
 package c3.ops.priam.backup;
 
 import c3.ops.priam.scheduler.BlockingSubmitThreadPoolExecutor;
+import c3.ops.priam.scheduler.TaskGroup;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class TestCustomizedTPE {
   private static final Logger logger = LoggerFactory.getLogger(TestCustomizedTPE.class);
@@ -56,4 +62,109 @@ public class TestCustomizedTPE {
     assertTrue("Failure to timeout...", success);
   }
 
+  @Test
+  public void testRunnablesHoldSlots() throws Exception {
+    final BlockingSubmitThreadPoolExecutor executor = new BlockingSubmitThreadPoolExecutor(2, new LinkedBlockingDeque<Runnable>(2), 500);
+    final AtomicInteger count = new AtomicInteger();
+    final Runnable quick = new Runnable() {
+      @Override
+      public void run() {
+        count.incrementAndGet();
+      }
+    };
+    for (int i = 0; i < 4; i++) {
+      executor.execute(quick);
+      executor.submit(quick);
+    }
+    executor.sleepTillEmpty();
+    assertEquals(8, count.get());
+    // the runnables gave back only the slots they took, so 4 tasks fill the pool
+    final CountDownLatch blocker = new CountDownLatch(1);
+    Runnable blocked = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          blocker.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    for (int i = 0; i < 4; i++)
+      executor.execute(blocked);
+    final AtomicReference<RuntimeException> error = new AtomicReference<RuntimeException>();
+    Thread submitter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          executor.execute(quick);
+        } catch (RuntimeException e) {
+          error.set(e);
+        }
+      }
+    };
+    submitter.start();
+    submitter.join(5000);
+    blocker.countDown();
+    executor.shutdown();
+    assertNotNull("expected the full pool to time out", error.get());
+  }
+
+  @Test
+  public void testGroupWaitsForOwnTasksOnly() throws Exception {
+    final CountDownLatch blocker = new CountDownLatch(1);
+    TaskGroup other = new TaskGroup();
+    startTest.submit(other, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        blocker.await();
+        return null;
+      }
+    });
+    final AtomicInteger count = new AtomicInteger();
+    TaskGroup mine = new TaskGroup();
+    for (int i = 0; i < 50; i++) {
+      startTest.submit(mine, new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          count.incrementAndGet();
+          return null;
+        }
+      });
+    }
+    mine.await(TIME_OUT);
+    assertEquals(50, count.get());
+    assertEquals(1, other.pending());
+    blocker.countDown();
+    other.await(TIME_OUT);
+    startTest.shutdown();
+  }
+
+  @Test
+  public void testGroupFailsFast() throws Exception {
+    final CountDownLatch blocker = new CountDownLatch(1);
+    TaskGroup group = new TaskGroup();
+    startTest.submit(group, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        blocker.await();
+        return null;
+      }
+    });
+    startTest.submit(group, new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        throw new IllegalStateException("part failed");
+      }
+    });
+    try {
+      group.await(TIME_OUT);
+      fail("expected the failed task to surface");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    } finally {
+      blocker.countDown();
+    }
+    startTest.shutdown();
+  }
 }
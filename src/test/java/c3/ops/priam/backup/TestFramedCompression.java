@@ -0,0 +1,130 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.SnappyFramedCompression;
+import c3.ops.priam.utils.BufferPool;
+import com.google.common.io.CountingInputStream;
+import org.junit.Test;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestFramedCompression {
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private final SnappyFramedCompression compress = new SnappyFramedCompression();
+
+  @Test
+  public void roundTripHeapBuffers() throws Exception {
+    roundTrip(false);
+  }
+
+  @Test
+  public void roundTripDirectBuffers() throws Exception {
+    roundTrip(true);
+  }
+
+  @Test
+  public void chunksDecompressOnTheirOwn() throws Exception {
+    byte[] source = testData(2 * 1024 * 1024 + 123);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    CountingInputStream counting = new CountingInputStream(new ByteArrayInputStream(source));
+
+    Iterator<ByteBuffer> chunks = compress.compress(counting, CHUNK_SIZE, pool);
+    long offset = 0;
+    while (chunks.hasNext()) {
+      byte[] bytes = drain(chunks.next(), pool);
+      // each chunk restores exactly the input read while producing it
+      assertArrayEquals(Arrays.copyOfRange(source, (int) offset, (int) counting.getCount()), decompress(bytes));
+      offset = counting.getCount();
+    }
+    assertEquals(source.length, offset);
+  }
+
+  @Test
+  public void readsSnappyJavaStreams() throws Exception {
+    byte[] source = testData(300 * 1024);
+    ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+    SnappyOutputStream os = new SnappyOutputStream(legacy);
+    os.write(source);
+    os.close();
+    assertArrayEquals(source, decompress(legacy.toByteArray()));
+  }
+
+  @Test
+  public void corruptFrameFails() throws Exception {
+    byte[] compressed = compress(testData(100 * 1024), new BufferPool(1, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false));
+    // flip a byte in the data of the first frame, past the stream identifier and frame header
+    compressed[40] ^= 0x55;
+    try {
+      decompress(compressed);
+      fail("expected the checksum to catch the corruption");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void emptyInput() throws Exception {
+    byte[] compressed = compress(new byte[0], new BufferPool(1, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false));
+    assertEquals(0, decompress(compressed).length);
+  }
+
+  private void roundTrip(boolean direct) throws Exception {
+    byte[] source = testData(3 * 1024 * 1024);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, direct);
+    Iterator<ByteBuffer> chunks = compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    int count = 0;
+    while (chunks.hasNext()) {
+      ByteBuffer chunk = chunks.next();
+      if (chunks.hasNext())
+        assertTrue(chunk.remaining() >= CHUNK_SIZE);
+      compressed.write(drain(chunk, pool));
+      count++;
+    }
+    assertTrue(count > 1);
+    assertEquals(1, pool.allocated());
+    assertArrayEquals(source, decompress(compressed.toByteArray()));
+  }
+
+  private byte[] compress(byte[] source, BufferPool pool) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    Iterator<ByteBuffer> chunks = compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool);
+    while (chunks.hasNext())
+      compressed.write(drain(chunks.next(), pool));
+    return compressed.toByteArray();
+  }
+
+  private byte[] decompress(byte[] compressed) throws IOException {
+    ByteArrayOutputStream restored = new ByteArrayOutputStream();
+    compress.decompressAndClose(new ByteArrayInputStream(compressed), restored);
+    return restored.toByteArray();
+  }
+
+  private static byte[] drain(ByteBuffer chunk, BufferPool pool) {
+    byte[] bytes = new byte[chunk.remaining()];
+    chunk.get(bytes);
+    pool.release(chunk);
+    return bytes;
+  }
+
+  private static byte[] testData(int size) {
+    // Half random, half repetitive so both compressed and stored frames are written
+    byte[] data = new byte[size];
+    Random random = new Random(11);
+    for (int i = 0; i < size; i++)
+      data[i] = (i / 65536) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 31);
+    return data;
+  }
+}
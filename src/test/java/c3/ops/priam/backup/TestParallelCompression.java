@@ -0,0 +1,124 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.CompressionRegistry;
+import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.ParallelChunkedStream;
+import c3.ops.priam.compress.SnappyFramedCompression;
+import c3.ops.priam.utils.BufferPool;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelCompression {
+  private static final int CHUNK_SIZE = 1024 * 1024;
+  private static final int THREADS = 4;
+  private final ExecutorService workers = Executors.newFixedThreadPool(THREADS);
+  private final CompressionRegistry codecs = new CompressionRegistry(new SnappyFramedCompression());
+  private final BufferPool pool = new BufferPool(2, CHUNK_SIZE + ParallelChunkedStream.MAX_OVERHEAD, false);
+
+  @After
+  public void cleanup() {
+    workers.shutdownNow();
+  }
+
+  @Test
+  public void partsDecompressOnTheirOwn() throws Exception {
+    byte[] source = testData(7 * 1024 * 1024 + 555);
+    // one set of block buffers, handed from stream to stream
+    ParallelChunkedStream.Buffers buffers = new ParallelChunkedStream.Buffers(THREADS);
+    for (String name : Arrays.asList(CompressionRegistry.SNAPPY, CompressionRegistry.LZ4)) {
+      ICompression codec = codecs.get(name);
+      ParallelChunkedStream chunks = new ParallelChunkedStream(codec, new ByteArrayInputStream(source), CHUNK_SIZE, pool, workers, buffers);
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      long offset = 0;
+      int count = 0;
+      while (chunks.hasNext()) {
+        ByteBuffer chunk = chunks.next();
+        if (chunks.hasNext())
+          assertTrue(name, chunk.remaining() >= CHUNK_SIZE);
+        byte[] bytes = drain(chunk);
+        // each part restores exactly the input it is accounted for
+        assertArrayEquals(name, Arrays.copyOfRange(source, (int) offset, (int) chunks.getBytesConsumed()), decompress(codec, bytes));
+        offset = chunks.getBytesConsumed();
+        compressed.write(bytes);
+        count++;
+      }
+      assertEquals(name, source.length, offset);
+      assertTrue(name, count > 1);
+      assertArrayEquals(name, source, decompress(codec, compressed.toByteArray()));
+      assertEquals(2, pool.available());
+      assertTrue(name, buffers.isIdle());
+    }
+  }
+
+  @Test
+  public void emptyInputMakesOnePart() throws Exception {
+    ICompression codec = codecs.get(CompressionRegistry.SNAPPY);
+    ParallelChunkedStream chunks = new ParallelChunkedStream(codec, new ByteArrayInputStream(new byte[0]), CHUNK_SIZE, pool, workers,
+        new ParallelChunkedStream.Buffers(THREADS));
+    assertTrue(chunks.hasNext());
+    assertEquals(0, decompress(codec, drain(chunks.next())).length);
+    assertFalse(chunks.hasNext());
+  }
+
+  @Test
+  public void readFailureFails() throws Exception {
+    InputStream broken = new InputStream() {
+      private int left = 3 * ParallelChunkedStream.BLOCK_SIZE;
+
+      @Override
+      public int read() throws IOException {
+        if (left-- == 0)
+          throw new IOException("disk gone");
+        return 7;
+      }
+    };
+    ParallelChunkedStream chunks = new ParallelChunkedStream(codecs.get(CompressionRegistry.SNAPPY), broken, CHUNK_SIZE, pool,
+        workers, new ParallelChunkedStream.Buffers(THREADS));
+    try {
+      while (chunks.hasNext())
+        drain(chunks.next());
+      fail("expected the read failure to surface");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+    assertEquals(2, pool.available());
+  }
+
+  private byte[] drain(ByteBuffer chunk) {
+    byte[] bytes = new byte[chunk.remaining()];
+    chunk.get(bytes);
+    pool.release(chunk);
+    return bytes;
+  }
+
+  private static byte[] decompress(ICompression codec, byte[] compressed) throws IOException {
+    ByteArrayOutputStream restored = new ByteArrayOutputStream();
+    codec.decompressAndClose(new ByteArrayInputStream(compressed), restored);
+    return restored.toByteArray();
+  }
+
+  private static byte[] testData(int size) {
+    // Alternating incompressible and repetitive runs
+    byte[] data = new byte[size];
+    Random random = new Random(17);
+    for (int i = 0; i < size; i++)
+      data[i] = (i / 100000) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 31);
+    return data;
+  }
+}
@@ -0,0 +1,275 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.ParallelChunkedStream;
+import c3.ops.priam.compress.ParallelFramedDecoder;
+import c3.ops.priam.compress.SnappyFramedCompression;
+import c3.ops.priam.utils.BufferPool;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.xerial.snappy.SnappyOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelDecompression {
+  private static final int CHUNK_SIZE = 256 * 1024;
+  private final SnappyFramedCompression compress = new SnappyFramedCompression();
+  private final ExecutorService workers = Executors.newFixedThreadPool(4);
+  private final ParallelFramedDecoder decoder = new ParallelFramedDecoder(workers, 4);
+  private final File restored = new File("target/restore_parallel/ks1-cf1-ka-1-Data.db");
+
+  @After
+  public void cleanup() {
+    workers.shutdownNow();
+    FileUtils.deleteQuietly(restored.getParentFile());
+  }
+
+  @Test
+  public void sequentialChunksToFile() throws Exception {
+    byte[] source = testData(5 * 1024 * 1024 + 321);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    byte[] compressed = drainAll(compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool), pool);
+
+    restored.getParentFile().mkdirs();
+    RestoreFileSink sink = new RestoreFileSink(restored, source.length);
+    assertEquals(source.length, decoder.decompress(new ByteArrayInputStream(compressed), sink));
+    sink.close();
+    assertArrayEquals(source, FileUtils.readFileToByteArray(restored));
+  }
+
+  @Test
+  public void parallelChunks() throws Exception {
+    byte[] source = testData(3 * 1024 * 1024 + 17);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ParallelChunkedStream.MAX_OVERHEAD, false);
+    byte[] compressed = drainAll(new ParallelChunkedStream(compress, new ByteArrayInputStream(source), CHUNK_SIZE, pool, workers,
+        new ParallelChunkedStream.Buffers(2)), pool);
+    assertArrayEquals(source, decode(compressed));
+  }
+
+  @Test
+  public void emptyInput() throws Exception {
+    BufferPool pool = new BufferPool(1, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    byte[] compressed = drainAll(compress.compress(new ByteArrayInputStream(new byte[0]), CHUNK_SIZE, pool), pool);
+    assertEquals(0, decode(compressed).length);
+  }
+
+  @Test
+  public void corruptFrameFails() throws Exception {
+    BufferPool pool = new BufferPool(1, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    byte[] compressed = drainAll(compress.compress(new ByteArrayInputStream(testData(100 * 1024)), CHUNK_SIZE, pool), pool);
+    compressed[40] ^= 0x55;
+    try {
+      decode(compressed);
+      fail("expected the checksum to catch the corruption");
+    } catch (IOException e) {
+      // expected
+    }
+    workers.shutdown();
+    workers.awaitTermination(10, TimeUnit.SECONDS);
+    assertEquals(decoder.getMaxBatches(), decoder.availableBatches());
+  }
+
+  @Test
+  public void concurrentStreamsShareBatches() throws Exception {
+    // one worker gives a pool of three batches for four streams of several batches each
+    final ParallelFramedDecoder shared = new ParallelFramedDecoder(workers, 1);
+    final byte[] source = testData(4 * ParallelFramedDecoder.BATCH_SIZE + 99);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    final byte[] compressed = drainAll(compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool), pool);
+
+    ExecutorService streams = Executors.newFixedThreadPool(4);
+    List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+    for (int i = 0; i < 4; i++)
+      results.add(streams.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return decode(shared, compressed);
+        }
+      }));
+    for (Future<byte[]> result : results)
+      assertArrayEquals(source, result.get(30, TimeUnit.SECONDS));
+    streams.shutdown();
+    assertEquals(shared.getMaxBatches(), shared.availableBatches());
+  }
+
+  @Test
+  public void detectsFormat() throws Exception {
+    BufferPool pool = new BufferPool(1, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    byte[] framed = drainAll(compress.compress(new ByteArrayInputStream(testData(1024)), CHUNK_SIZE, pool), pool);
+    BufferedInputStream in = new BufferedInputStream(new ByteArrayInputStream(framed));
+    assertTrue(ParallelFramedDecoder.isFramed(in));
+    // nothing was consumed
+    assertEquals(framed.length, in.available());
+
+    ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+    SnappyOutputStream os = new SnappyOutputStream(legacy);
+    os.write(testData(1024));
+    os.close();
+    assertFalse(ParallelFramedDecoder.isFramed(new BufferedInputStream(new ByteArrayInputStream(legacy.toByteArray()))));
+    assertFalse(ParallelFramedDecoder.isFramed(new BufferedInputStream(new ByteArrayInputStream(new byte[3]))));
+  }
+
+  @Test
+  public void abandonedTaskThatRunsLateLeavesTheReusedBatchAlone() throws Exception {
+    HoldingExecutor executor = new HoldingExecutor();
+    ParallelFramedDecoder shared = new ParallelFramedDecoder(executor, 1);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    byte[] source = testData(ParallelFramedDecoder.BATCH_SIZE + 1000);
+
+    // The first batch is submitted, then the stream fails inside the next frame
+    byte[] compressed = drainAll(compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool), pool);
+    final AtomicInteger abandonedWrites = new AtomicInteger();
+    try {
+      shared.decompress(new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 10)), new ParallelFramedDecoder.Sink() {
+        @Override
+        public void write(ByteBuffer src, long offset) {
+          abandonedWrites.incrementAndGet();
+        }
+      });
+      fail("expected the truncated frame to fail");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // The next stream reuses the abandoned batch for its second batch, and
+    // the abandoned task runs just before that batch's own task
+    for (int i = 0; i < source.length; i++)
+      source[i] ^= 0x5a;
+    byte[] other = drainAll(compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool), pool);
+    executor.releaseAfter = 1;
+    assertArrayEquals(source, decode(shared, other));
+    assertEquals(0, abandonedWrites.get());
+    assertEquals(shared.getMaxBatches(), shared.availableBatches());
+  }
+
+  /**
+   * Runs tasks on the calling thread, except the first one, which it holds
+   * as if a worker had started it but not got to its work yet, so cancelling
+   * it does not stop it. The held task runs ahead of the task submitted once
+   * {@link #releaseAfter} other tasks have run.
+   */
+  private static class HoldingExecutor extends AbstractExecutorService {
+    private RunnableFuture<?> held;
+    private int ran;
+    int releaseAfter = -1;
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+      return new FutureTask<T>(callable) {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+          return !isDone();
+        }
+      };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      if (held == null && ran == 0 && releaseAfter < 0) {
+        held = (RunnableFuture<?>) command;
+        return;
+      }
+      if (held != null && ran == releaseAfter) {
+        held.run();
+        held = null;
+      }
+      command.run();
+      ran++;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return false;
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return false;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+      return true;
+    }
+  }
+
+  private byte[] decode(byte[] compressed) throws IOException {
+    return decode(decoder, compressed);
+  }
+
+  private static byte[] decode(ParallelFramedDecoder decoder, byte[] compressed) throws IOException {
+    final byte[][] out = {new byte[0]};
+    long length = decoder.decompress(new ByteArrayInputStream(compressed), new ParallelFramedDecoder.Sink() {
+      @Override
+      public void write(ByteBuffer src, long offset) {
+        synchronized (out) {
+          int end = (int) offset + src.remaining();
+          if (out[0].length < end) {
+            byte[] grown = new byte[end];
+            System.arraycopy(out[0], 0, grown, 0, out[0].length);
+            out[0] = grown;
+          }
+          src.get(out[0], (int) offset, src.remaining());
+        }
+      }
+    });
+    assertEquals(length, out[0].length);
+    return out[0];
+  }
+
+  private static byte[] drainAll(Iterator<ByteBuffer> chunks, BufferPool pool) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    while (chunks.hasNext()) {
+      ByteBuffer chunk = chunks.next();
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      pool.release(chunk);
+      compressed.write(bytes);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static byte[] testData(int size) {
+    byte[] data = new byte[size];
+    Random random = new Random(13);
+    for (int i = 0; i < size; i++)
+      data[i] = (i / 65536) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 29);
+    return data;
+  }
+}
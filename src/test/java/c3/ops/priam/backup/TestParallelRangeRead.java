@@ -0,0 +1,146 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.utils.BufferPool;
+import c3.ops.priam.utils.RetryableCallable;
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+public class TestParallelRangeRead {
+  private static final int RANGE_SIZE = 64 * 1024;
+  private static final int PARALLELISM = 4;
+  private ExecutorService executor;
+  private BufferPool pool;
+  private AtomicLong buffered;
+  private byte[] content;
+  private S3BackupPath path;
+
+  @Before
+  public void setup() {
+    executor = Executors.newFixedThreadPool(PARALLELISM);
+    pool = new BufferPool(PARALLELISM, RANGE_SIZE, false);
+    buffered = new AtomicLong();
+    content = new byte[1024 * 1024 + 123];
+    new Random(3).nextBytes(content);
+    path = new S3BackupPath(new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1"), null);
+    path.parseRemote("test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/201108110030/SNAP/ks1/cf1/f1.db");
+    path.setSize(content.length);
+  }
+
+  @After
+  public void cleanup() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void readsRangesInOrder() throws Exception {
+    ParallelRangeReadInputStream is = newStream(fakeS3(-1, new AtomicInteger(), null));
+    byte[] read = IOUtils.toByteArray(is);
+    is.close();
+    assertArrayEquals(content, read);
+    assertEquals(0, buffered.get());
+    assertEquals(PARALLELISM, pool.available());
+  }
+
+  @Test
+  public void failedRangeSurfacesAndReleasesBuffers() throws Exception {
+    AtomicInteger failures = new AtomicInteger();
+    ParallelRangeReadInputStream is = newStream(fakeS3(3 * RANGE_SIZE, failures, null));
+    try {
+      IOUtils.toByteArray(is);
+      fail("expected the failing range to surface");
+    } catch (IOException e) {
+      // expected
+    } finally {
+      is.close();
+    }
+    assertEquals(RetryableCallable.DEFAULT_NUMBER_OF_RETRIES, failures.get());
+    assertEquals(PARALLELISM, pool.available());
+  }
+
+  @Test
+  public void interruptWhileFetchingReleasesBuffers() throws Exception {
+    final CountDownLatch gate = new CountDownLatch(1);
+    final AtomicInteger started = new AtomicInteger();
+    final ParallelRangeReadInputStream is = newStream(fakeS3(-1, started, gate));
+    final AtomicReference<Exception> error = new AtomicReference<Exception>();
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          is.read();
+        } catch (IOException e) {
+          error.set(e);
+        } finally {
+          is.close();
+        }
+      }
+    };
+    reader.start();
+    // every fetch is running, so none of them can be cancelled
+    while (started.get() < PARALLELISM)
+      Thread.sleep(10);
+    reader.interrupt();
+    Thread.sleep(100);
+    gate.countDown();
+    reader.join(10000);
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+    assertNotNull("expected the interrupt to surface", error.get());
+    assertEquals(0, buffered.get());
+    assertEquals(PARALLELISM, pool.available());
+  }
+
+  private ParallelRangeReadInputStream newStream(AmazonS3 s3) {
+    return new ParallelRangeReadInputStream(s3, "bucket", path, executor, pool, RANGE_SIZE, PARALLELISM, buffered);
+  }
+
+  /**
+   * S3 client that serves ranges of {@link #content}, failing every request
+   * for the range starting at failOffset. Requests counted in calls are those
+   * that failed, or all of them when failOffset is -1. A non-null gate holds
+   * every request until it opens.
+   */
+  private AmazonS3 fakeS3(final long failOffset, final AtomicInteger calls, final CountDownLatch gate) {
+    return new FakeAmazonS3().on("getObject", GetObjectRequest.class, new FakeAmazonS3.Handler<GetObjectRequest>() {
+      @Override
+      public Object handle(GetObjectRequest request) throws Exception {
+        long[] range = request.getRange();
+        if (failOffset < 0 || range[0] == failOffset)
+          calls.incrementAndGet();
+        if (gate != null)
+          gate.await();
+        if (range[0] == failOffset)
+          throw new AmazonClientException("injected failure");
+        S3Object object = new S3Object();
+        byte[] slice = Arrays.copyOfRange(content, (int) range[0], (int) range[1] + 1);
+        object.setObjectContent(new ByteArrayInputStream(slice));
+        return object;
+      }
+    }).client();
+  }
+}
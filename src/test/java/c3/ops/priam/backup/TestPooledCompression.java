@@ -0,0 +1,93 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.compress.ICompression;
+import c3.ops.priam.compress.SnappyCompression;
+import c3.ops.priam.utils.BufferPool;
+import com.google.common.io.CountingInputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestPooledCompression {
+  private static final int CHUNK_SIZE = 256 * 1024;
+
+  @Test
+  public void roundTrip() throws Exception {
+    byte[] source = testData(3 * 1024 * 1024);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    SnappyCompression compress = new SnappyCompression();
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    Iterator<ByteBuffer> chunks = compress.compress(new ByteArrayInputStream(source), CHUNK_SIZE, pool);
+    int count = 0;
+    while (chunks.hasNext()) {
+      ByteBuffer chunk = chunks.next();
+      if (chunks.hasNext())
+        assertTrue(chunk.remaining() >= CHUNK_SIZE);
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      compressed.write(bytes);
+      pool.release(chunk);
+      count++;
+    }
+    assertTrue(count > 1);
+    // buffers are recycled rather than allocated per chunk
+    assertEquals(1, pool.allocated());
+    assertEquals(2, pool.available());
+
+    ByteArrayOutputStream restored = new ByteArrayOutputStream();
+    compress.decompressAndClose(new ByteArrayInputStream(compressed.toByteArray()), restored);
+    assertArrayEquals(source, restored.toByteArray());
+  }
+
+  @Test
+  public void chunksDecompressOnTheirOwn() throws Exception {
+    byte[] source = testData(2 * 1024 * 1024);
+    BufferPool pool = new BufferPool(2, CHUNK_SIZE + ICompression.MAX_CHUNK_OVERHEAD, false);
+    SnappyCompression compress = new SnappyCompression();
+    CountingInputStream counting = new CountingInputStream(new ByteArrayInputStream(source));
+
+    Iterator<ByteBuffer> chunks = compress.compress(counting, CHUNK_SIZE, pool);
+    long offset = 0;
+    while (chunks.hasNext()) {
+      ByteBuffer chunk = chunks.next();
+      byte[] bytes = new byte[chunk.remaining()];
+      chunk.get(bytes);
+      pool.release(chunk);
+      // each chunk restores exactly the input read while producing it
+      ByteArrayOutputStream restored = new ByteArrayOutputStream();
+      compress.decompressAndClose(new ByteArrayInputStream(bytes), restored);
+      assertArrayEquals(Arrays.copyOfRange(source, (int) offset, (int) counting.getCount()), restored.toByteArray());
+      offset = counting.getCount();
+    }
+    assertEquals(source.length, offset);
+  }
+
+  @Test
+  public void oversizedChunksAreNotPooled() throws Exception {
+    BufferPool pool = new BufferPool(1, 1024, false);
+    ByteBuffer buf = pool.acquire(4096);
+    assertEquals(0, pool.available());
+    pool.release(buf);
+    assertEquals(1, pool.available());
+    assertEquals(0, pool.allocated());
+  }
+
+  private static byte[] testData(int size) {
+    // Half random, half repetitive so snappy output is neither trivial nor incompressible
+    byte[] data = new byte[size];
+    Random random = new Random(7);
+    for (int i = 0; i < size; i++)
+      data[i] = (i / 4096) % 2 == 0 ? (byte) random.nextInt() : (byte) (i % 31);
+    return data;
+  }
+}
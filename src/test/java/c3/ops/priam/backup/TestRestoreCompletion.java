@@ -0,0 +1,205 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.ICassandraProcess;
+import c3.ops.priam.IConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.utils.ThreadSleeper;
+import com.google.common.collect.Lists;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRestoreCompletion {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private static final String BROKEN = "ks1-cf1-jb-3-Data.db";
+  private static final String COMMIT_LOGS = "target/restore_commitlogs";
+  private final Set<String> downloaded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final AtomicInteger brokenAttempts = new AtomicInteger();
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(new File(new FakeConfiguration().getDataFileLocation()));
+    FileUtils.deleteQuietly(new File(COMMIT_LOGS));
+  }
+
+  @Test
+  public void returnsOnceTheLastDownloadIsDone() throws Exception {
+    FileRestore restore = restore("fail", Integer.MAX_VALUE);
+    long start = System.currentTimeMillis();
+    restore.restore(files(20, false));
+    // The old loop slept a second before looking
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(20, downloaded.size());
+  }
+
+  @Test
+  public void restoreSubmitsCommitLogsFirstAndWaitsOnce() throws Exception {
+    FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1") {
+      @Override
+      public boolean isBackingUpCommitLogs() {
+        return true;
+      }
+
+      @Override
+      public int maxCommitLogsRestore() {
+        return 5;
+      }
+
+      @Override
+      public String getCommitLogLocation() {
+        return COMMIT_LOGS + "/live";
+      }
+
+      @Override
+      public String getBackupCommitLogLocation() {
+        return COMMIT_LOGS + "/backup";
+      }
+    };
+    ListingFileSystem fs = new ListingFileSystem();
+    FakeMetaData metaData = new FakeMetaData();
+    fs.files.add(path(config, "201108110030/META/meta.json", 1));
+    fs.files.add(path(config, "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db", 100));
+    fs.files.add(path(config, "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 300));
+    fs.files.add(path(config, "201108110100/SST/ks1/cf1/ks1-cf1-jb-3-Data.db", 200));
+    fs.files.add(path(config, "201108110100/CL/CommitLog-1.log", 10));
+    fs.files.add(path(config, "201108110200/CL/CommitLog-2.log", 10));
+    metaData.files.add(path(config, "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db", 0));
+    metaData.files.add(path(config, "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 0));
+
+    final List<String> submitted = Lists.newArrayList();
+    final AtomicInteger waits = new AtomicInteger();
+    Restore restore = new Restore(config, fs, new ThreadSleeper(), new ICassandraProcess() {
+      @Override
+      public void start(boolean join_ring) {
+      }
+
+      @Override
+      public void stop() {
+      }
+    }, new RestoreThrottle(config), new RestorePlanner(config, fs, metaData)) {
+      @Override
+      public void download(AbstractBackupPath path, File restoreLocation) {
+        // Each wait that comes before the end holds up the files after it
+        assertEquals(0, waits.get());
+        submitted.add(path.getFileName());
+      }
+
+      @Override
+      protected void waitToComplete() {
+        waits.incrementAndGet();
+      }
+    };
+    // The dirs a node has, cleaned up before a full restore
+    new File(config.getDataFileLocation()).mkdirs();
+    new File(config.getCommitLogLocation()).mkdirs();
+    new File(config.getBackupCommitLogLocation()).mkdirs();
+    S3BackupPath dates = new S3BackupPath(config, null);
+    restore.restore(dates.parseDate("201108110030"), dates.parseDate("201108110530"));
+    assertEquals(Lists.newArrayList("CommitLog-1.log", "CommitLog-2.log", "ks1-cf1-jb-2-Data.db", "ks1-cf1-jb-3-Data.db",
+        "ks1-cf1-jb-1-Data.db"), submitted);
+    assertEquals(1, waits.get());
+  }
+
+  @Test
+  public void failFastNamesTheFile() throws Exception {
+    FileRestore restore = restore("fail", Integer.MAX_VALUE);
+    try {
+      restore.restore(files(5, true));
+      fail("expected the restore to fail");
+    } catch (BackupRestoreException e) {
+      assertTrue(e.getMessage().contains(BROKEN));
+    }
+  }
+
+  @Test
+  public void skipLeavesTheFileOut() throws Exception {
+    FileRestore restore = restore("skip", Integer.MAX_VALUE);
+    restore.restore(files(5, true));
+    assertEquals(5, downloaded.size());
+    assertFalse(downloaded.contains(PREFIX + "201108110030/SST/ks1/cf1/" + BROKEN));
+  }
+
+  @Test
+  public void retryDownloadsItAgainLater() throws Exception {
+    // Fails every retry of the first attempt only
+    FileRestore restore = restore("retry", 15);
+    restore.restore(files(5, true));
+    assertEquals(6, downloaded.size());
+    assertTrue(downloaded.contains(PREFIX + "201108110030/SST/ks1/cf1/" + BROKEN));
+  }
+
+  private FileRestore restore(final String policy, final int brokenFailures) {
+    FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1") {
+      @Override
+      public String getRestoreFailurePolicy() {
+        return policy;
+      }
+    };
+    IBackupFileSystem fs = new ListingFileSystem() {
+      @Override
+      public void download(AbstractBackupPath path, OutputStream os, String filePath) throws BackupRestoreException {
+        super.download(path, os, filePath);
+        if (path.getFileName().equals(BROKEN) && brokenAttempts.incrementAndGet() <= brokenFailures)
+          throw new BackupRestoreException("broken " + path.getRemotePath());
+        downloaded.add(path.getRemotePath());
+      }
+    };
+    return new FileRestore(config, fs);
+  }
+
+  private static AbstractBackupPath path(IConfiguration config, String suffix, long size) {
+    AbstractBackupPath path = new S3BackupPath(config, null);
+    path.parseRemote(PREFIX + suffix);
+    path.setSize(size);
+    return path;
+  }
+
+  private List<AbstractBackupPath> files(int count, boolean withBroken) {
+    List<AbstractBackupPath> files = Lists.newArrayList();
+    FakeConfiguration config = new FakeConfiguration();
+    for (int i = 10; i < 10 + count; i++) {
+      AbstractBackupPath path = new S3BackupPath(config, null);
+      path.parseRemote(PREFIX + "201108110030/SST/ks1/cf1/ks1-cf1-jb-" + i + "-Data.db");
+      files.add(path);
+    }
+    if (withBroken) {
+      AbstractBackupPath path = new S3BackupPath(config, null);
+      path.parseRemote(PREFIX + "201108110030/SST/ks1/cf1/" + BROKEN);
+      files.add(2, path);
+    }
+    return files;
+  }
+
+  private static class FileRestore extends AbstractRestore {
+    FileRestore(IConfiguration config, IBackupFileSystem fs) {
+      super(config, fs, "FileRestore", new ThreadSleeper(), new RestoreThrottle(config));
+    }
+
+    void restore(List<AbstractBackupPath> files) throws Exception {
+      download(files);
+    }
+
+    @Override
+    public void execute() throws Exception {
+    }
+
+    @Override
+    public String getName() {
+      return "FileRestore";
+    }
+  }
+}
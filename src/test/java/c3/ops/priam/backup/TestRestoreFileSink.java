@@ -0,0 +1,73 @@
+package c3.ops.priam.backup;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestRestoreFileSink {
+  private File file;
+  private byte[] content;
+
+  @Before
+  public void setup() throws Exception {
+    file = new File("target/restore-sink/Keyspace1-Standard1-ia-1-Data.db");
+    FileUtils.forceMkdir(file.getParentFile());
+    content = new byte[3 * 1024 * 1024 + 517];
+    new Random(11).nextBytes(content);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(file.getParentFile());
+  }
+
+  @Test
+  public void sequentialWrites() throws Exception {
+    // a longer stale file must not leave a tail behind
+    FileUtils.writeByteArrayToFile(file, new byte[content.length * 2]);
+    RestoreFileSink sink = new RestoreFileSink(file, content.length / 2);
+    int off = 0;
+    while (off < content.length) {
+      int len = Math.min(7000, content.length - off);
+      sink.write(content, off, len);
+      off += len;
+    }
+    sink.close();
+    assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+  }
+
+  @Test
+  public void positionalWritesOutOfOrder() throws Exception {
+    final RestoreFileSink sink = new RestoreFileSink(file, 0);
+    final int part = 1024 * 1024;
+    Thread[] writers = new Thread[4];
+    for (int i = writers.length - 1; i >= 0; i--) {
+      final int offset = i * part;
+      writers[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            int len = Math.min(part, content.length - offset);
+            sink.write(ByteBuffer.wrap(content, offset, len), offset);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      writers[i].start();
+    }
+    for (Thread writer : writers)
+      writer.join();
+    sink.close();
+    assertEquals(content.length, file.length());
+    assertArrayEquals(content, FileUtils.readFileToByteArray(file));
+  }
+}
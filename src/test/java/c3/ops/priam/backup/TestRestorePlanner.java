@@ -0,0 +1,146 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestRestorePlanner {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private final FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1");
+  private final ListingFileSystem fs = new ListingFileSystem();
+  private final FakeMetaData metaData = new FakeMetaData();
+
+  @Test
+  public void latestSnapshotAndTheIncrementalsAfterIt() throws Exception {
+    fs.files.add(path("201108110030/META/meta.json", 1));
+    fs.files.add(path("201108110100/SST/ks1/cf1/ks1-cf1-jb-3-Data.db", 30));
+    fs.files.add(path("201108110130/META/meta.json", 1));
+    fs.files.add(path("201108110130/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db", 40));
+    fs.files.add(path("201108110200/SST/ks1/cf1/ks1-cf1-jb-5-Data.db", 50));
+    fs.files.add(path("201108110200/META/meta_cf1_201108110200.json", 1));
+    fs.files.add(path("201108110600/SST/ks1/cf1/ks1-cf1-jb-6-Data.db", 60));
+    metaData.files.add(path("201108110130/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db", 0));
+
+    RestorePlanner.Plan plan = planner(config).plan(date("201108110030"), date("201108110530"));
+    assertEquals(PREFIX + "201108110130/META/meta.json", plan.getMeta().getRemotePath());
+    assertEquals(Lists.newArrayList(PREFIX + "201108110200/SST/ks1/cf1/ks1-cf1-jb-5-Data.db",
+        PREFIX + "201108110130/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db"), remotePaths(plan.getFiles()));
+    assertEquals(90, plan.getTotalBytes());
+  }
+
+  @Test
+  public void dropsDuplicates() throws Exception {
+    fs.files.add(path("201108110030/META/meta.json", 1));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 20));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db", 90));
+    // Uploaded again by an incremental backup
+    fs.files.add(path("201108110032/SST/ks1/cf1/ks1-cf1-jb-9-Data.db", 90));
+    fs.files.add(path("201108110100/SST/ks1/cf1/ks1-cf1-jb-12-Data.db", 120));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 0));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db", 0));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db", 0));
+
+    RestorePlanner.Plan plan = planner(config).plan(date("201108110030"), date("201108110530"));
+    assertEquals(Lists.newArrayList(PREFIX + "201108110100/SST/ks1/cf1/ks1-cf1-jb-12-Data.db",
+        PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db",
+        PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db"), remotePaths(plan.getFiles()));
+    assertEquals(2, plan.getDuplicates());
+    assertEquals(230, plan.getTotalBytes());
+  }
+
+  @Test
+  public void incrementalsAfterTheSnapshotAreRestoredWhateverTheirGeneration() throws Exception {
+    fs.files.add(path("201108110030/META/meta.json", 1));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 20));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db", 90));
+    // Numbered inside the snapshot's generations, by a node that started its numbering over
+    fs.files.add(path("201108110100/SST/ks1/cf1/ks1-cf1-jb-5-Data.db", 50));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db", 0));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db", 0));
+
+    RestorePlanner.Plan plan = planner(config).plan(date("201108110030"), date("201108110530"));
+    assertEquals(Lists.newArrayList(PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-9-Data.db",
+        PREFIX + "201108110100/SST/ks1/cf1/ks1-cf1-jb-5-Data.db",
+        PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-2-Data.db"), remotePaths(plan.getFiles()));
+    assertEquals(160, plan.getTotalBytes());
+  }
+
+  @Test
+  public void copiesOfOneFileAreRestoredOnceFromTheSnapshot() throws Exception {
+    fs.files.add(path("201108110030/META/meta.json", 1));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-3-Data.db", 30));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db", 40));
+    // Stored again with another codec, so the sizes differ
+    fs.files.add(path("201108110100/SST/ks1/cf1/ks1-cf1-jb-4-Data.db", 47));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-3-Data.db", 0));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db", 0));
+
+    RestorePlanner.Plan plan = planner(config).plan(date("201108110030"), date("201108110530"));
+    assertEquals(Lists.newArrayList(PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-4-Data.db",
+        PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-3-Data.db"), remotePaths(plan.getFiles()));
+    assertEquals(1, plan.getDuplicates());
+    assertEquals(70, plan.getTotalBytes());
+  }
+
+  @Test
+  public void leavesOutKeyspacesNotRestored() throws Exception {
+    FakeConfiguration ks1Only = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1") {
+      @Override
+      public List<String> getRestoreKeySpaces() {
+        return Lists.newArrayList("ks1");
+      }
+    };
+    fs.files.add(path("201108110030/META/meta.json", 1));
+    fs.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db", 10));
+    fs.files.add(path("201108110030/SNAP/ks2/cf1/ks2-cf1-jb-1-Data.db", 10));
+    fs.files.add(path("201108110100/SST/ks2/cf1/ks2-cf1-jb-2-Data.db", 10));
+    metaData.files.add(path("201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db", 0));
+    metaData.files.add(path("201108110030/SNAP/ks2/cf1/ks2-cf1-jb-1-Data.db", 0));
+
+    RestorePlanner.Plan plan = planner(ks1Only).plan(date("201108110030"), date("201108110530"));
+    assertEquals(Lists.newArrayList(PREFIX + "201108110030/SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db"), remotePaths(plan.getFiles()));
+  }
+
+  @Test
+  public void noSnapshot() throws Exception {
+    fs.files.add(path("201108110100/SST/ks1/cf1/ks1-cf1-jb-2-Data.db", 10));
+    assertNull(planner(config).plan(date("201108110030"), date("201108110530")));
+  }
+
+  @Test
+  public void generations() {
+    assertEquals(12, RestorePlanner.generation("ks1-cf1-jb-12-Data.db"));
+    assertEquals(3, RestorePlanner.generation("cf1-hc-3-Index.db"));
+    assertEquals(-1, RestorePlanner.generation("f1.db"));
+    assertEquals(-1, RestorePlanner.generation("ma-4-big-Data.db"));
+  }
+
+  private RestorePlanner planner(FakeConfiguration config) {
+    return new RestorePlanner(config, fs, metaData);
+  }
+
+  private Date date(String time) {
+    return new S3BackupPath(config, null).parseDate(time);
+  }
+
+  private AbstractBackupPath path(String suffix, long size) {
+    AbstractBackupPath path = new S3BackupPath(config, null);
+    path.parseRemote(PREFIX + suffix);
+    path.setSize(size);
+    return path;
+  }
+
+  private static List<String> remotePaths(List<AbstractBackupPath> paths) {
+    List<String> remotePaths = Lists.newArrayList();
+    for (AbstractBackupPath path : paths)
+      remotePaths.add(path.getRemotePath());
+    return remotePaths;
+  }
+}
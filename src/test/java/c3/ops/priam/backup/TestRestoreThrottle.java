@@ -0,0 +1,51 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.utils.ThrottledInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRestoreThrottle {
+  private static final int MB = 1024 * 1024;
+
+  @Test
+  public void concurrencyBacksOff() {
+    assertEquals(4, RestoreThrottle.concurrency(8, 8, 100, 64));
+    assertEquals(1, RestoreThrottle.concurrency(1, 8, 100, 64));
+    assertEquals(5, RestoreThrottle.concurrency(4, 8, 10, 64));
+    assertEquals(8, RestoreThrottle.concurrency(8, 8, 0, 64));
+  }
+
+  @Test
+  public void backOffDisabled() {
+    // the fake configuration has no pending task limit
+    assertEquals(3, new RestoreThrottle(new FakeConfiguration()).concurrency(3));
+  }
+
+  @Test
+  public void downloadRateChangesAtRuntime() throws Exception {
+    RestoreThrottle throttle = new RestoreThrottle(new FakeConfiguration());
+    assertEquals(0, throttle.getDownloadRate());
+    throttle.setDownloadRate(MB);
+    assertEquals(MB, throttle.getDownloadRate());
+
+    // up to a second's worth may go through in a burst, the rest is held to the rate
+    InputStream in = new ThrottledInputStream(new ByteArrayInputStream(new byte[3 * MB]), throttle.getDownloadLimiter());
+    long start = System.currentTimeMillis();
+    byte[] buf = new byte[MB / 2];
+    while (IOUtils.read(in, buf) > 0) {
+      // drain
+    }
+    assertTrue(System.currentTimeMillis() - start >= 900);
+
+    throttle.setDownloadRate(0);
+    assertEquals(0, throttle.getDownloadRate());
+    assertEquals(Double.MAX_VALUE, throttle.getDownloadLimiter().getRate(), 0);
+  }
+}
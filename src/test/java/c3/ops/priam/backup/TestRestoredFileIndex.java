@@ -0,0 +1,120 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestRestoredFileIndex {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private final FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1");
+  private File dir;
+  private File journal;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/restored-index");
+    FileUtils.forceMkdir(dir);
+    journal = new File(dir, "restored_files.idx");
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void remembersEveryFile() throws Exception {
+    final RestoredFileIndex index = new RestoredFileIndex(journal);
+    index.open("restore-1");
+    final int threads = 8;
+    final int files = 20000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final AtomicInteger missing = new AtomicInteger();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = thread; i < files; i += threads) {
+            AbstractBackupPath path = path(i);
+            index.add(path, RestoredFileIndex.hash(path));
+            if (!index.contains(RestoredFileIndex.hash(path)))
+              missing.incrementAndGet();
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(0, missing.get());
+    // Far more than the old tracker's 800, and nothing forgotten
+    assertEquals(files, index.size());
+    assertTrue(index.contains(RestoredFileIndex.hash(path(0))));
+    assertFalse(index.contains(RestoredFileIndex.hash(path(files))));
+  }
+
+  @Test
+  public void interruptedRestoreResumes() throws Exception {
+    RestoredFileIndex index = new RestoredFileIndex(journal);
+    assertFalse(index.open("restore-1"));
+    index.add(path(1), RestoredFileIndex.hash(path(1)));
+    index.add(path(2), RestoredFileIndex.hash(path(2)));
+    index.close(false);
+    // Half a record from a crash mid-write
+    RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+    raf.seek(raf.length());
+    raf.write(new byte[]{1, 2, 3});
+    raf.close();
+
+    RestoredFileIndex resumed = new RestoredFileIndex(journal);
+    assertTrue(resumed.open("restore-1"));
+    assertEquals(2, resumed.size());
+    assertTrue(resumed.contains(RestoredFileIndex.hash(path(2))));
+    resumed.add(path(3), RestoredFileIndex.hash(path(3)));
+    resumed.close(false);
+
+    RestoredFileIndex again = new RestoredFileIndex(journal);
+    assertTrue(again.open("restore-1"));
+    assertEquals(3, again.size());
+  }
+
+  @Test
+  public void otherRestoreStartsOver() throws Exception {
+    RestoredFileIndex index = new RestoredFileIndex(journal);
+    index.open("restore-1");
+    index.add(path(1), RestoredFileIndex.hash(path(1)));
+    index.close(false);
+
+    RestoredFileIndex other = new RestoredFileIndex(journal);
+    assertFalse(other.open("restore-2"));
+    assertEquals(0, other.size());
+  }
+
+  @Test
+  public void completedRestoreLeavesNoJournal() throws Exception {
+    RestoredFileIndex index = new RestoredFileIndex(journal);
+    index.open("restore-1");
+    index.add(path(1), RestoredFileIndex.hash(path(1)));
+    index.close(true);
+    assertFalse(journal.exists());
+    assertFalse(new RestoredFileIndex(journal).open("restore-1"));
+  }
+
+  private AbstractBackupPath path(int i) {
+    AbstractBackupPath path = new S3BackupPath(config, null);
+    path.parseRemote(PREFIX + "201108110030/SST/ks1/cf1/ks1-cf1-jb-" + i + "-Data.db");
+    return path;
+  }
+}
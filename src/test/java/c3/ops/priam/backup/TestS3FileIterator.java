@@ -0,0 +1,158 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.aws.S3FileIterator;
+import c3.ops.priam.aws.S3ShardedFileIterator;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestS3FileIterator {
+  private static final String TOKEN_PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private static final int PAGE_SIZE = 7;
+  private static final int FILES_PER_HOUR = 20;
+  private final FakeConfiguration config = new FakeConfiguration();
+  private final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+  private final List<String> keys = Lists.newArrayList();
+  private final AtomicInteger listCalls = new AtomicInteger();
+
+  public TestS3FileIterator() {
+    for (int hour = 0; hour < 13; hour++)
+      for (int i = 0; i < FILES_PER_HOUR; i++)
+        keys.add(String.format("%s20110811%02d00/SST/ks1/cf1/f%02d.db", TOKEN_PREFIX, hour, i));
+  }
+
+  @After
+  public void cleanup() {
+    prefetcher.shutdownNow();
+  }
+
+  @Test
+  public void listsRangeWithPrefetch() throws Exception {
+    verifyRange(prefetcher);
+  }
+
+  @Test
+  public void listsRangeWithoutPrefetch() throws Exception {
+    verifyRange(null);
+  }
+
+  @Test
+  public void shardsByDatePrefix() throws Exception {
+    S3BackupPath probe = newPath();
+    Date start = probe.parseDate("201108110330");
+    Date till = probe.parseDate("201108110900");
+    S3ShardedFileIterator it = new S3ShardedFileIterator(pathProvider(), fakeS3(), "TESTBUCKET", start, till, prefetcher, 3);
+    List<String> listed = Lists.newArrayList();
+    while (it.hasNext())
+      listed.add(it.next().getRemotePath());
+    assertEquals(keys.subList(4 * FILES_PER_HOUR, 9 * FILES_PER_HOUR), listed);
+  }
+
+  @Test
+  public void datePrefixes() {
+    S3BackupPath probe = newPath();
+    List<String> prefixes = S3ShardedFileIterator.datePrefixes(probe.parseDate("201512311200"), probe.parseDate("201601011200"));
+    assertEquals(24, prefixes.size());
+    assertEquals("2015123112", prefixes.get(0));
+    assertEquals("2016010111", prefixes.get(23));
+
+    prefixes = S3ShardedFileIterator.datePrefixes(probe.parseDate("201512010000"), probe.parseDate("201602031530"));
+    List<String> expected = Lists.newArrayList("201512", "201601", "20160201", "20160202");
+    for (int hour = 0; hour <= 15; hour++)
+      expected.add(String.format("20160203%02d", hour));
+    assertEquals(expected, prefixes);
+
+    assertTrue(S3ShardedFileIterator.datePrefixes(probe.parseDate("201512010000"), probe.parseDate("201512010000")).isEmpty());
+  }
+
+  private void verifyRange(ExecutorService executor) throws Exception {
+    S3BackupPath probe = newPath();
+    Date start = probe.parseDate("201108110300");
+    Date till = probe.parseDate("201108110600");
+    S3FileIterator it = new S3FileIterator(pathProvider(), fakeS3(), "TESTBUCKET", start, till, executor);
+    List<String> listed = Lists.newArrayList();
+    while (it.hasNext())
+      listed.add(it.next().getRemotePath());
+    // 03:00 up to, not including, 06:00
+    assertEquals(3 * FILES_PER_HOUR, listed.size());
+    assertEquals(keys.subList(3 * FILES_PER_HOUR, 6 * FILES_PER_HOUR), listed);
+    // listing starts at the start date and stops at the first key dated after
+    // the end date, with at most one more page fetched ahead
+    int pagesToTill = (4 * FILES_PER_HOUR + PAGE_SIZE) / PAGE_SIZE + 1;
+    assertTrue("listed " + listCalls.get() + " pages", listCalls.get() <= pagesToTill);
+  }
+
+  private Provider<AbstractBackupPath> pathProvider() {
+    return new Provider<AbstractBackupPath>() {
+      @Override
+      public AbstractBackupPath get() {
+        return newPath();
+      }
+    };
+  }
+
+  private S3BackupPath newPath() {
+    return new S3BackupPath(config, null) {
+      @Override
+      public String remotePrefix(Date start, Date end, String location) {
+        return TOKEN_PREFIX + match(start, end);
+      }
+    };
+  }
+
+  /**
+   * S3 client listing {@link #keys} in pages, honoring prefix and marker.
+   */
+  private AmazonS3 fakeS3() {
+    return new FakeAmazonS3().on("listObjects", ListObjectsRequest.class, new FakeAmazonS3.Handler<ListObjectsRequest>() {
+      @Override
+      public Object handle(ListObjectsRequest request) {
+        listCalls.incrementAndGet();
+        return page(request.getBucketName(), request.getPrefix(), request.getMarker());
+      }
+    }).on("listNextBatchOfObjects", ObjectListing.class, new FakeAmazonS3.Handler<ObjectListing>() {
+      @Override
+      public Object handle(ObjectListing previous) {
+        listCalls.incrementAndGet();
+        return page(previous.getBucketName(), previous.getPrefix(), previous.getNextMarker());
+      }
+    }).client();
+  }
+
+  private ObjectListing page(String bucket, String prefix, String marker) {
+    ObjectListing listing = new ObjectListing();
+    listing.setBucketName(bucket);
+    listing.setPrefix(prefix);
+    for (String key : keys) {
+      if (!key.startsWith(prefix) || (marker != null && key.compareTo(marker) <= 0))
+        continue;
+      if (listing.getObjectSummaries().size() == PAGE_SIZE) {
+        listing.setTruncated(true);
+        break;
+      }
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucket);
+      summary.setKey(key);
+      summary.setSize(100);
+      listing.getObjectSummaries().add(summary);
+      listing.setNextMarker(key);
+    }
+    return listing;
+  }
+}
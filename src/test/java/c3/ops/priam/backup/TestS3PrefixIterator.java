@@ -0,0 +1,127 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import c3.ops.priam.aws.S3PrefixIterator;
+import c3.ops.priam.aws.TokenDates;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestS3PrefixIterator {
+  private static final int TOKENS = 12;
+  private final FakeConfiguration config = new FakeConfiguration();
+  private final String clusterPrefix = config.getBackupLocation() + "/" + config.getDC() + "/" + config.getAppName() + "/";
+  private final ExecutorService prober = Executors.newFixedThreadPool(4);
+  private final AtomicInteger probes = new AtomicInteger();
+  private volatile int deletedToken = -1;
+
+  @After
+  public void cleanup() {
+    prober.shutdownNow();
+  }
+
+  @Test
+  public void probesConcurrentlyAndCaches() throws Exception {
+    Date date = new S3BackupPath(config, null).parseDate("201108110000");
+    TokenDates tokenDates = new TokenDates();
+    // tokens with an even number have backups on the date
+    assertEquals(Lists.newArrayList("0", "2", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date, prober, tokenDates)));
+    assertEquals(TOKENS, probes.get());
+    assertEquals(Boolean.TRUE, tokenDates.exists(config.getBackupPrefix() + "/" + clusterPrefix + "2/", "20110811"));
+    assertEquals(Boolean.FALSE, tokenDates.exists(config.getBackupPrefix() + "/" + clusterPrefix + "3/", "20110811"));
+
+    // a second lookup is answered from what is known
+    assertEquals(Lists.newArrayList("0", "2", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date, prober, tokenDates)));
+    assertEquals(TOKENS, probes.get());
+  }
+
+  @Test
+  public void knownBackupsAreProbedAgainLater() throws Exception {
+    Date date = new S3BackupPath(config, null).parseDate("201108110000");
+    final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    TokenDates tokenDates = new TokenDates() {
+      @Override
+      protected long currentTimeMillis() {
+        return now.get();
+      }
+    };
+    assertEquals(Lists.newArrayList("0", "2", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date, prober, tokenDates)));
+
+    // the backups of token 2 are cleaned up, which goes unseen until the known dates expire
+    deletedToken = 2;
+    now.addAndGet(TimeUnit.MINUTES.toMillis(5));
+    assertEquals(Lists.newArrayList("0", "2", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date, prober, tokenDates)));
+    assertEquals(TOKENS, probes.get());
+
+    now.addAndGet(TimeUnit.MINUTES.toMillis(56));
+    assertEquals(Lists.newArrayList("0", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date, prober, tokenDates)));
+    assertEquals(2 * TOKENS, probes.get());
+    assertEquals(Boolean.FALSE, tokenDates.exists(config.getBackupPrefix() + "/" + clusterPrefix + "2/", "20110811"));
+  }
+
+  @Test
+  public void probesInOrderWithoutExecutor() throws Exception {
+    Date date = new S3BackupPath(config, null).parseDate("201108110000");
+    assertEquals(Lists.newArrayList("0", "2", "4", "6", "8", "10"), tokens(new S3PrefixIterator(config, pathProvider(), fakeS3(), date)));
+  }
+
+  private static List<String> tokens(Iterator<AbstractBackupPath> it) {
+    List<String> tokens = Lists.newArrayList();
+    while (it.hasNext())
+      tokens.add(it.next().getToken());
+    return tokens;
+  }
+
+  private Provider<AbstractBackupPath> pathProvider() {
+    return new Provider<AbstractBackupPath>() {
+      @Override
+      public AbstractBackupPath get() {
+        return new S3BackupPath(config, null);
+      }
+    };
+  }
+
+  /**
+   * S3 client with {@link #TOKENS} tokens under the cluster, the even ones
+   * having a backup on 20110811.
+   */
+  private AmazonS3 fakeS3() {
+    return new FakeAmazonS3().on("listObjects", ListObjectsRequest.class, new FakeAmazonS3.Handler<ListObjectsRequest>() {
+      @Override
+      public Object handle(ListObjectsRequest request) {
+        ObjectListing listing = new ObjectListing();
+        if (request.getDelimiter() != null) {
+          for (int token = 0; token < TOKENS; token++)
+            listing.getCommonPrefixes().add(clusterPrefix + token + "/");
+          return listing;
+        }
+        probes.incrementAndGet();
+        assertEquals(Integer.valueOf(1), request.getMaxKeys());
+        String token = request.getPrefix().substring(clusterPrefix.length()).split("/")[0];
+        if (Integer.parseInt(token) % 2 == 0 && Integer.parseInt(token) != deletedToken && request.getPrefix().endsWith("/20110811")) {
+          S3ObjectSummary summary = new S3ObjectSummary();
+          summary.setKey(request.getPrefix() + "0000/SNAP/ks1/cf1/f1.db");
+          listing.getObjectSummaries().add(summary);
+        }
+        return listing;
+      }
+    }).client();
+  }
+}
@@ -0,0 +1,62 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.aws.S3SingleUploader;
+import c3.ops.priam.utils.SystemUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestS3SingleUploader {
+  private final byte[] data = "d41d8cd98f00b204e9800998ecf8427e".getBytes();
+
+  @Test
+  public void putsWithContentMd5() throws Exception {
+    AtomicReference<PutObjectRequest> request = new AtomicReference<PutObjectRequest>();
+    AtomicReference<byte[]> body = new AtomicReference<byte[]>();
+    AtomicInteger calls = new AtomicInteger();
+    new S3SingleUploader(fakeS3(request, body, calls, SystemUtils.toHex(SystemUtils.md5(data))), "bucket", "key", data).call();
+    assertEquals(1, calls.get());
+    assertEquals("bucket", request.get().getBucketName());
+    assertEquals("key", request.get().getKey());
+    assertEquals(data.length, request.get().getMetadata().getContentLength());
+    assertEquals(SystemUtils.toBase64(SystemUtils.md5(data)), request.get().getMetadata().getContentMD5());
+    assertArrayEquals(data, body.get());
+  }
+
+  @Test
+  public void mismatchedEtagFails() throws Exception {
+    AtomicInteger calls = new AtomicInteger();
+    try {
+      new S3SingleUploader(fakeS3(new AtomicReference<PutObjectRequest>(), new AtomicReference<byte[]>(), calls, "bogus"),
+          "bucket", "key", data).call();
+      fail("expected the ETag mismatch to fail the upload");
+    } catch (BackupRestoreException e) {
+      // expected, after retries
+    }
+    assertEquals(5, calls.get());
+  }
+
+  private AmazonS3 fakeS3(final AtomicReference<PutObjectRequest> request, final AtomicReference<byte[]> body,
+                          final AtomicInteger calls, final String etag) {
+    return new FakeAmazonS3().on("putObject", PutObjectRequest.class, new FakeAmazonS3.Handler<PutObjectRequest>() {
+      @Override
+      public Object handle(PutObjectRequest req) throws Exception {
+        calls.incrementAndGet();
+        request.set(req);
+        body.set(IOUtils.toByteArray(req.getInputStream()));
+        PutObjectResult result = new PutObjectResult();
+        result.setETag(etag);
+        return result;
+      }
+    }).client();
+  }
+}
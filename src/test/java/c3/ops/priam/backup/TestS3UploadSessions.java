@@ -0,0 +1,109 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.aws.S3UploadSessions;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestS3UploadSessions {
+  private static final String KEY = "backup/region/cluster/token/201108110030/SNAP/ks/cf/ks-cf-jb-1-Data.db";
+  private File dir;
+  private S3UploadSessions sessions;
+  private final Map<Integer, String> remoteParts = new TreeMap<Integer, String>();
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/upload-sessions");
+    FileUtils.deleteQuietly(dir);
+    sessions = new S3UploadSessions(dir);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void resumesAfterLastContiguousPart() throws Exception {
+    S3UploadSessions.Session session = sessions.start("bucket", KEY, "upload-1", 1000, "snappy");
+    session.partDone(2, "etag2", 300, 300);
+    session.partDone(1, "etag1", 0, 300);
+    session.partDone(4, "etag4", 900, 100);
+    remoteParts.put(1, "\"etag1\"");
+    remoteParts.put(2, "\"etag2\"");
+    remoteParts.put(4, "\"etag4\"");
+
+    // part 3 is missing, so the upload continues from the end of part 2
+    S3UploadSessions.Session resumed = sessions.resume(fakeS3(false), "bucket", KEY, 1000, "snappy");
+    assertNotNull(resumed);
+    assertEquals("upload-1", resumed.getUploadId());
+    assertEquals(600, resumed.getSourceOffset());
+    assertEquals(2, resumed.getPartETags().size());
+    assertEquals(2, resumed.getPartETags().get(1).getPartNumber());
+  }
+
+  @Test
+  public void changedSourceStartsOver() throws Exception {
+    S3UploadSessions.Session session = sessions.start("bucket", KEY, "upload-1", 1000, "snappy");
+    session.partDone(1, "etag1", 0, 300);
+    remoteParts.put(1, "etag1");
+    assertNull(sessions.resume(fakeS3(false), "bucket", KEY, 2000, "snappy"));
+    assertNull(sessions.resume(fakeS3(false), "bucket", KEY, 1000, "snappy"));
+  }
+
+  @Test
+  public void changedCodecStartsOver() throws Exception {
+    sessions.start("bucket", KEY, "upload-1", 1000, "snappy").partDone(1, "etag1", 0, 300);
+    remoteParts.put(1, "etag1");
+    assertNull(sessions.resume(fakeS3(false), "bucket", KEY, 1000, "lz4"));
+  }
+
+  @Test
+  public void expiredUploadStartsOver() throws Exception {
+    sessions.start("bucket", KEY, "upload-1", 1000, "snappy").partDone(1, "etag1", 0, 300);
+    assertNull(sessions.resume(fakeS3(true), "bucket", KEY, 1000, "snappy"));
+  }
+
+  private AmazonS3 fakeS3(final boolean noSuchUpload) {
+    return new FakeAmazonS3().on("abortMultipartUpload", AbortMultipartUploadRequest.class, new FakeAmazonS3.Handler<AbortMultipartUploadRequest>() {
+      @Override
+      public Object handle(AbortMultipartUploadRequest request) {
+        return null;
+      }
+    }).on("listParts", ListPartsRequest.class, new FakeAmazonS3.Handler<ListPartsRequest>() {
+      @Override
+      public Object handle(ListPartsRequest request) {
+        if (noSuchUpload)
+          throw new AmazonServiceException("NoSuchUpload");
+        PartListing listing = new PartListing();
+        List<PartSummary> parts = new ArrayList<PartSummary>();
+        for (Map.Entry<Integer, String> entry : remoteParts.entrySet()) {
+          PartSummary summary = new PartSummary();
+          summary.setPartNumber(entry.getKey());
+          summary.setETag(entry.getValue());
+          parts.add(summary);
+        }
+        listing.setParts(parts);
+        listing.setTruncated(false);
+        return listing;
+      }
+    }).client();
+  }
+}
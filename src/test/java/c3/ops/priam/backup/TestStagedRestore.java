@@ -0,0 +1,183 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestStagedRestore {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/201108110030/";
+  private final FakeConfiguration config = new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1");
+  private final File dataDir = new File(config.getDataFileLocation());
+  private final File journalFile = new File("target/staged_restore.idx");
+  private final RestoredFileIndex journal = new RestoredFileIndex(journalFile);
+  private final List<String> loaded = Lists.newArrayList();
+  private final StagedRestore.Loader loader = new StagedRestore.Loader() {
+    @Override
+    public void load(String keyspace, String columnFamily) {
+      loaded.add(keyspace + "." + columnFamily);
+    }
+  };
+
+  @Before
+  public void setup() {
+    FileUtils.deleteQuietly(dataDir);
+    FileUtils.deleteQuietly(journalFile);
+    journal.open("restore1");
+  }
+
+  @After
+  public void cleanup() {
+    journal.close(false);
+    FileUtils.deleteQuietly(dataDir);
+    FileUtils.deleteQuietly(journalFile);
+  }
+
+  @Test
+  public void generationMovesOnceComplete() throws Exception {
+    AbstractBackupPath data = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db");
+    AbstractBackupPath index = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Index.db");
+    AbstractBackupPath other = path("SST/ks1/cf1/ks1-cf1-jb-2-Data.db");
+    StagedRestore staged = new StagedRestore(dataDir, loader, Lists.newArrayList(data, index, other), journal);
+
+    download(staged, data);
+    // Cassandra sees nothing of a generation that is not complete
+    assertEquals(0, data.newRestoreFile().getParentFile().list().length);
+    download(staged, index);
+    assertTrue(live(data, 100000).exists());
+    assertTrue(live(index, 100000).exists());
+    assertFalse(staged.stagingFile(data).exists());
+    assertTrue(loaded.isEmpty());
+
+    download(staged, other);
+    assertTrue(live(other, 100001).exists());
+    assertEquals(Lists.newArrayList("ks1.cf1"), loaded);
+    assertTrue(staged.getIncomplete().isEmpty());
+    staged.close();
+    assertFalse(new File(dataDir, StagedRestore.STAGING_DIR).exists());
+  }
+
+  @Test
+  public void columnFamiliesLoadOnTheirOwn() throws Exception {
+    AbstractBackupPath cf1 = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db");
+    AbstractBackupPath cf2 = path("SNAP/ks1/cf2/ks1-cf2-jb-1-Data.db");
+    AbstractBackupPath cf2Later = path("SST/ks1/cf2/ks1-cf2-jb-4-Data.db");
+    StagedRestore staged = new StagedRestore(dataDir, loader, Lists.newArrayList(cf2, cf1, cf2Later), journal);
+
+    download(staged, cf2);
+    download(staged, cf1);
+    assertEquals(Lists.newArrayList("ks1.cf1"), loaded);
+    assertTrue(staged.getIncomplete().contains("ks1/cf2"));
+
+    // A file that never arrives keeps its column family out
+    staged.close();
+    assertEquals(Lists.newArrayList("ks1.cf1"), loaded);
+    assertFalse(cf2Later.newRestoreFile().exists());
+  }
+
+  @Test
+  public void loadFailureLeavesFilesInPlace() throws Exception {
+    AbstractBackupPath data = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db");
+    StagedRestore staged = new StagedRestore(dataDir, new StagedRestore.Loader() {
+      @Override
+      public void load(String keyspace, String columnFamily) throws Exception {
+        throw new Exception("no JMX");
+      }
+    }, Lists.newArrayList(data), journal);
+
+    download(staged, data);
+    assertTrue(live(data, 100000).exists());
+    assertEquals(Lists.newArrayList("ks1.cf1"), staged.getLoadFailures());
+  }
+
+  @Test
+  public void generationsAreRenumberedClearOfLiveOnes() throws Exception {
+    AbstractBackupPath data = path("SNAP/ks1/cf1/ks1-cf1-jb-3-Data.db");
+    AbstractBackupPath index = path("SNAP/ks1/cf1/ks1-cf1-jb-3-Index.db");
+    AbstractBackupPath later = path("SST/ks1/cf1/ks1-cf1-jb-4-Data.db");
+    // Cassandra has its own generation 3, and one where the first renumbered generation would go
+    FileUtils.writeStringToFile(data.newRestoreFile(), "live");
+    FileUtils.writeStringToFile(index.newRestoreFile(), "live");
+    FileUtils.writeStringToFile(live(data, 100004), "live");
+    StagedRestore staged = new StagedRestore(dataDir, loader, Lists.newArrayList(data, index, later), journal);
+
+    download(staged, data);
+    download(staged, index);
+    // and flushes the next number before the column family is loaded
+    FileUtils.writeStringToFile(live(data, 200005), "live");
+    download(staged, later);
+    assertEquals("live", FileUtils.readFileToString(data.newRestoreFile()));
+    assertEquals("live", FileUtils.readFileToString(index.newRestoreFile()));
+    assertEquals("live", FileUtils.readFileToString(live(data, 100004)));
+    assertEquals("live", FileUtils.readFileToString(live(data, 200005)));
+    assertEquals(data.getFileName(), FileUtils.readFileToString(live(data, 200004)));
+    assertEquals(index.getFileName(), FileUtils.readFileToString(live(index, 200004)));
+    assertEquals(later.getFileName(), FileUtils.readFileToString(live(later, 200006)));
+    assertEquals(Lists.newArrayList("ks1.cf1"), loaded);
+  }
+
+  @Test
+  public void resumedRestoreLeavesPlacedGenerationsAlone() throws Exception {
+    AbstractBackupPath data = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Data.db");
+    AbstractBackupPath index = path("SNAP/ks1/cf1/ks1-cf1-jb-1-Index.db");
+    AbstractBackupPath other = path("SST/ks1/cf1/ks1-cf1-jb-2-Data.db");
+    AbstractBackupPath cf2 = path("SNAP/ks1/cf2/ks1-cf2-jb-1-Data.db");
+    List<AbstractBackupPath> files = Lists.newArrayList(data, index, other, cf2);
+    StagedRestore staged = new StagedRestore(dataDir, loader, files, journal);
+    download(staged, data);
+    download(staged, index);
+    download(staged, cf2);
+    // Interrupted with generation 2 staged but not complete
+    FileUtils.writeStringToFile(staged.stagingFile(other), "partial");
+    journal.close(false);
+
+    RestoredFileIndex resumed = new RestoredFileIndex(journalFile);
+    assertTrue(resumed.open("restore1"));
+    staged = new StagedRestore(dataDir, loader, files, resumed);
+    assertTrue(staged.isPlaced(data));
+    assertTrue(staged.isPlaced(index));
+    assertTrue(staged.isPlaced(cf2));
+    assertFalse(staged.isPlaced(other));
+    assertEquals(Lists.newArrayList("ks1/cf1"), Lists.newArrayList(staged.getIncomplete()));
+    download(staged, other);
+    resumed.close(true);
+
+    // Generation 1 is in place once, generation 2 comes after it
+    assertEquals(Sets.newHashSet(live(data, 100000).getName(), live(index, 100000).getName(), live(other, 200000).getName()),
+        Sets.newHashSet(data.newRestoreFile().getParentFile().list()));
+    assertEquals(1, cf2.newRestoreFile().getParentFile().list().length);
+    assertEquals(Lists.newArrayList("ks1.cf2", "ks1.cf1"), loaded);
+  }
+
+  @Test
+  public void withGeneration() {
+    assertEquals("ks1-cf1-jb-7-Data.db", StagedRestore.withGeneration("ks1-cf1-jb-2-Data.db", 7));
+    assertEquals("cf1-hc-12-CompressionInfo.db", StagedRestore.withGeneration("cf1-hc-3-CompressionInfo.db", 12));
+  }
+
+  private static File live(AbstractBackupPath path, long generation) {
+    return new File(path.newRestoreFile().getParentFile(), StagedRestore.withGeneration(path.getFileName(), generation));
+  }
+
+  private void download(StagedRestore staged, AbstractBackupPath path) throws Exception {
+    FileUtils.writeStringToFile(staged.stagingFile(path), path.getFileName());
+    staged.downloaded(path);
+  }
+
+  private AbstractBackupPath path(String suffix) {
+    AbstractBackupPath path = new S3BackupPath(config, null);
+    path.parseRemote(PREFIX + suffix);
+    return path;
+  }
+}
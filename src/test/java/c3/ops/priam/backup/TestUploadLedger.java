@@ -0,0 +1,118 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import c3.ops.priam.aws.S3BackupPath;
+import com.google.inject.Provider;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Date;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestUploadLedger {
+  private static final String PREFIX = "test_backup/" + FakeConfiguration.FAKE_REGION + "/fakecluster/123456/";
+  private final Provider<AbstractBackupPath> pathFactory = new Provider<AbstractBackupPath>() {
+    @Override
+    public AbstractBackupPath get() {
+      return new S3BackupPath(new FakeConfiguration(FakeConfiguration.FAKE_REGION, "fake-app", "az1", "fakeInstance1"), null);
+    }
+  };
+  private File dir;
+  private File ledgerFile;
+
+  @Before
+  public void setup() throws Exception {
+    dir = new File("target/upload-ledger");
+    FileUtils.forceMkdir(dir);
+    ledgerFile = new File(dir, "upload_ledger.log");
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(dir);
+  }
+
+  @Test
+  public void recordsSurviveRestart() throws Exception {
+    UploadLedger ledger = new UploadLedger(ledgerFile, 0, pathFactory);
+    AbstractBackupPath first = path("201108110030/SST/ks1/cf1/f1.db", 100);
+    ledger.record(first, "md5-1");
+    ledger.record(path("201108120030/SST/ks1/cf1/f2.db", 200), "md5-2");
+    ledger.close();
+
+    UploadLedger reloaded = new UploadLedger(ledgerFile, 0, pathFactory);
+    assertTrue(reloaded.contains(first));
+    assertFalse("size differs", reloaded.contains(path("201108110030/SST/ks1/cf1/f1.db", 101)));
+    assertFalse(reloaded.contains(path("201108110030/SST/ks1/cf1/f3.db", 100)));
+  }
+
+  @Test
+  public void listsByBackupTime() throws Exception {
+    UploadLedger ledger = new UploadLedger(ledgerFile, 0, pathFactory);
+    ledger.record(path("201108120030/SST/ks1/cf1/f2.db", 200), "md5-2");
+    ledger.record(path("201108110030/SST/ks1/cf1/f1.db", 100), "md5-1");
+    ledger.record(path("201108140030/SST/ks1/cf1/f3.db", 300), "md5-3");
+
+    AbstractBackupPath any = pathFactory.get();
+    Iterator<AbstractBackupPath> it = ledger.list(any.parseDate("201108110030"), any.parseDate("201108130000"));
+    assertEquals(PREFIX + "201108110030/SST/ks1/cf1/f1.db", it.next().getRemotePath());
+    AbstractBackupPath second = it.next();
+    assertEquals(PREFIX + "201108120030/SST/ks1/cf1/f2.db", second.getRemotePath());
+    assertEquals(200, second.getSize());
+    assertFalse(it.hasNext());
+
+    assertTrue(ledger.covers(new Date()));
+    assertFalse(ledger.covers(any.parseDate("201108110030")));
+  }
+
+  @Test
+  public void tornLastLineIsDropped() throws Exception {
+    UploadLedger ledger = new UploadLedger(ledgerFile, 0, pathFactory);
+    ledger.record(path("201108110030/SST/ks1/cf1/f1.db", 100), "md5-1");
+    ledger.close();
+    FileUtils.writeStringToFile(ledgerFile, "1312000000000\t20", true);
+
+    UploadLedger reloaded = new UploadLedger(ledgerFile, 0, pathFactory);
+    AbstractBackupPath next = path("201108120030/SST/ks1/cf1/f2.db", 200);
+    reloaded.record(next, "md5-2");
+    reloaded.close();
+
+    UploadLedger again = new UploadLedger(ledgerFile, 0, pathFactory);
+    assertTrue(again.contains(next));
+    assertEquals(2, again.size());
+  }
+
+  @Test
+  public void lastLineTornInsidePathIsDropped() throws Exception {
+    UploadLedger ledger = new UploadLedger(ledgerFile, 0, pathFactory);
+    ledger.record(path("201108110030/SST/ks1/cf1/f1.db", 100), "md5-1");
+    ledger.close();
+    // the fields are all there, only the end of the path is missing
+    FileUtils.writeStringToFile(ledgerFile, "1312000000000\t200\tmd5-2\t" + PREFIX + "201108120030/SST/ks1/cf1/f2", true);
+
+    UploadLedger reloaded = new UploadLedger(ledgerFile, 0, pathFactory);
+    assertTrue(reloaded.contains(path("201108110030/SST/ks1/cf1/f1.db", 100)));
+    assertEquals(1, reloaded.size());
+    AbstractBackupPath next = path("201108120030/SST/ks1/cf1/f3.db", 300);
+    reloaded.record(next, "md5-3");
+    reloaded.close();
+
+    UploadLedger again = new UploadLedger(ledgerFile, 0, pathFactory);
+    assertTrue(again.contains(next));
+    assertEquals(2, again.size());
+  }
+
+  private AbstractBackupPath path(String suffix, long size) {
+    AbstractBackupPath path = pathFactory.get();
+    path.parseRemote(PREFIX + suffix);
+    path.setSize(size);
+    return path;
+  }
+}
@@ -0,0 +1,87 @@
+package c3.ops.priam.backup;
+
+import c3.ops.priam.FakeConfiguration;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestUploadThrottle {
+  private static final long MB = 1024 * 1024;
+
+  @Test
+  public void schedule() {
+    String schedule = "8-20:1000, 20-2:2000";
+    assertEquals(1000, UploadThrottle.scheduledRate(schedule, 8, 5));
+    assertEquals(1000, UploadThrottle.scheduledRate(schedule, 19, 5));
+    assertEquals(2000, UploadThrottle.scheduledRate(schedule, 20, 5));
+    assertEquals(2000, UploadThrottle.scheduledRate(schedule, 1, 5));
+    assertEquals(5, UploadThrottle.scheduledRate(schedule, 2, 5));
+    assertEquals(5, UploadThrottle.scheduledRate("", 2, 5));
+    // a bad entry is skipped
+    assertEquals(3000, UploadThrottle.scheduledRate("x-1:5,0-24:3000", 12, 5));
+  }
+
+  @Test
+  public void scheduleSetsCeiling() {
+    UploadThrottle throttle = new UploadThrottle(new FakeConfiguration() {
+      @Override
+      public String getUploadThrottleSchedule() {
+        return "0-24:" + 8 * MB;
+      }
+    });
+    assertEquals(8 * MB, throttle.getRate());
+    throttle.adjust(true, 0);
+    assertEquals(4 * MB, throttle.getRate());
+    // a refresh keeps the rate backed off
+    throttle.refresh();
+    assertEquals(4 * MB, throttle.getRate());
+    assertEquals(8 * MB, throttle.getCeiling());
+  }
+
+  @Test
+  public void override() {
+    UploadThrottle throttle = new UploadThrottle(new FakeConfiguration());
+    assertEquals(0, throttle.getRate());
+    throttle.setOverride(5 * MB);
+    assertEquals(5 * MB, throttle.getRate());
+    assertEquals(Long.valueOf(5 * MB), throttle.getOverride());
+    throttle.setOverride(-1);
+    assertNull(throttle.getOverride());
+    assertEquals(0, throttle.getRate());
+  }
+
+  @Test
+  public void backOffAndRecover() {
+    UploadThrottle throttle = new UploadThrottle(new FakeConfiguration());
+    throttle.setOverride(100 * MB);
+    // backs off from what is actually sent
+    throttle.adjust(true, 80 * MB);
+    assertEquals(40 * MB, throttle.getRate());
+    throttle.adjust(true, 0);
+    assertEquals(20 * MB, throttle.getRate());
+    throttle.adjust(false, 20 * MB);
+    assertEquals(30 * MB, throttle.getRate());
+    throttle.adjust(false, 30 * MB);
+    assertEquals(45 * MB, throttle.getRate());
+    // uploads no longer use the limit, so it is lifted
+    throttle.adjust(false, 10 * MB);
+    assertEquals(100 * MB, throttle.getRate());
+
+    for (int i = 0; i < 20; i++)
+      throttle.adjust(true, 0);
+    assertEquals((long) UploadThrottle.MIN_RATE, throttle.getRate());
+  }
+
+  @Test
+  public void backOffFromUnlimited() {
+    UploadThrottle throttle = new UploadThrottle(new FakeConfiguration());
+    // nothing being sent, nothing to back off from
+    throttle.adjust(true, 0);
+    assertEquals(0, throttle.getRate());
+    throttle.adjust(true, 8 * MB);
+    assertEquals(4 * MB, throttle.getRate());
+    throttle.adjust(false, 0);
+    assertEquals(0, throttle.getRate());
+  }
+}
@@ -0,0 +1,55 @@
+package c3.ops.priam.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestMd5InputStream {
+  private File file;
+
+  @Before
+  public void setup() throws Exception {
+    file = new File("target/md5-stream/data.db");
+    byte[] content = new byte[300 * 1024 + 7];
+    new Random(5).nextBytes(content);
+    FileUtils.writeByteArrayToFile(file, content);
+  }
+
+  @After
+  public void cleanup() {
+    FileUtils.deleteQuietly(file.getParentFile());
+  }
+
+  @Test
+  public void hashesSkippedAndReadBytes() throws Exception {
+    Md5InputStream in = new Md5InputStream(new FileInputStream(file));
+    try {
+      assertEquals(100 * 1024 + 3, in.skip(100 * 1024 + 3));
+      IOUtils.toByteArray(in);
+    } finally {
+      in.close();
+    }
+    assertEquals(SystemUtils.md5(file), in.getMd5());
+    assertEquals(SystemUtils.md5(file), in.getMd5());
+  }
+
+  @Test
+  public void partlyReadStreamHasNoMd5() throws Exception {
+    Md5InputStream in = new Md5InputStream(new FileInputStream(file));
+    try {
+      IOUtils.readFully(in, new byte[1024]);
+    } finally {
+      in.close();
+    }
+    assertNull(in.getMd5());
+  }
+}